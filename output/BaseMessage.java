@@ -3,13 +3,16 @@ package org.jgroups;
 
 
 import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.util.HeaderDictionary;
 import org.jgroups.util.Headers;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A common superclass for all {@link Message} implementations. It contains functionality to manage headers, flags and
@@ -27,6 +30,12 @@ public abstract class BaseMessage implements Message {
 
     static final byte           DEST_SET         =  1;
     static final byte           SRC_SET          =  1 << 1;
+    static final byte           SAME_FLAGS       =  1 << 2; // compact headers only: flags of the previous message
+
+    protected static final LongAdder header_resizes=new LongAdder(); // number of resizes of the headers array
+
+    /** Headers of a new message: allocated by {@link #sizeHeaders(int)} or on the first {@link #putHeader(short,Header)} */
+    protected static final Header[]  NO_HEADERS=new Header[0];
 
 
     public BaseMessage() {
@@ -39,10 +48,32 @@ public abstract class BaseMessage implements Message {
     */
     public BaseMessage(Address dest) {
         setDest(dest);
-        headers=createHeaders(Util.DEFAULT_HEADERS);
+        headers=NO_HEADERS;
     }
 
 
+    /**
+     * Grows the headers to a capacity of num_headers if they're smaller. Called by a
+     * {@link org.jgroups.stack.ProtocolStack} with the number of headers its protocols add, so that adding them
+     * doesn't resize the headers multiple times (JGRP-2120). The headers of a new message have not yet been
+     * allocated, so they're created with the right capacity; growing existing headers counts as a resize
+     */
+    public Message sizeHeaders(int num_headers) {
+        synchronized(this) {
+            if(this.headers == null || this.headers.length == 0)
+                this.headers=createHeaders(num_headers);
+            else if(this.headers.length < num_headers) {
+                this.headers=Arrays.copyOf(this.headers, num_headers);
+                header_resizes.increment();
+            }
+        }
+        return this;
+    }
+
+    /** Returns the number of times the headers array of a message had to be resized (all messages in this JVM) */
+    public static long headerResizes() {return header_resizes.sum();}
+
+
     public Address               getDest()                 {return dest;}
     public Message               setDest(Address new_dest) {dest=new_dest; return this;}
     public Address               getSrc()                  {return sender;}
@@ -186,11 +217,13 @@ public abstract class BaseMessage implements Message {
         if(hdr != null)
             hdr.setProtId(id);
         synchronized(this) {
-            if(this.headers == null)
+            if(this.headers == null || this.headers.length == 0)
                 this.headers=createHeaders(Util.DEFAULT_HEADERS);
             Header[] resized_array=Headers.putHeader(this.headers, id, hdr, true);
-            if(resized_array != null)
+            if(resized_array != null) {
                 this.headers=resized_array;
+                header_resizes.increment();
+            }
         }
         return this;
     }
@@ -262,6 +295,33 @@ public abstract class BaseMessage implements Message {
     }
 
     public void writeToNoAddrs(Address src, DataOutput out, short... excluded_headers) throws IOException {
+        writeMetadataNoAddrs(src, out, null, excluded_headers);
+
+        // finally write the payload
+        writePayload(out);
+    }
+
+    /**
+     * Same as {@link #writeToNoAddrs(Address,DataOutput,short...)}, but writes the headers in compact form using the
+     * dictionary of the message list (if non-null). Has to be read with {@link #readFrom(DataInput,HeaderDictionary)}
+     */
+    public void writeToNoAddrs(Address src, DataOutput out, HeaderDictionary dict, short... excluded_headers) throws IOException {
+        writeMetadataNoAddrs(src, out, dict, excluded_headers);
+
+        // finally write the payload
+        writePayload(out);
+    }
+
+    /**
+     * Writes everything {@link #writeToNoAddrs(Address,DataOutput,short...)} writes, except the payload. Used by
+     * gathering writes, which send the payload as a separate buffer
+     */
+    public void writeMetadataNoAddrs(Address src, DataOutput out, short... excluded_headers) throws IOException {
+        writeMetadataNoAddrs(src, out, null, excluded_headers);
+    }
+
+    public void writeMetadataNoAddrs(Address src, DataOutput out, HeaderDictionary dict, short... excluded_headers)
+      throws IOException {
         byte leading=0;
 
         boolean write_src_addr=src == null || sender != null && !sender.equals(src);
@@ -269,30 +329,45 @@ public abstract class BaseMessage implements Message {
         if(write_src_addr)
             leading=Util.setFlag(leading, SRC_SET);
 
+        boolean same_flags=dict != null && dict.sameFlags(flags);
+        if(same_flags)
+            leading=Util.setFlag(leading, SAME_FLAGS);
+
         // write the leading byte first
         out.write(leading);
 
-        // write the flags (e.g. OOB, LOW_PRIO)
-        out.writeShort(flags);
+        // write the flags (e.g. OOB, LOW_PRIO), unless they're the same as those of the previous message in the list
+        if(!same_flags)
+            out.writeShort(flags);
 
         // write the src_addr
         if(write_src_addr)
             Util.writeAddress(sender, out);
 
         // write the headers
-        writeHeaders(this.headers, out, excluded_headers);
-
-        // finally write the payload
-        writePayload(out);
+        if(dict != null)
+            writeHeaders(this.headers, out, dict, excluded_headers);
+        else
+            writeHeaders(this.headers, out, excluded_headers);
     }
 
 
     public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+        readFrom(in, null);
+    }
+
+    /** Reads a message; if dict is non-null, the headers are in compact form (written with a {@link HeaderDictionary}) */
+    public void readFrom(DataInput in, HeaderDictionary dict) throws IOException, ClassNotFoundException {
         // 1. read the leading byte first
         byte leading=in.readByte();
 
         // 2. the flags
-        flags=in.readShort();
+        if(dict == null)
+            flags=in.readShort();
+        else if(Util.isFlagSet(leading, SAME_FLAGS))
+            flags=dict.lastFlags();
+        else
+            dict.lastFlags(flags=in.readShort());
 
         // 3. dest_addr
         if(Util.isFlagSet(leading, DEST_SET))
@@ -303,12 +378,17 @@ public abstract class BaseMessage implements Message {
             sender=Util.readAddress(in);
 
         // 5. headers
-        int len=in.readShort();
+        int len=dict != null? in.readUnsignedByte() : in.readShort();
         if(this.headers == null || len > this.headers.length)
             this.headers=createHeaders(len);
         for(int i=0; i < len; i++) {
-            short id=in.readShort();
-            Header hdr=readHeader(in).setProtId(id);
+            Header hdr;
+            if(dict != null)
+                hdr=dict.readHeader(in);
+            else {
+                short id=in.readShort();
+                hdr=readHeader(in).setProtId(id);
+            }
             this.headers[i]=hdr;
         }
         readPayload(in);
@@ -336,6 +416,22 @@ public abstract class BaseMessage implements Message {
         }
     }
 
+    /** Writes the number of headers as a byte and the headers' IDs as indices into dict */
+    protected static void writeHeaders(Header[] hdrs, DataOutput out, HeaderDictionary dict,
+                                       short ... excluded_headers) throws IOException {
+        int size=Headers.size(hdrs, excluded_headers);
+        out.writeByte(size);
+        if(size > 0) {
+            for(Header hdr : hdrs) {
+                if(hdr == null)
+                    break;
+                if(Util.containsId(hdr.getProtId(), excluded_headers))
+                    continue;
+                dict.writeHeader(hdr, out);
+            }
+        }
+    }
+
     protected static void writeHeader(Header hdr, DataOutput out) throws IOException {
         short magic_number=hdr.getMagicId();
         out.writeShort(magic_number);
@@ -22,6 +22,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -59,6 +60,13 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     protected boolean                         tcp_nodelay=false;
     protected int                             linger=-1;
     protected TimeService                     time_service;
+    @ManagedAttribute(description="Reads each received frame into its own array before passing it to the receiver, " +
+      "rather than passing the input stream",writable=true)
+    protected boolean                         read_frames_into_array;
+    @ManagedAttribute(description="Max number of messages in the send queue of a connection (used by sendAsync())",
+      writable=true)
+    protected int                             send_queue_size=2000;
+    protected final LongAdder                 num_send_queue_drops=new LongAdder();
 
 
     protected BaseServer(ThreadFactory f, SocketFactory sf, int recv_buf_size) {
@@ -101,6 +109,13 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     public BaseServer       linger(int linger)                      {this.linger=linger; return this;}
     public boolean          tcpNodelay()                            {return tcp_nodelay;}
     public BaseServer       tcpNodelay(boolean tcp_nodelay)         {this.tcp_nodelay = tcp_nodelay; return this;}
+    public boolean          readFramesIntoArray()                   {return read_frames_into_array;}
+    public BaseServer       readFramesIntoArray(boolean flag)       {this.read_frames_into_array=flag; return this;}
+    public int              sendQueueSize()                         {return send_queue_size;}
+    public BaseServer       sendQueueSize(int size)                 {this.send_queue_size=size; return this;}
+    @ManagedAttribute(description="Number of messages dropped by sendAsync() because the send queue of a connection " +
+      "was full")
+    public long             numSendQueueDrops()                     {return num_send_queue_drops.sum();}
     @ManagedAttribute(description="True if the server is running, else false")
     public boolean          running()                               {return running.get();}
 
@@ -170,8 +185,15 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     }
 
     public void receive(Address sender, DataInput in, int len) throws Exception {
-        if(this.receiver != null)
-            this.receiver.receive(sender, in);
+        if(this.receiver != null) {
+            if(read_frames_into_array) { // the array is owned by the receiver, which may keep references to it
+                byte[] frame=new byte[len];
+                in.readFully(frame, 0, len);
+                this.receiver.receive(sender, frame, 0, len);
+            }
+            else
+                this.receiver.receive(sender, in);
+        }
         else {
             // discard len bytes (in.skip() is not guaranteed to discard *all* len bytes)
             byte[] buf=new byte[len];
@@ -207,6 +229,65 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     }
 
 
+    /**
+     * Adds the data to the send queue of the connection to dest; the queue is drained by the connection's own sender
+     * thread, so that this call doesn't block on a slow connection. The data is <em>not</em> copied and must not be
+     * modified afterwards; the same array may be passed for different destinations. Connections without a send queue
+     * send the data synchronously
+     * @return False if the data was dropped because the send queue was full, else true
+     */
+    public boolean sendAsync(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null || dest.equals(local_addr)) {
+            send(dest, data, offset, length);
+            return true;
+        }
+        Connection conn=null;
+        try {
+            conn=getConnection(dest);
+            if(conn instanceof TcpConnection) {
+                boolean added=((TcpConnection)conn).enqueue(data, offset, length);
+                if(!added)
+                    num_send_queue_drops.increment();
+                return added;
+            }
+            conn.send(data, offset, length);
+            return true;
+        }
+        catch(Exception ex) {
+            removeConnectionIfPresent(dest, conn);
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Sends the concatenation of bufs to dest. Connections which support it write the buffers with a single
+     * (gathering) write; otherwise the buffers are copied into one array first
+     */
+    public void send(Address dest, ByteBuffer[] bufs, int length) throws Exception {
+        if(dest == null || dest.equals(local_addr)) {
+            send(dest, Util.bufferToArray(bufs, length), 0, length);
+            return;
+        }
+
+        // Get a connection (or create one if not yet existent) and send the data
+        Connection conn=null;
+        try {
+            conn=getConnection(dest);
+            if(conn instanceof TcpConnection)
+                ((TcpConnection)conn).send(bufs, length);
+            else if(conn instanceof NioConnection)
+                ((NioConnection)conn).send(bufs, length);
+            else
+                conn.send(Util.bufferToArray(bufs, length), 0, length);
+        }
+        catch(Exception ex) {
+            removeConnectionIfPresent(dest, conn);
+            throw ex;
+        }
+    }
+
+
     public void send(Address dest, ByteBuffer data) throws Exception {
         if(!validateArgs(dest, data))
             return;
@@ -0,0 +1,129 @@
+package org.jgroups.util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * A buffer of elements ordered by seqno, used as retransmission table by NAKACK2 and UNICAST3. Keeps 3 indices:
+ * <ul>
+ *     <li>low: seqnos <= low have been purged</li>
+ *     <li>highest delivered (hd): seqnos <= hd have been removed (delivered)</li>
+ *     <li>highest received (hr): the highest seqno added</li>
+ * </ul>
+ * Implementations are {@link TableBuffer} (a matrix of rows) and {@link RingTable} (a lock-free ring).
+ * @author Bela Ban
+ * @since  5.0
+ */
+public interface Buffer<T> extends Iterable<T> {
+
+    /** Adds an element if seqno hasn't been added or delivered yet. Returns true if added */
+    boolean add(long seqno, T element);
+
+    /**
+     * Adds an element; if seqno is hd+1 (the next to be delivered), hd is advanced over all consecutive elements
+     * matching remove_filter, so they won't be delivered
+     */
+    boolean add(long seqno, T element, Predicate<T> remove_filter);
+
+    boolean add(List<LongTuple<T>> list);
+
+    boolean add(List<LongTuple<T>> list, boolean remove_added_elements);
+
+    /**
+     * Adds elements from the list
+     * @param list The list of tuples of seqnos and elements
+     * @param remove_added_elements If true, elements that could not be added are removed from the list
+     * @param const_value If non-null, this value is added instead of the elements of the list
+     * @return True if at least 1 element was added
+     */
+    boolean add(List<LongTuple<T>> list, boolean remove_added_elements, T const_value);
+
+    /** Returns the element at seqno, or null if not present */
+    T get(long seqno);
+
+    T remove();
+
+    T remove(boolean nullify);
+
+    List<T> removeMany(boolean nullify, int max_results);
+
+    List<T> removeMany(boolean nullify, int max_results, Predicate<T> filter);
+
+    /**
+     * Removes elements from hd+1 up to the first missing element (or max_results elements) and advances hd.
+     * Removed elements passing the filter are added to the result (created lazily by result_creator)
+     * @return The result, or null if no element was added to it
+     */
+    <R> R removeMany(boolean nullify, int max_results, Predicate<T> filter,
+                     Supplier<R> result_creator, BiConsumer<R,T> accumulator);
+
+    /** Removes all delivered elements <= seqno */
+    void purge(long seqno);
+
+    /**
+     * Removes all elements <= seqno. If force is false, only delivered elements (<= hd) are removed, else all
+     * elements <= seqno are removed and hd (and hr) are set to seqno if lower
+     */
+    void purge(long seqno, boolean force);
+
+    void forEach(long from, long to, Table.Visitor<T> visitor);
+
+    Stream<T> stream();
+
+    /** Used by callers to ensure that only one thread at a time removes elements */
+    AtomicInteger getAdders();
+
+    long getLow();
+
+    long getHighestDelivered();
+
+    void setHighestDelivered(long seqno);
+
+    long getHighestReceived();
+
+    /** Returns the highest seqno that can be delivered, i.e. hd plus the number of consecutive elements after it */
+    long getHighestDeliverable();
+
+    int getNumDeliverable();
+
+    /** Returns an array of the highest delivered and highest received seqnos */
+    long[] getDigest();
+
+    /** Returns the number of undelivered elements */
+    int size();
+
+    boolean isEmpty();
+
+    /** Computes the number of undelivered elements by iterating over them (slow); used for testing */
+    int computeSize();
+
+    int getNumMissing();
+
+    SeqnoList getMissing();
+
+    /** Returns a list of missing seqnos between hd and hr (at most max_msgs if > 0), or null if none are missing */
+    SeqnoList getMissing(int max_msgs);
+
+    int capacity();
+
+    int getNumRows();
+
+    void compact();
+
+    int getNumCompactions();
+
+    int getNumMoves();
+
+    int getNumResizes();
+
+    int getNumPurges();
+
+    void resetStats();
+
+    /** Returns the elements as a comma-separated string */
+    String dump();
+}
@@ -0,0 +1,125 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.BytesMessage;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link FlowControl} with credit_batch_interval > 0: credits for all senders are sent in a single multicast
+ * (MFC) or in one message per sender (UFC)
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class CreditBatchingTest {
+    protected JChannel                   a, b, c;
+    protected MyReceiver<Message>        ra, rb, rc;
+    protected static final int           MAX_CREDITS=10_000, SIZE=1000, NUM=100;
+
+    @BeforeMethod protected void setup() throws Exception {
+        setup(10);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    /** Credits for A and B are batched by C, so C sends fewer credit responses than without batching */
+    public void testMulticasts() throws Exception {
+        MFC mfc=c.getProtocolStack().findProtocol(MFC.class);
+        sendMulticasts();
+        int batched=mfc.num_credits_batched, responses=mfc.getNumberOfCreditResponsesSent();
+        assert batched > 0;
+
+        Util.close(c, b, a);
+        setup(0);
+        MFC mfc_no_batching=c.getProtocolStack().findProtocol(MFC.class);
+        sendMulticasts();
+        int responses_no_batching=mfc_no_batching.getNumberOfCreditResponsesSent();
+        assert mfc_no_batching.num_credits_batched == 0;
+        assert responses < responses_no_batching
+          : String.format("credit responses sent with batching: %d, without: %d", responses, responses_no_batching);
+    }
+
+    public void testUnicasts() throws Exception {
+        send(a, c.getAddress());
+        Util.waitUntil(10000, 100, () -> rc.size() == NUM, () -> String.format("C: %d", rc.size()));
+    }
+
+    public void testReplenishmentsSerialization() throws Exception {
+        Map<Address,Long> map=new HashMap<>();
+        map.put(a.getAddress(), 5000L);
+        map.put(b.getAddress(), 322L);
+        FlowControl.Replenishments r=new FlowControl.Replenishments(map);
+        byte[] buf=Util.streamableToByteBuffer(r);
+        assert buf.length == r.serializedSize();
+        FlowControl.Replenishments r2=Util.streamableFromByteBuffer(FlowControl.Replenishments::new, buf);
+        assert r2.size() == 2 && r2.get(a.getAddress()) == 5000 && r2.get(b.getAddress()) == 322;
+        assert r2.get(c.getAddress()) == 0;
+    }
+
+    /** Replenishments is registered by FlowControl, so its classname is not marshalled */
+    public void testReplenishmentsHaveMagicNumber() throws Exception {
+        FlowControl.Replenishments r=new FlowControl.Replenishments(Map.of(a.getAddress(), 5000L));
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+        Util.writeGenericStreamable(r, out);
+        assert out.position() == Global.BYTE_SIZE + Global.SHORT_SIZE + r.serializedSize() : "size is " + out.position();
+    }
+
+    protected void setup(long credit_batch_interval) throws Exception {
+        a=create("A", credit_batch_interval);
+        b=create("B", credit_batch_interval);
+        c=create("C", credit_batch_interval);
+        a.setReceiver(ra=new MyReceiver<Message>().rawMsgs(true));
+        b.setReceiver(rb=new MyReceiver<Message>().rawMsgs(true));
+        c.setReceiver(rc=new MyReceiver<Message>().rawMsgs(true));
+        for(JChannel ch: new JChannel[]{a, b, c})
+            ch.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+    }
+
+    /** A and B multicast NUM messages each, and C's credits are flushed */
+    protected void sendMulticasts() throws Exception {
+        Thread ta=new Thread(() -> send(a, null)), tb=new Thread(() -> send(b, null));
+        ta.start(); tb.start();
+        ta.join(10000); tb.join(10000);
+        Util.waitUntil(10000, 100, () -> Stream.of(ra, rb, rc).allMatch(r -> r.size() == NUM * 2),
+                       () -> String.format("A: %d, B: %d, C: %d", ra.size(), rb.size(), rc.size()));
+        Util.sleep(100); // the flush task sends the pending credits
+    }
+
+    protected static void send(JChannel ch, Address dest) {
+        try {
+            for(int i=0; i < NUM; i++)
+                ch.send(new BytesMessage(dest, new byte[SIZE]));
+        }
+        catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static JChannel create(String name, long credit_batch_interval) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false),
+                            new UFC().setMaxCredits(MAX_CREDITS).setMinThreshold(0.4).setCreditBatchInterval(credit_batch_interval),
+                            new MFC().setMaxCredits(MAX_CREDITS).setMinThreshold(0.4).setCreditBatchInterval(credit_batch_interval),
+                            new FRAG2().setFragSize(1500)).name(name);
+    }
+}
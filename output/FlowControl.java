@@ -1,20 +1,25 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.AttributeType;
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Credit;
-import org.jgroups.util.MessageBatch;
-import org.jgroups.util.MessageIterator;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -22,6 +27,10 @@ import java.util.TreeMap;
  * to send). When the credits have been exhausted, the sender blocks. Each receiver also keeps track of
  * how many credits it has received from a sender. When credits for a sender fall below a threshold,
  * the receiver sends more credits to the sender.
+ * <p>
+ * When credit_batch_interval is > 0, a receiver accumulates the credits for all senders and sends them every
+ * credit_batch_interval ms: protocols handling multicast messages (MFC) send the credits for all senders in a single
+ * multicast, others (UFC) send one message per sender. Responses to credit requests are always sent immediately.
  * 
  * @author Bela Ban
  */
@@ -70,6 +79,11 @@ public abstract class FlowControl extends Protocol {
      */
     @Property(description="Computed as max_credits x min_theshold unless explicitly set",type=AttributeType.BYTES)
     protected long           min_credits;
+
+    @Property(description="Interval (in ms) at which the credits accumulated for all senders are sent. MFC sends the " +
+      "credits for all senders in a single multicast, UFC sends one message per sender. 0 sends credits immediately",
+      type=AttributeType.TIME)
+    protected long           credit_batch_interval;
     
 
     
@@ -78,6 +92,11 @@ public abstract class FlowControl extends Protocol {
     protected int  num_credit_requests_received, num_credit_requests_sent;
     protected int  num_credit_responses_sent, num_credit_responses_received;
 
+    @ManagedAttribute(description="Number of credit messages which were not sent because the credits were batched: " +
+      "added to the credits pending for the same sender, or sent to multiple senders in a single multicast " +
+      "(credit_batch_interval > 0)",type=AttributeType.SCALAR)
+    protected int  num_credits_batched;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------------ */
    
@@ -96,6 +115,18 @@ public abstract class FlowControl extends Protocol {
 
     protected int                       frag_size; // remember frag_size from the fragmentation protocol
 
+    /** Credits to be sent to senders by the next flush (credit_batch_interval > 0) */
+    @GuardedBy("pending_credits")
+    protected final Map<Address,Long>   pending_credits=new HashMap<>();
+
+    /** Sends the pending credits every credit_batch_interval ms */
+    protected Future<?>                 credit_flush_task;
+
+    static {
+        if(ClassConfigurator.getMagicNumber(Replenishments.class) < 0)
+            ClassConfigurator.add(Replenishments.MAGIC_ID, Replenishments.class);
+    }
+
 
 
 
@@ -103,6 +134,7 @@ public abstract class FlowControl extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_credit_responses_sent=num_credit_responses_received=num_credit_requests_received=num_credit_requests_sent=0;
+        num_credits_batched=0;
     }
 
     public long                      getMaxCredits()           {return max_credits;}
@@ -113,6 +145,8 @@ public abstract class FlowControl extends Protocol {
     public <T extends FlowControl> T setMinCredits(long m)     {min_credits=m; return (T)this;}
     public long                      getMaxBlockTime()         {return max_block_time;}
     public <T extends FlowControl> T setMaxBlockTime(long t)   {max_block_time=t; return (T)this;}
+    public long                      getCreditBatchInterval()  {return credit_batch_interval;}
+    public <T extends FlowControl> T setCreditBatchInterval(long i) {credit_batch_interval=i; return (T)this;}
 
 
     @Property(description="Max times to block for the listed messages sizes (Message.getLength()). Example: \"1000:10,5000:30,10000:500\"")
@@ -235,6 +269,8 @@ public abstract class FlowControl extends Protocol {
         boolean min_credits_set = min_credits != 0;
         if(!min_credits_set)
             min_credits=(long)(max_credits * min_threshold);
+        if(credit_batch_interval < 0)
+            throw new IllegalArgumentException("credit_batch_interval has to be >= 0");
     }
 
     public void start() throws Exception {
@@ -248,11 +284,21 @@ public abstract class FlowControl extends Protocol {
                        "This can lead to blockings (https://issues.jboss.org/browse/JGRP-1659)", frag_size, min_credits);
         }
         running=true;
+        if(credit_batch_interval > 0)
+            credit_flush_task=getTransport().getTimer().scheduleWithFixedDelay(this::flushCredits, credit_batch_interval,
+                                                                                credit_batch_interval, TimeUnit.MILLISECONDS, false);
     }
 
     public void stop() {
         super.stop();
         running=false;
+        if(credit_flush_task != null) {
+            credit_flush_task.cancel(false);
+            credit_flush_task=null;
+        }
+        synchronized(pending_credits) {
+            pending_credits.clear();
+        }
     }
 
 
@@ -296,7 +342,7 @@ public abstract class FlowControl extends Protocol {
         if(msg.isFlagSet(Message.TransientFlag.DONT_LOOPBACK)) {
             long new_credits=adjustCredit(received, local_addr, length);
             if(new_credits > 0)
-                sendCredit(local_addr, new_credits);
+                replenish(local_addr, new_credits);
         }
         return retval;
     }
@@ -337,7 +383,7 @@ public abstract class FlowControl extends Protocol {
                 Address sender=msg.getSrc();
                 long new_credits=adjustCredit(received, sender, length);
                 if(new_credits > 0)
-                    sendCredit(sender, new_credits);
+                    replenish(sender, new_credits);
             }
         }
     }
@@ -346,7 +392,14 @@ public abstract class FlowControl extends Protocol {
         switch(hdr.type) {
             case FcHeader.REPLENISH:
                 num_credit_responses_received++;
-                handleCredit(msg.getSrc(), ((LongMessage)msg).getValue());
+                if(msg instanceof LongMessage)
+                    handleCredit(msg.getSrc(), ((LongMessage)msg).getValue());
+                else { // batched credits for multiple senders: only the credits for us are used
+                    Replenishments r=msg.getObject();
+                    long credits=r != null? r.get(local_addr) : 0;
+                    if(credits > 0)
+                        handleCredit(msg.getSrc(), credits);
+                }
                 break;
             case FcHeader.CREDIT_REQUEST:
                 num_credit_requests_received++;
@@ -395,7 +448,7 @@ public abstract class FlowControl extends Protocol {
                     Address sender=batch.sender();
                     long new_credits=adjustCredit(received, sender, length);
                     if(new_credits > 0)
-                        sendCredit(sender, new_credits);
+                        replenish(sender, new_credits);
                 }
             }
         }
@@ -450,6 +503,40 @@ public abstract class FlowControl extends Protocol {
     }
 
 
+    /** Sends credits to dest, or adds them to the credits pending for dest if credit_batch_interval is > 0 */
+    protected void replenish(Address dest, long credits) {
+        if(credit_batch_interval <= 0) {
+            sendCredit(dest, credits);
+            return;
+        }
+        synchronized(pending_credits) {
+            if(pending_credits.merge(dest, credits, Long::sum) != credits)
+                num_credits_batched++;
+        }
+    }
+
+    /** Sends the pending credits: a single multicast (if multicasts are handled) or one message per sender */
+    protected void flushCredits() {
+        Map<Address,Long> credits;
+        synchronized(pending_credits) {
+            if(pending_credits.isEmpty())
+                return;
+            credits=new HashMap<>(pending_credits);
+            pending_credits.clear();
+        }
+        if(!handleMulticastMessage() || credits.size() == 1) {
+            credits.forEach(this::sendCredit);
+            return;
+        }
+        if(log.isTraceEnabled())
+            log.trace("sending credits to %s", credits);
+        Message msg=new ObjectMessage(null, new Replenishments(credits)).putHeader(this.id, getReplenishHeader())
+          .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+        down_prot.down(msg);
+        num_credit_responses_sent++;
+        num_credits_batched+=credits.size() - 1;
+    }
+
     protected void sendCredit(Address dest, long credits) {
         if(log.isTraceEnabled())
             log.trace("sending %d credits to %s", credits, dest);
@@ -484,6 +571,9 @@ public abstract class FlowControl extends Protocol {
 
         // remove members that left
         received.keySet().retainAll(mbrs);
+        synchronized(pending_credits) {
+            pending_credits.keySet().retainAll(mbrs);
+        }
     }
 
 
@@ -495,4 +585,68 @@ public abstract class FlowControl extends Protocol {
     }
 
 
+    /** The credits for multiple senders, sent in a single (multicast) REPLENISH message */
+    public static class Replenishments implements SizeStreamable {
+        /** Magic number, so that the classname is not marshalled with every REPLENISH multicast */
+        public static final short MAGIC_ID=1051;
+        protected Address[] members;
+        protected long[]    credits;
+
+        public Replenishments() {
+        }
+
+        public Replenishments(Map<Address,Long> map) {
+            members=new Address[map.size()];
+            credits=new long[map.size()];
+            int index=0;
+            for(Map.Entry<Address,Long> entry: map.entrySet()) {
+                members[index]=entry.getKey();
+                credits[index++]=entry.getValue();
+            }
+        }
+
+        public int size() {return members != null? members.length : 0;}
+
+        /** Returns the credits for member, or 0 if member is not found */
+        public long get(Address member) {
+            for(int i=0; i < size(); i++)
+                if(members[i].equals(member))
+                    return credits[i];
+            return 0;
+        }
+
+        public int serializedSize() {
+            int retval=Global.INT_SIZE;
+            for(int i=0; i < size(); i++)
+                retval+=Util.size(members[i]) + Bits.size(credits[i]);
+            return retval;
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeInt(size());
+            for(int i=0; i < size(); i++) {
+                Util.writeAddress(members[i], out);
+                Bits.writeLongCompressed(credits[i], out);
+            }
+        }
+
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            int len=in.readInt();
+            members=new Address[len];
+            credits=new long[len];
+            for(int i=0; i < len; i++) {
+                members[i]=Util.readAddress(in);
+                credits[i]=Bits.readLongCompressed(in);
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            for(int i=0; i < size(); i++)
+                sb.append(i > 0? ", " : "").append(members[i]).append(": ").append(credits[i]);
+            return sb.toString();
+        }
+    }
+
+
 }
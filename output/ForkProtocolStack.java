@@ -57,7 +57,14 @@ public class ForkProtocolStack extends ProtocolStack {
     }
 
     public Object down(Message msg) {
-        return down_prot.down(msg);
+        return down_prot.down(sizeHeaders(msg, getNumHeaders()));
+    }
+
+    /** Messages sent by a fork channel are sent by the transport of the main stack, which counts their headers */
+    @Override
+    public int getNumHeaders() {
+        ProtocolStack main_stack=down_prot != null? down_prot.getProtocolStack() : null;
+        return main_stack != null? main_stack.getNumHeaders() : super.getNumHeaders();
     }
 
     public void setLocalAddress(Address addr) {
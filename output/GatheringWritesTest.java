@@ -0,0 +1,149 @@
+package org.jgroups.blocks.cs;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests sending multiple buffers as a single message with {@link TcpConnection#send(ByteBuffer[],int)} and
+ * {@link NioConnection#send(ByteBuffer[],int)}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="createServers")
+public class GatheringWritesTest {
+    protected BaseServer               a, b;
+    protected Address                  addr_b;
+    protected MyReceiver               receiver;
+    protected static final InetAddress loopback;
+
+    static {
+        try {
+            loopback=Util.getLoopback();
+        }
+        catch(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @DataProvider
+    protected static Object[][] createServers() {
+        return new Object[][]{
+          {false},
+          {true}
+        };
+    }
+
+    @AfterMethod protected void destroy() {Util.close(a, b);}
+
+    public void testSend(boolean nio) throws Exception {
+        setup(nio, 0);
+        ByteBuffer[] bufs={ByteBuffer.wrap(bytes(10, 0)),
+          ByteBuffer.wrap(bytes(5000, 10), 100, 4000), // only bytes 100-4099 are sent
+          direct(bytes(2000, 20))};
+        byte[] expected=concat(bufs);
+        a.send(addr_b, bufs, expected.length);
+        assert a.getConnection(addr_b).getClass() == (nio? NioConnection.class : TcpConnection.class);
+        receiver.waitFor(1);
+        assert Arrays.equals(receiver.list().get(0), expected);
+    }
+
+    public void testSendMultipleMessages(boolean nio) throws Exception {
+        setup(nio, 0);
+        List<byte[]> expected=new ArrayList<>();
+        for(int i=0; i < 10; i++) {
+            ByteBuffer[] bufs={ByteBuffer.wrap(bytes(i+1, i)), ByteBuffer.wrap(bytes(1000, i+1))};
+            expected.add(concat(bufs));
+            a.send(addr_b, bufs, expected.get(i).length);
+        }
+        receiver.waitFor(expected.size());
+        for(int i=0; i < expected.size(); i++)
+            assert Arrays.equals(receiver.list().get(i), expected.get(i)) : String.format("message %d differs", i);
+    }
+
+    /** More buffers than NioConnection can write at once are copied into a single buffer */
+    public void testSendMoreBuffersThanMaxSendBuffers(boolean nio) throws Exception {
+        setup(nio, 2);
+        ByteBuffer[] bufs=new ByteBuffer[5];
+        for(int i=0; i < bufs.length; i++)
+            bufs[i]=ByteBuffer.wrap(bytes(100, i));
+        byte[] expected=concat(bufs);
+        a.send(addr_b, bufs, expected.length);
+        receiver.waitFor(1);
+        assert Arrays.equals(receiver.list().get(0), expected);
+    }
+
+    protected void setup(boolean nio, int max_send_buffers) throws Exception {
+        a=create(nio, max_send_buffers);
+        b=create(nio, max_send_buffers);
+        b.readFramesIntoArray(true).receiver(receiver=new MyReceiver());
+        a.start();
+        b.start();
+        addr_b=b.localAddress();
+    }
+
+    protected static BaseServer create(boolean nio, int max_send_buffers) throws Exception {
+        int port=ResourceManager.getNextTcpPort(loopback);
+        if(!nio)
+            return new TcpServer(loopback, port);
+        NioServer server=new NioServer(loopback, port);
+        if(max_send_buffers > 0)
+            server.maxSendBuffers(max_send_buffers);
+        return server;
+    }
+
+    protected static byte[] bytes(int length, int start) {
+        byte[] buf=new byte[length];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)(start + i);
+        return buf;
+    }
+
+    protected static ByteBuffer direct(byte[] data) {
+        ByteBuffer buf=ByteBuffer.allocateDirect(data.length).put(data);
+        buf.flip();
+        return buf;
+    }
+
+    protected static byte[] concat(ByteBuffer[] bufs) {
+        int length=Arrays.stream(bufs).mapToInt(ByteBuffer::remaining).sum();
+        return Util.bufferToArray(bufs, length);
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<byte[]> list=new ArrayList<>();
+
+        public List<byte[]> list() {
+            synchronized(list) {
+                return new ArrayList<>(list);
+            }
+        }
+
+        public void receive(Address sender, byte[] data, int offset, int length) {
+            synchronized(list) {
+                list.add(Arrays.copyOfRange(data, offset, offset+length));
+            }
+        }
+
+        public void receive(Address sender, ByteBuffer buf) {
+            synchronized(list) {
+                list.add(Util.bufferToArray(buf));
+            }
+        }
+
+        protected void waitFor(int expected) throws Exception {
+            Util.waitUntil(5000, 100, () -> list().size() >= expected);
+            assert list().size() == expected : String.format("expected %d messages, but got %d", expected, list().size());
+        }
+    }
+}
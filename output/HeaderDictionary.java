@@ -0,0 +1,175 @@
+package org.jgroups.util;
+
+import org.jgroups.Header;
+import org.jgroups.conf.ClassConfigurator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps (protocol ID, magic ID) pairs of headers to 1-byte indices. Used to write the headers of a message list in
+ * compact form: the first time a pair occurs in a list, its (new) index is written, followed by the protocol and magic
+ * IDs; subsequent occurrences only write the index (1 byte instead of 4).<br/>
+ * The dictionary is built incrementally by writer and reader in the same order, so it doesn't need to be exchanged
+ * or negotiated between members; a new instance is used for every message list. When the dictionary is full, headers
+ * are written with the escape index {@link #FULL}, followed by the protocol and magic IDs.<br/>
+ * Headers for which a {@link Codec} has been registered are written relative to the previous header with the same
+ * index in the same list (e.g. as seqno delta). The dictionary also keeps the flags of the last message, so that
+ * identical flags of consecutive messages can be omitted.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class HeaderDictionary {
+    protected static final int FULL=255; // escape index: prot_id and magic_id follow and are not added
+    protected static volatile Codec<?>[] codecs=new Codec<?>[0]; // indexed by magic ID, copy-on-write
+    protected short[]          prot_ids=new short[8];
+    protected short[]          magic_ids=new short[8];
+    protected Header[]         last=new Header[8]; // the last header written or read for a given index
+    protected int              size;
+    protected int              last_flags=-1;      // flags of the last message, -1 if none
+
+
+    /**
+     * Writes and reads headers relative to the previous header with the same protocol and magic ID in the same
+     * message list. Must be registered by both sender and receiver (e.g. in the static initializer of a protocol)
+     */
+    public interface Codec<H extends Header> {
+        /** Writes hdr; prev is the previous header in the same list (null if hdr is the first) */
+        void write(H prev, H hdr, DataOutput out) throws IOException;
+
+        /** Reads a header written by {@link #write(Header,Header,DataOutput)} */
+        H read(H prev, DataInput in) throws IOException, ClassNotFoundException;
+    }
+
+
+    /** Registers a codec for headers with the given magic ID */
+    public static synchronized void register(short magic_id, Codec<?> codec) {
+        if(magic_id < 0)
+            throw new IllegalArgumentException("magic ID must not be negative: " + magic_id);
+        Codec<?>[] tmp=magic_id >= codecs.length? Arrays.copyOf(codecs, magic_id + 1) : codecs.clone();
+        tmp[magic_id]=codec;
+        codecs=tmp;
+    }
+
+    public int size() {return size;}
+
+    public HeaderDictionary clear() {
+        Arrays.fill(last, 0, size, null);
+        size=0;
+        last_flags=-1;
+        return this;
+    }
+
+    /** Returns true if the flags are the same as those of the previous message; remembers them otherwise */
+    public boolean sameFlags(short flags) {
+        if(last_flags == flags)
+            return true;
+        last_flags=flags;
+        return false;
+    }
+
+    /** Returns the flags of the previous message */
+    public short lastFlags() throws IOException {
+        if(last_flags < 0)
+            throw new IOException("flags of previous message are not available");
+        return (short)last_flags;
+    }
+
+    /** Sets the flags of the last message read */
+    public HeaderDictionary lastFlags(short flags) {
+        last_flags=flags;
+        return this;
+    }
+
+    /** Writes the protocol ID and the magic ID of a header, followed by the header itself */
+    public void writeHeader(Header hdr, DataOutput out) throws IOException {
+        short prot_id=hdr.getProtId(), magic_id=hdr.getMagicId();
+        int index=indexOf(prot_id, magic_id);
+        if(index >= 0)
+            out.writeByte(index);
+        else {
+            if(size < FULL) {
+                out.writeByte(index=size);
+                add(prot_id, magic_id);
+            }
+            else
+                out.writeByte(FULL);
+            out.writeShort(prot_id);
+            out.writeShort(magic_id);
+        }
+        Codec<Header> codec=codec(magic_id);
+        if(codec == null) {
+            hdr.writeTo(out);
+            return;
+        }
+        Header prev=index >= 0? last[index] : null;
+        codec.write(prev, hdr, out);
+        if(index >= 0)
+            last[index]=hdr;
+    }
+
+    /** Reads a header written by {@link #writeHeader(Header,DataOutput)} and sets its protocol ID */
+    public Header readHeader(DataInput in) throws IOException, ClassNotFoundException {
+        int index=in.readUnsignedByte();
+        short prot_id, magic_id;
+        if(index < size) {
+            prot_id=prot_ids[index];
+            magic_id=magic_ids[index];
+        }
+        else if(index == size || index == FULL) {
+            prot_id=in.readShort();
+            magic_id=in.readShort();
+            if(index == FULL)
+                index=-1;
+            else
+                add(prot_id, magic_id);
+        }
+        else
+            throw new IOException(String.format("header index %d is not in the dictionary (size: %d)", index, size));
+        Codec<Header> codec=codec(magic_id);
+        Header hdr;
+        if(codec == null) {
+            hdr=ClassConfigurator.create(magic_id);
+            hdr.readFrom(in);
+        }
+        else {
+            hdr=codec.read(index >= 0? last[index] : null, in);
+            if(index >= 0)
+                last[index]=hdr;
+        }
+        return hdr.setProtId(prot_id);
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < size; i++)
+            sb.append(i > 0? ", " : "").append(i).append(": ").append(prot_ids[i]).append("/").append(magic_ids[i]);
+        return sb.toString();
+    }
+
+    protected static Codec<Header> codec(short magic_id) {
+        Codec<?>[] tmp=codecs;
+        return magic_id >= 0 && magic_id < tmp.length? (Codec<Header>)tmp[magic_id] : null;
+    }
+
+    protected int indexOf(short prot_id, short magic_id) {
+        for(int i=0; i < size; i++)
+            if(prot_ids[i] == prot_id && magic_ids[i] == magic_id)
+                return i;
+        return -1;
+    }
+
+    protected void add(short prot_id, short magic_id) {
+        if(size == prot_ids.length) {
+            int new_len=Math.min(FULL, size * 2);
+            prot_ids=Arrays.copyOf(prot_ids, new_len);
+            magic_ids=Arrays.copyOf(magic_ids, new_len);
+            last=Arrays.copyOf(last, new_len);
+        }
+        prot_ids[size]=prot_id;
+        magic_ids[size]=magic_id;
+        size++;
+    }
+}
@@ -0,0 +1,114 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.UnicastHeader3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link HeaderDictionary} and message lists written with compact headers
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HeaderDictionaryTest {
+    protected static final short TP_ID=1, NAKACK2_ID=ClassConfigurator.getProtocolId(NAKACK2.class),
+      UNICAST3_ID=ClassConfigurator.getProtocolId(UNICAST3.class);
+    protected final Address      a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+
+    public void testWriteAndRead() throws Exception {
+        HeaderDictionary dict=new HeaderDictionary();
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+        for(int i=1; i <= 3; i++)
+            dict.writeHeader(NakAckHeader2.createMessageHeader(i).setProtId(NAKACK2_ID), out);
+        assert dict.size() == 1;
+
+        HeaderDictionary dict2=new HeaderDictionary();
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        for(int i=1; i <= 3; i++) {
+            NakAckHeader2 hdr=(NakAckHeader2)dict2.readHeader(in);
+            assert hdr.getProtId() == NAKACK2_ID;
+            assert hdr.getSeqno() == i;
+        }
+        assert dict2.size() == 1;
+    }
+
+    public void testSeqnoDeltas() throws Exception {
+        HeaderDictionary dict=new HeaderDictionary();
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+        long[] seqnos={1_000_000, 1_000_001, 1_000_002, 999_990, 2_000_000};
+        for(long seqno: seqnos) {
+            dict.writeHeader(NakAckHeader2.createMessageHeader(seqno).setProtId(NAKACK2_ID), out);
+            dict.writeHeader(UnicastHeader3.createDataHeader(seqno, (short)2, seqno == 999_990).setProtId(UNICAST3_ID), out);
+        }
+        dict.writeHeader(UnicastHeader3.createDataHeader(5, (short)3, true).setProtId(UNICAST3_ID), out);
+
+        HeaderDictionary dict2=new HeaderDictionary();
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        for(long seqno: seqnos) {
+            NakAckHeader2 hdr=(NakAckHeader2)dict2.readHeader(in);
+            UnicastHeader3 hdr2=(UnicastHeader3)dict2.readHeader(in);
+            assert hdr.getSeqno() == seqno && hdr2.seqno() == seqno;
+            assert hdr2.connId() == 2 && hdr2.first() == (seqno == 999_990);
+        }
+        UnicastHeader3 hdr=(UnicastHeader3)dict2.readHeader(in);
+        assert hdr.seqno() == 5 && hdr.connId() == 3 && hdr.first();
+        assert in.available() == 0;
+    }
+
+    public void testSameFlags() throws Exception {
+        List<Message> list=createMessages(5);
+        list.get(2).setFlag(Message.Flag.OOB);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(1024);
+        Util.writeMessageList(b, a, "cluster".getBytes(), list, out, false, TP_ID, true);
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        in.readShort(); // version
+        byte flags=in.readByte();
+        MessageBatch[] batches=Util.readMessageBatch(in, false, new DefaultMessageFactory(), new MessageBatch[4], null,
+                                                     Util.headerDictionary(flags));
+        assert batches[0].size() == 4 && batches[1].size() == 1;
+        assert batches[1].first().isFlagSet(Message.Flag.OOB);
+    }
+
+    public void testMessageListWithCompactHeaders() throws Exception {
+        List<Message> list=createMessages(10);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(1024), out2=new ByteArrayDataOutputStream(1024);
+        Util.writeMessageList(b, a, "cluster".getBytes(), list, out, false, TP_ID, false);
+        Util.writeMessageList(b, a, "cluster".getBytes(), list, out2, false, TP_ID, true);
+        assert out2.position() < out.position() : String.format("regular: %d bytes, compact: %d bytes", out.position(), out2.position());
+
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out2.buffer(), 0, out2.position());
+        in.readShort(); // version
+        byte flags=in.readByte();
+        assert (flags & TP.COMPACT_HEADERS) == TP.COMPACT_HEADERS;
+        MessageBatch[] batches=Util.readMessageBatch(in, false, new DefaultMessageFactory(), new MessageBatch[4], null,
+                                                     Util.headerDictionary(flags));
+        MessageBatch batch=batches[0];
+        assert batch.size() == 10;
+        int i=1;
+        for(Message msg: batch) {
+            NakAckHeader2 hdr=msg.getHeader(NAKACK2_ID);
+            UnicastHeader3 hdr2=msg.getHeader(UNICAST3_ID);
+            assert hdr.getSeqno() == i && hdr2.seqno() == i;
+            assert new String(msg.getArray(), msg.getOffset(), msg.getLength()).equals("msg-" + i);
+            i++;
+        }
+    }
+
+    protected List<Message> createMessages(int num) {
+        List<Message> list=new ArrayList<>(num);
+        for(int i=1; i <= num; i++)
+            list.add(new BytesMessage(b, ("msg-" + i).getBytes()).setSrc(a)
+                       .putHeader(NAKACK2_ID, NakAckHeader2.createMessageHeader(i))
+                       .putHeader(UNICAST3_ID, UnicastHeader3.createDataHeader(i, (short)1, i == 1)));
+        return list;
+    }
+}
@@ -4,6 +4,7 @@ import org.jgroups.*;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.protocols.SenderSendsBundler;
 import org.jgroups.protocols.TP;
+import org.jgroups.stack.ProtocolStack;
 import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterMethod;
@@ -63,6 +64,45 @@ public class HeadersResizeTest {
         assert receiver.num_transport_headers == 0;
     }
 
+    /** Messages sent through a stack are sized to the number of headers its protocols add, and are not resized */
+    public void testHeadersSizedByStack() throws Exception {
+        ProtocolStack stack=a.getProtocolStack();
+        Address dest=b.getAddress();
+        for(int i=0; i < 10; i++) // the transport records the number of headers added by the protocols
+            a.send(dest, i);
+        int num_headers=stack.getNumHeaders();
+        assert num_headers >= Util.DEFAULT_HEADERS;
+
+        ResizeCountingMessage msg=new ResizeCountingMessage(dest);
+        a.send(msg);
+        assert msg.getNumHeaders() > 0 && msg.getNumHeaders() <= num_headers;
+        assert msg.resizes == 0 : String.format("%d resizes (%d headers)", msg.resizes, num_headers);
+    }
+
+    /** The headers of a new message are allocated by the stack with its number of headers, so they're never copied */
+    public void testNoCopyOfNewMessage() throws Exception {
+        ProtocolStack stack=a.getProtocolStack();
+        stack.updateNumHeaders(Util.DEFAULT_HEADERS + 5);
+        ResizeCountingMessage msg=new ResizeCountingMessage(b.getAddress());
+        a.send(msg);
+        assert msg.capacity() >= Util.DEFAULT_HEADERS + 5;
+        assert msg.resizes == 0 : String.format("%d resizes (%d headers)", msg.resizes, stack.getNumHeaders());
+    }
+
+    /** Headers which were allocated before the message was sent and are too small are copied, which is a resize */
+    public void testCopyIsCountedAsResize() throws Exception {
+        ProtocolStack stack=a.getProtocolStack();
+        stack.updateNumHeaders(Util.DEFAULT_HEADERS + 5);
+        ResizeCountingMessage msg=new ResizeCountingMessage(b.getAddress());
+        msg.sizeHeaders(Util.DEFAULT_HEADERS); // allocates the headers
+        assert msg.resizes == 0;
+        long resizes=BaseMessage.headerResizes();
+        a.send(msg);
+        assert msg.capacity() >= Util.DEFAULT_HEADERS + 5;
+        assert msg.resizes == 1 : String.format("%d resizes (%d headers)", msg.resizes, stack.getNumHeaders());
+        assert BaseMessage.headerResizes() > resizes;
+    }
+
 
     protected static class BatchingBundler extends SenderSendsBundler {
         protected boolean             queue;
@@ -88,6 +128,36 @@ public class HeadersResizeTest {
         }
     }
 
+    /** Counts the resizes of its headers: allocating the headers of a new message is not a resize */
+    protected static class ResizeCountingMessage extends BytesMessage {
+        protected int resizes;
+
+        protected ResizeCountingMessage(Address dest) {
+            super(dest, "hello");
+        }
+
+        protected int capacity() {return headers.length;}
+
+        public Message putHeader(short id, Header hdr) {
+            Header[] old_headers=headers;
+            super.putHeader(id, hdr);
+            check(old_headers);
+            return this;
+        }
+
+        public Message sizeHeaders(int num_headers) {
+            Header[] old_headers=headers;
+            super.sizeHeaders(num_headers);
+            check(old_headers);
+            return this;
+        }
+
+        protected void check(Header[] old_headers) {
+            if(old_headers != null && old_headers.length > 0 && headers != old_headers)
+                resizes++;
+        }
+    }
+
     protected static class MyReceiver implements Receiver {
         protected int num_msgs, num_transport_headers;
 
@@ -0,0 +1,56 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. latencies) with logarithmic buckets: bucket i counts the values
+ * whose highest set bit is bit i-1, i.e. values in [2^(i-1) .. 2^i -1]. Percentiles are approximated by the upper bound
+ * of the bucket they fall into (capped by the max value), so they are accurate to within a factor of 2.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class Histogram {
+    protected final AtomicLongArray buckets=new AtomicLongArray(Long.SIZE + 1);
+    protected final LongAdder       count=new LongAdder();
+    protected final LongAccumulator max=new LongAccumulator(Math::max, 0);
+
+    public Histogram add(long value) {
+        int index=value <= 0? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+        buckets.incrementAndGet(index);
+        count.increment();
+        max.accumulate(value);
+        return this;
+    }
+
+    public long count() {return count.sum();}
+    public long max()   {return max.get();}
+
+    /** Returns the (approximated) value below which the given percentage (0-100) of all values fall, 0 if empty */
+    public long percentile(double percentage) {
+        long total=count.sum();
+        if(total == 0)
+            return 0;
+        long rank=Math.max(1, (long)Math.ceil(total * percentage / 100.0)), seen=0, highest=max.get();
+        for(int i=0; i < buckets.length(); i++) {
+            seen+=buckets.get(i);
+            if(seen >= rank)
+                return i == 0? 0 : i >= Long.SIZE - 1? highest : Math.min(highest, (1L << i) - 1);
+        }
+        return highest;
+    }
+
+    public Histogram clear() {
+        for(int i=0; i < buckets.length(); i++)
+            buckets.set(i, 0);
+        count.reset();
+        max.reset();
+        return this;
+    }
+
+    public String toString() {
+        return String.format("count=%d, p50=%d, p90=%d, p99=%d, max=%d",
+                             count(), percentile(50), percentile(90), percentile(99), max());
+    }
+}
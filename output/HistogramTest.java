@@ -0,0 +1,38 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Histogram;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Histogram}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HistogramTest {
+
+    public void testEmpty() {
+        Histogram h=new Histogram();
+        assert h.count() == 0 && h.percentile(99) == 0 && h.max() == 0;
+    }
+
+    public void testPercentiles() {
+        Histogram h=new Histogram();
+        for(int i=1; i <= 99; i++)
+            h.add(10);
+        h.add(5000);
+        assert h.count() == 100 && h.max() == 5000;
+        long p50=h.percentile(50);
+        assert p50 >= 10 && p50 < 20; // within a factor of 2
+        assert h.percentile(99) == p50;
+        assert h.percentile(100) == 5000;
+    }
+
+    public void testClear() {
+        Histogram h=new Histogram().add(0).add(1).add(Long.MAX_VALUE);
+        assert h.count() == 3 && h.percentile(100) == Long.MAX_VALUE;
+        h.clear();
+        assert h.count() == 0 && h.max() == 0;
+    }
+}
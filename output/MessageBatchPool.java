@@ -0,0 +1,89 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of {@link MessageBatch}es, used by the transport to avoid allocating new batches (and their message
+ * arrays) for every received message list.<br/>
+ * Ownership: a batch acquired from the pool is owned by the thread processing it. Ownership is transferred when a
+ * batch is handed to a different thread (e.g. a thread pool). The last owner calls {@link #release(MessageBatch)}
+ * after the batch has been passed up the stack, or after its messages have been copied to a different batch.
+ * Protocols and applications must therefore not hold on to a batch received in {@code up(MessageBatch)} after the
+ * call returned (the messages themselves can be retained). A batch which is not released is simply garbage collected.
+ * <br/>
+ * The pool only takes back batches it created: {@link #release(MessageBatch)} ignores all other batches (e.g. batches
+ * created by a message processing policy), and batches which have already been released. Policies which keep using
+ * a batch after passing it up (e.g. the delivery loop of {@link MaxOneThreadPerSender}) never release it.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class MessageBatchPool {
+    protected final BlockingQueue<PooledBatch>  pool;
+    protected final LongAdder                   created=new LongAdder(), reused=new LongAdder();
+
+    public MessageBatchPool(int capacity) {
+        pool=new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int  size()    {return pool.size();}
+    public long created() {return created.sum();}
+    public long reused()  {return reused.sum();}
+
+    /** Returns a batch from the pool (or a new one if the pool is empty), initialized with the given values */
+    public MessageBatch acquire(Address dest, Address sender, AsciiString cluster_name, boolean multicast,
+                                MessageBatch.Mode mode, int capacity) {
+        PooledBatch batch=pool.poll();
+        if(batch == null) {
+            created.increment();
+            return new PooledBatch(this, dest, sender, cluster_name, multicast, mode, capacity);
+        }
+        reused.increment();
+        batch.in_pool.set(false);
+        return batch.setDest(dest).setSender(sender).setClusterName(cluster_name).multicast(multicast).setMode(mode);
+    }
+
+    /**
+     * Clears the batch and returns it to the pool. The caller must not access the batch afterwards. Batches not
+     * created by this pool, or already released, are ignored
+     */
+    public void release(MessageBatch batch) {
+        if(!(batch instanceof PooledBatch))
+            return;
+        PooledBatch b=(PooledBatch)batch;
+        if(b.pool != this || !b.in_pool.compareAndSet(false, true))
+            return;
+        b.clear(); // null the messages, so they can be garbage collected
+        pool.offer(b);
+    }
+
+    /** Returns true if batch was acquired from this pool and has not yet been released */
+    public boolean owns(MessageBatch batch) {
+        return batch instanceof PooledBatch && ((PooledBatch)batch).pool == this && !((PooledBatch)batch).in_pool.get();
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+
+    public String toString() {
+        return String.format("size=%d, created=%d, reused=%d", pool.size(), created.sum(), reused.sum());
+    }
+
+
+    /** A batch created by a pool; in_pool prevents a batch from being released more than once */
+    protected static class PooledBatch extends MessageBatch {
+        protected final MessageBatchPool pool;
+        protected final AtomicBoolean    in_pool=new AtomicBoolean();
+
+        protected PooledBatch(MessageBatchPool pool, Address dest, Address sender, AsciiString cluster_name,
+                              boolean multicast, Mode mode, int capacity) {
+            super(dest, sender, cluster_name, multicast, mode, capacity);
+            this.pool=pool;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Tests delivery of messages with pooled {@link MessageBatch}es (message_batch_pool_size > 0) and the different
+ * message processing policies, e.g. {@link org.jgroups.util.MaxOneThreadPerSender}, which reuses the batch it was
+ * handed: messages must be delivered exactly once and in order
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="createPolicy")
+public class MessageBatchPoolDeliveryTest {
+    protected JChannel                a, b, c;
+    protected MyReceiver              ra, rb, rc;
+    protected static final int        NUM=2000;
+
+    @DataProvider
+    static Object[][] createPolicy() {
+        return new Object[][]{{"max"}, {"submit"}};
+    }
+
+    @BeforeMethod protected void setup() {
+        ra=new MyReceiver(); rb=new MyReceiver(); rc=new MyReceiver();
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    public void testDelivery(String policy) throws Exception {
+        a=create("A", policy);
+        a.setReceiver(ra);
+        a.connect(getClass().getSimpleName());
+        b=create("B", policy);
+        b.setReceiver(rb);
+        b.connect(getClass().getSimpleName());
+        c=create("C", policy);
+        c.setReceiver(rc);
+        c.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+
+        List<Thread> senders=new ArrayList<>();
+        List<Throwable> send_failures=new CopyOnWriteArrayList<>();
+        for(JChannel ch: new JChannel[]{a, b, c}) {
+            Thread t=new Thread(() -> {
+                try {
+                    for(int i=1; i <= NUM; i++)
+                        ch.send(null, i);
+                }
+                catch(Exception e) {
+                    send_failures.add(e);
+                }
+            });
+            senders.add(t);
+            t.start();
+        }
+        for(Thread t: senders)
+            t.join(30000);
+        assert send_failures.isEmpty() : String.format("sending failed: %s", send_failures);
+        Util.waitUntil(20000, 200, () -> Stream.of(ra, rb, rc).allMatch(r -> r.count.get() == NUM * 3),
+                       () -> String.format("A: %s, B: %s, C: %s", ra, rb, rc));
+        for(MyReceiver r: new MyReceiver[]{ra, rb, rc})
+            assert r.errors.sum() == 0 : r;
+    }
+
+    protected static JChannel create(String name, String policy) throws Exception {
+        SHARED_LOOPBACK tp=new SHARED_LOOPBACK();
+        tp.setMessageBatchPoolSize(16);
+        tp.setMessageProcessingPolicy(policy);
+        return new JChannel(tp,
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+
+    /** Checks that the messages from each sender are received in order and exactly once */
+    protected static class MyReceiver implements Receiver {
+        protected final Map<Address,Integer> last=new ConcurrentHashMap<>();
+        protected final AtomicInteger        count=new AtomicInteger();
+        protected final LongAdder            errors=new LongAdder();
+
+        public void receive(Message msg) {
+            int num=msg.getObject();
+            Integer prev=last.put(msg.getSrc(), num);
+            if((prev == null && num != 1) || (prev != null && num != prev + 1))
+                errors.increment();
+            count.incrementAndGet();
+        }
+
+        public void receive(MessageBatch batch) {
+            synchronized(this) {
+                for(Message msg: batch)
+                    receive(msg);
+            }
+        }
+
+        public String toString() {
+            return String.format("%d msgs, %d errors", count.get(), errors.sum());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link MessageBatchPool} and reading message lists into pooled batches
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class MessageBatchPoolTest {
+    protected static final short TP_ID=1;
+    protected final Address      a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+
+    public void testAcquireAndRelease() {
+        MessageBatchPool pool=new MessageBatchPool(2);
+        MessageBatch batch=pool.acquire(b, a, new AsciiString("cluster"), false, MessageBatch.Mode.REG, 4);
+        batch.add(new EmptyMessage(b));
+        assert pool.created() == 1 && pool.size() == 0;
+        pool.release(batch);
+        assert pool.size() == 1 && batch.isEmpty();
+
+        MessageBatch batch2=pool.acquire(null, b, null, true, MessageBatch.Mode.OOB, 4);
+        assert batch2 == batch;
+        assert pool.reused() == 1;
+        assert batch2.dest() == null && batch2.sender().equals(b) && batch2.multicast();
+        assert batch2.getMode() == MessageBatch.Mode.OOB;
+    }
+
+    public void testPoolIsBounded() {
+        MessageBatchPool pool=new MessageBatchPool(1);
+        MessageBatch b1=pool.acquire(b, a, null, false, MessageBatch.Mode.REG, 4),
+          b2=pool.acquire(b, a, null, false, MessageBatch.Mode.REG, 4);
+        pool.release(b1);
+        pool.release(b2);
+        assert pool.size() == 1;
+    }
+
+    /** Batches not created by the pool (e.g. by a message processing policy) are not added to the pool */
+    public void testReleaseOfForeignBatch() {
+        MessageBatchPool pool=new MessageBatchPool(2), other=new MessageBatchPool(2);
+        MessageBatch batch=new MessageBatch(4);
+        batch.add(new EmptyMessage(b));
+        pool.release(batch);
+        assert pool.size() == 0 && batch.size() == 1;
+        MessageBatch batch2=other.acquire(b, a, null, false, MessageBatch.Mode.REG, 4);
+        pool.release(batch2);
+        assert pool.size() == 0 && other.owns(batch2);
+    }
+
+    public void testDoubleRelease() {
+        MessageBatchPool pool=new MessageBatchPool(2);
+        MessageBatch batch=pool.acquire(b, a, null, false, MessageBatch.Mode.REG, 4);
+        assert pool.owns(batch);
+        pool.release(batch);
+        pool.release(batch);
+        assert pool.size() == 1 && !pool.owns(batch);
+        MessageBatch b1=pool.acquire(b, a, null, false, MessageBatch.Mode.REG, 4),
+          b2=pool.acquire(b, a, null, false, MessageBatch.Mode.REG, 4);
+        assert b1 != b2 : "batch was handed out twice";
+    }
+
+    public void testReadMessageBatchIntoPooledBatches() throws Exception {
+        List<Message> list=new ArrayList<>();
+        for(int i=1; i <= 6; i++) {
+            Message msg=new BytesMessage(b, ("hello-" + i).getBytes()).setSrc(a);
+            if(i % 2 == 0)
+                msg.setFlag(Message.Flag.OOB);
+            list.add(msg);
+        }
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(512);
+        Util.writeMessageList(b, a, "cluster".getBytes(), list, out, false, TP_ID);
+
+        MessageBatchPool pool=new MessageBatchPool(4);
+        MessageBatch[] batches=new MessageBatch[4];
+        for(int i=0; i < 2; i++) {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+            in.readShort(); // version
+            in.readByte();  // flags
+            Util.readMessageBatch(in, false, new DefaultMessageFactory(), batches, pool);
+            assert batches[0].size() == 3 && batches[1].size() == 3;
+            assert batches[2] == null && batches[3] == null;
+            assert batches[0].clusterName().equals(new AsciiString("cluster"));
+            pool.release(batches[0]);
+            pool.release(batches[1]);
+        }
+        assert pool.created() == 2 && pool.reused() == 2;
+    }
+}
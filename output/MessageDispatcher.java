@@ -42,7 +42,9 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     protected Receiver                              receiver;
     protected RequestHandler                        req_handler;
     protected boolean                               async_dispatching;
+    protected boolean                               virtual_threads;
     protected boolean                               wrap_exceptions;
+    protected long                                  xmit_interval;
     protected ProtocolAdapter                       prot_adapter;
     protected volatile Collection<Address>          members=new HashSet<>();
     protected Address                               local_addr;
@@ -86,8 +88,10 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     public RequestCorrelator correlator()                 {return corr;}
     public boolean           getAsyncDispatching()        {return async_dispatching;}
     public boolean           asyncDispatching()           {return async_dispatching;}
+    public boolean           virtualThreads()             {return virtual_threads;}
     public boolean           getWrapExceptions()          {return wrap_exceptions;}
     public boolean           wrapExceptions()             {return wrap_exceptions;}
+    public long              xmitInterval()               {return xmit_interval;}
     public UpHandler         getProtocolAdapter()         {return prot_adapter;}
     public UpHandler         protocolAdapter()            {return prot_adapter;}
     public RpcStats          getRpcStats()                {return rpc_stats;}
@@ -117,7 +121,8 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
             return (X)this;
         stop();
         this.corr=c;
-        corr.asyncDispatching(this.async_dispatching).wrapExceptions(this.wrap_exceptions);
+        corr.asyncDispatching(this.async_dispatching).wrapExceptions(this.wrap_exceptions)
+          .virtualThreads(this.virtual_threads).xmitInterval(this.xmit_interval);
         start();
         return (X)this;
     }
@@ -140,6 +145,25 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
         return (X)this;
     }
 
+    /** Handles OOB requests in separate virtual threads, see {@link RequestCorrelator#virtualThreads(boolean)} */
+    public <X extends MessageDispatcher> X virtualThreads(boolean flag) {
+        virtual_threads=flag;
+        if(corr != null)
+            corr.virtualThreads(flag);
+        return (X)this;
+    }
+
+    /**
+     * Sets the interval (ms) at which sync unicast RPCs with flag {@link Message.Flag#NO_RELIABILITY} are resent until
+     * a response has been received, see {@link RequestCorrelator#xmitInterval(long)}. 0 disables resending
+     */
+    public <X extends MessageDispatcher> X xmitInterval(long interval) {
+        xmit_interval=interval;
+        if(corr != null)
+            corr.xmitInterval(interval);
+        return (X)this;
+    }
+
     public <X extends MessageDispatcher> X setWrapExceptions(boolean flag) {return wrapExceptions(flag);}
     public <X extends MessageDispatcher> X wrapExceptions(boolean flag) {
         wrap_exceptions=flag;
@@ -158,7 +182,8 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
     public <X extends MessageDispatcher> X start() {
         if(corr == null)
             corr=createRequestCorrelator(prot_adapter, this, local_addr)
-              .asyncDispatching(async_dispatching).wrapExceptions(this.wrap_exceptions);
+              .asyncDispatching(async_dispatching).wrapExceptions(this.wrap_exceptions).virtualThreads(virtual_threads)
+              .xmitInterval(xmit_interval);
         corr.start();
 
         if(channel != null) {
@@ -167,6 +192,7 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
             if(channel instanceof JChannel) {
                 TP transport=channel.getProtocolStack().getTransport();
                 corr.registerProbeHandler(transport);
+                corr.timer(transport.getTimer()).threadPool(transport.getThreadPool());
             }
         }
         return (X)this;
@@ -3,14 +3,19 @@ package org.jgroups.protocols.pbcast;
 import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.conf.AttributeType;
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.protocols.TCP;
 import org.jgroups.protocols.TP;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -22,6 +27,7 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
@@ -106,6 +112,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "is compacted (only for experts)",writable=false,type=AttributeType.TIME)
     protected long    xmit_table_max_compaction_time=10000;
 
+    @Property(description="If true, a lock-free ring (RingTable) is used as retransmission table instead of a matrix " +
+      "(Table). The initial capacity of the ring is xmit_table_msgs_per_row; it doubles when full",writable=false)
+    protected boolean xmit_table_ring;
+
     @Property(description="Size of the queue to hold messages received after creating the channel, but before being " +
       "connected (is_server=false). After becoming the server, the messages in the queue are fed into up() and the " +
       "queue is cleared. The motivation is to avoid retransmissions (see https://issues.jboss.org/browse/JGRP-1509 " +
@@ -129,6 +139,39 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @Property(description="Max number of times the last seqno is resent before acquiescing if last seqno isn't incremented")
     protected int     resend_last_seqno_max_times=1;
 
+    @Property(description="Max number of messages removed from a retransmission table and delivered as a single batch. " +
+      "0 delivers all deliverable messages in one batch",type=AttributeType.SCALAR)
+    protected int     max_delivery_batch_size;
+
+    @Property(description="Max time (ms) a thread delivers messages from the same sender before the delivery yields: " +
+      "it is queued behind the deliveries of other senders which exceeded max_delivery_time, and these take turns, " +
+      "so a high-rate sender cannot monopolize a delivery thread. 0 disables this",type=AttributeType.TIME)
+    protected long    max_delivery_time;
+
+    @Property(description="If true, the serialized form of sent messages is kept in off-heap memory for retransmission, " +
+      "and sent messages are removed from the retransmission table as soon as they have been delivered locally. " +
+      "Retransmitted messages are re-created from their serialized form",writable=false)
+    protected boolean xmit_buffer_off_heap;
+
+    @Property(description="Size of the chunks of off-heap memory allocated when xmit_buffer_off_heap is true",
+      type=AttributeType.BYTES,writable=false)
+    protected int     xmit_buffer_chunk_size=1 << 20;
+
+    @Property(description="If true, retransmit requests carry the missing seqnos as ranges (or a bitmap, whichever " +
+      "is smaller) rather than as a SeqnoList. Large gaps are then requested with a few bytes. Requests in either " +
+      "format are always accepted, but all members need to understand the range format before this is enabled")
+    protected boolean xmit_req_ranges;
+
+    @Property(description="Time (ms) during which retransmit requests for the same messages are collected before " +
+      "being answered. Each requested message is sent only once per window, regardless of the number of requesters. " +
+      "0 disables this and answers every retransmit request immediately",type=AttributeType.TIME)
+    protected long    xmit_coalesce_window;
+
+    @Property(description="Min number of members requesting the same message in a coalescing window for the message " +
+      "to be retransmitted as a single multicast; fewer requesters get unicast responses. Only used when " +
+      "use_mcast_xmit is true and xmit_coalesce_window > 0")
+    protected int     mcast_xmit_threshold=1;
+
     @ManagedAttribute(description="True if sending a message can block at the transport level")
     protected boolean sends_can_block=true;
 
@@ -159,10 +202,31 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return true;
     };
 
+    static {
+        HeaderDictionary.register(ClassConfigurator.getMagicNumber(NakAckHeader2.class), new SeqnoCodec());
+        SeqnoRanges.register();
+    }
+
 
     @ManagedAttribute(description="Number of retransmit requests received",type=AttributeType.SCALAR)
     protected final LongAdder xmit_reqs_received=new LongAdder();
 
+    @ManagedAttribute(description="Number of times the delivery of messages from a sender yielded to other senders " +
+      "because max_delivery_time was exceeded",type=AttributeType.SCALAR)
+    protected final LongAdder num_delivery_yields=new LongAdder();
+
+    /**
+     * Deliveries which exceeded max_delivery_time and still have messages to deliver. A delivery holds the adders of
+     * its sender, so at most one thread runs it; threads which yielded run the queued deliveries in FIFO order
+     */
+    protected final Queue<BooleanSupplier> yielded_deliveries=new ConcurrentLinkedQueue<>();
+
+    /** Delivery latencies (us) per sender: time between the addition of the first message of a batch and its delivery */
+    protected final Map<Address,Histogram> delivery_latencies=Util.createConcurrentMap();
+
+    /** Time (ns) at which the oldest undelivered regular message from a sender was added (0 if none); stats only */
+    protected final Map<Address,AtomicLong> first_added=Util.createConcurrentMap();
+
     @ManagedAttribute(description="Number of retransmit requests sent",type=AttributeType.SCALAR)
     protected final LongAdder xmit_reqs_sent=new LongAdder();
 
@@ -172,6 +236,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @ManagedAttribute(description="Number of retransmit responses sent",type=AttributeType.SCALAR)
     protected final LongAdder xmit_rsps_sent=new LongAdder();
 
+    @ManagedAttribute(description="Number of requested messages which were not retransmitted because a retransmission " +
+      "of the same message was already pending in the current coalescing window",type=AttributeType.SCALAR)
+    protected final LongAdder xmit_reqs_coalesced=new LongAdder();
+
+    @ManagedAttribute(description="Number of coalesced retransmit requests answered with a single multicast",
+      type=AttributeType.SCALAR)
+    protected final LongAdder mcast_xmit_rsps_sent=new LongAdder();
+
     @ManagedAttribute(description="Is the retransmit task running")
     public boolean isXmitTaskRunning() {return xmit_task != null && !xmit_task.isDone();}
 
@@ -216,13 +288,28 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     private final AtomicLong            seqno=new AtomicLong(0); // current message sequence number (starts with 1)
 
     /** Map to store sent and received messages (keyed by sender) */
-    protected final ConcurrentMap<Address,Table<Message>> xmit_table=Util.createConcurrentMap();
+    protected final ConcurrentMap<Address,Buffer<Message>> xmit_table=Util.createConcurrentMap();
+
+    /**
+     * The number of bytes of the messages in xmit_table. Incremented when a message is added, decremented when it is
+     * removed on delivery, and set to the exact value (computed by {@link #getSizeOfAllMessages()}) after messages
+     * have been purged or members removed
+     */
+    protected final AtomicLong          retained_bytes=new AtomicLong();
+
+    /** Serialized sent messages, used for retransmission; null unless xmit_buffer_off_heap is true */
+    protected OffHeapMessageBuffer      xmit_buffer;
 
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>                 xmit_task;
     /** Used by the retransmit task to keep the last retransmitted seqno per sender (https://issues.jboss.org/browse/JGRP-1539) */
     protected final Map<Address,Long>   xmit_task_map=new ConcurrentHashMap<>();
 
+    /** Retransmit requests collected in the current coalescing window: original sender -> seqno -> requesters */
+    protected final Map<Address,SortedMap<Long,Set<Address>>> pending_xmit_reqs=new HashMap<>();
+
+    protected Future<?>                 xmit_coalesce_task; // flushes pending_xmit_reqs, guarded by pending_xmit_reqs
+
     protected volatile boolean          leaving=false;
     protected volatile boolean          running=false;
     protected TimeScheduler             timer=null;
@@ -252,6 +339,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     public long    getXmitRequestsSent()                   {return xmit_reqs_sent.sum();}
     public long    getXmitResponsesReceived()              {return xmit_rsps_received.sum();}
     public long    getXmitResponsesSent()                  {return xmit_rsps_sent.sum();}
+    public long    getNumDeliveryYields()                  {return num_delivery_yields.sum();}
     public boolean useMcastXmit()                          {return use_mcast_xmit;}
     public NAKACK2 useMcastXmit(boolean u)                 {this.use_mcast_xmit=u; return this;}
     public boolean useMcastXmitReq()                       {return use_mcast_xmit_req;}
@@ -293,6 +381,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     public long getXmitTableMaxCompactionTime() {return xmit_table_max_compaction_time;}
     public NAKACK2 setXmitTableMaxCompactionTime(long x) {this.xmit_table_max_compaction_time=x; return this;}
+    public boolean xmitTableRing() {return xmit_table_ring;}
+    public NAKACK2 xmitTableRing(boolean r) {this.xmit_table_ring=r; return this;}
+
+    public int getMaxDeliveryBatchSize() {return max_delivery_batch_size;}
+    public NAKACK2 setMaxDeliveryBatchSize(int m) {this.max_delivery_batch_size=m; return this;}
+
+    public long getMaxDeliveryTime() {return max_delivery_time;}
+    public NAKACK2 setMaxDeliveryTime(long t) {this.max_delivery_time=t; return this;}
+
+    public boolean xmitReqRanges() {return xmit_req_ranges;}
+    public NAKACK2 xmitReqRanges(boolean r) {this.xmit_req_ranges=r; return this;}
+
+    public long getXmitCoalesceWindow() {return xmit_coalesce_window;}
+    public NAKACK2 setXmitCoalesceWindow(long w) {this.xmit_coalesce_window=w; return this;}
+
+    public int getMcastXmitThreshold() {return mcast_xmit_threshold;}
+    public NAKACK2 setMcastXmitThreshold(int t) {this.mcast_xmit_threshold=t; return this;}
 
     public int getBecomeServerQueueSize() {return become_server_queue_size;}
     public NAKACK2 setBecomeServerQueueSize(int b) {this.become_server_queue_size=b; return this;}
@@ -327,7 +432,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
     /** Returns the receive window for sender; only used for testing. Do not use ! */
-    public Table<Message> getWindow(Address sender) {
+    public Buffer<Message> getWindow(Address sender) {
         return xmit_table.get(sender);
     }
 
@@ -339,7 +444,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @ManagedAttribute(description="Total number of undelivered messages in all retransmit buffers",type=AttributeType.SCALAR)
     public int getXmitTableUndeliveredMsgs() {
         int num=0;
-        for(Table<Message> buf: xmit_table.values())
+        for(Buffer<Message> buf: xmit_table.values())
             num+=buf.size();
         return num;
     }
@@ -348,21 +453,21 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       ,type=AttributeType.SCALAR)
     public int getXmitTableMissingMessages() {
         int num=0;
-        for(Table<Message> buf: xmit_table.values())
+        for(Buffer<Message> buf: xmit_table.values())
             num+=buf.getNumMissing();
         return num;
     }
 
     @ManagedAttribute(description="Capacity of the retransmit buffer. Computed as xmit_table_num_rows * xmit_table_msgs_per_row")
     public long getXmitTableCapacity() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.capacity() : 0;
     }
 
     @ManagedAttribute(description="Prints the number of rows currently allocated in the matrix. This value will not " +
       "be lower than xmit_table_now_rows")
     public int getXmitTableNumCurrentRows() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.getNumRows() : 0;
     }
 
@@ -370,50 +475,64 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "To compute the size, Message.getLength() is used",type=AttributeType.BYTES)
     public long getSizeOfAllMessages() {
         long retval=0;
-        for(Table<Message> buf: xmit_table.values())
+        for(Buffer<Message> buf: xmit_table.values())
             retval+=sizeOfAllMessages(buf,false);
         return retval;
     }
 
+    @ManagedAttribute(description="Number of bytes of the messages retained in all retransmit buffers. Unlike " +
+      "size_of_all_messages, this is maintained incrementally (and may be slightly higher)",type=AttributeType.BYTES)
+    public long getRetainedBytes() {return retained_bytes.get();}
+
     @ManagedAttribute(description="Returns the number of bytes of all messages in all retransmit buffers. " +
       "To compute the size, Message.size() is used",type=AttributeType.BYTES)
     public long getSizeOfAllMessagesInclHeaders() {
         long retval=0;
-        for(Table<Message> buf: xmit_table.values())
+        for(Buffer<Message> buf: xmit_table.values())
             retval+=sizeOfAllMessages(buf, true);
         return retval;
     }
 
+    @ManagedAttribute(description="Number of sent messages in the off-heap retransmission buffer",type=AttributeType.SCALAR)
+    public int getOffHeapMessages() {return xmit_buffer != null? xmit_buffer.size() : 0;}
+
+    @ManagedAttribute(description="Number of bytes of the sent messages in the off-heap retransmission buffer",
+      type=AttributeType.BYTES)
+    public long getOffHeapBytes() {return xmit_buffer != null? xmit_buffer.bytes() : 0;}
+
+    @ManagedAttribute(description="Off-heap memory allocated by the retransmission buffer",type=AttributeType.BYTES)
+    public long getOffHeapCapacity() {return xmit_buffer != null? xmit_buffer.capacity() : 0;}
+
     @ManagedAttribute(description="Number of retransmit table compactions")
     public int getXmitTableNumCompactions() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.getNumCompactions() : 0;
     }
 
     @ManagedAttribute(description="Number of retransmit table moves")
     public int getXmitTableNumMoves() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.getNumMoves() : 0;
     }
 
     @ManagedAttribute(description="Number of retransmit table resizes")
     public int getXmitTableNumResizes() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.getNumResizes(): 0;
     }
 
     @ManagedAttribute(description="Number of retransmit table purges")
     public int getXmitTableNumPurges() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         return table != null? table.getNumPurges(): 0;
     }
 
     @ManagedOperation(description="Prints the contents of the receiver windows for all members")
     public String printMessages() {
         StringBuilder ret=new StringBuilder(local_addr + ":\n");
-        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
+        for(Map.Entry<Address,Buffer<Message>> entry: xmit_table.entrySet()) {
             Address addr=entry.getKey();
-            Table<Message> buf=entry.getValue();
+            Buffer<Message> buf=entry.getValue();
             ret.append(addr).append(": ").append(buf.toString()).append('\n');
         }
         return ret.toString();
@@ -421,6 +540,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     @ManagedAttribute public long getCurrentSeqno() {return seqno.get();}
 
+    @ManagedOperation(description="Prints the delivery latencies (us) per sender (requires stats to be enabled)")
+    public String printDeliveryLatencies() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Histogram> entry: delivery_latencies.entrySet())
+            sb.append(String.format("%s: %s\n", entry.getKey(), entry.getValue()));
+        return sb.toString();
+    }
+
     @ManagedOperation(description="Prints the stability messages received")
     public String printStabilityMessages() {
         return Util.printListWithDelimiter(stability_msgs, "\n");
@@ -436,7 +563,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     @ManagedOperation(description="Compacts the retransmit buffer")
     public void compact() {
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         if(table != null)
             table.compact();
     }
@@ -445,7 +572,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "This value will not be lower than xmit_table_now_rows")
     public String dumpXmitTablesNumCurrentRows() {
         StringBuilder sb=new StringBuilder();
-        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet())
+        for(Map.Entry<Address,Buffer<Message>> entry: xmit_table.entrySet())
             sb.append(String.format("%s: %d\n", entry.getKey(), entry.getValue().getNumRows()));
         return sb.toString();
     }
@@ -457,9 +584,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         xmit_reqs_sent.reset();
         xmit_rsps_received.reset();
         xmit_rsps_sent.reset();
+        xmit_reqs_coalesced.reset();
+        mcast_xmit_rsps_sent.reset();
+        num_delivery_yields.reset();
+        delivery_latencies.clear();
+        first_added.clear();
         stability_msgs.clear();
         digest_history.clear();
-        Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
+        Buffer<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         if(table != null)
             table.resetStats();
     }
@@ -502,6 +634,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         if(resend_last_seqno)
             setResendLastSeqno(resend_last_seqno);
+        if(xmit_buffer_off_heap)
+            xmit_buffer=new OffHeapMessageBuffer(xmit_buffer_chunk_size);
     }
 
 
@@ -528,6 +662,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             become_server_queue.clear();
         stopRetransmitTask();
         xmit_task_map.clear();
+        synchronized(pending_xmit_reqs) {
+            if(xmit_coalesce_task != null)
+                xmit_coalesce_task.cancel(false);
+            xmit_coalesce_task=null;
+            pending_xmit_reqs.clear();
+        }
         reset();
     }
 
@@ -661,7 +801,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
             case NakAckHeader2.XMIT_REQ:
                 try {
-                    SeqnoList missing=msg.getObject();
+                    Iterable<Long> missing=msg.getObject(); // a SeqnoList or a SeqnoRanges
                     if(missing != null)
                         handleXmitReq(msg.getSrc(), missing, hdr.sender);
                 }
@@ -709,7 +849,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     break;
                 case NakAckHeader2.XMIT_REQ:
                     try {
-                        SeqnoList missing=msg.getObject();
+                        Iterable<Long> missing=msg.getObject(); // a SeqnoList or a SeqnoRanges
                         if(missing != null)
                             handleXmitReq(msg.getSrc(), missing, hdr.sender);
                     }
@@ -807,7 +947,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
 
         long msg_id;
-        Table<Message> buf=xmit_table.get(local_addr);
+        Buffer<Message> buf=xmit_table.get(local_addr);
         if(buf == null) // discard message if there is no entry for local_addr
             return;
 
@@ -820,7 +960,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         do {
             try {
                 msg.putHeader(this.id, NakAckHeader2.createMessageHeader(msg_id));
-                buf.add(msg_id, msg, dont_loopback_set? dont_loopback_filter : null);
+                if(buf.add(msg_id, msg, dont_loopback_set? dont_loopback_filter : null))
+                    retained_bytes.addAndGet(msg.getLength());
                 break;
             }
             catch(Throwable t) {
@@ -832,6 +973,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
         while(running);
 
+        if(xmit_buffer != null)
+            storeOffHeap(msg_id, msg);
+
         // moved down_prot.down() out of synchronized clause (bela Sept 7 2006) http://jira.jboss.com/jira/browse/JGRP-300
         if(is_trace)
             log.trace("%s --> [all]: #%d", local_addr, msg_id);
@@ -850,7 +994,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      */
     protected void handleMessage(Message msg, NakAckHeader2 hdr) {
         Address sender=msg.getSrc();
-        Table<Message> buf=xmit_table.get(sender);
+        Buffer<Message> buf=xmit_table.get(sender);
         if(buf == null) {  // discard message if there is no entry for sender
             unknownMember(sender, hdr.seqno);
             return;
@@ -863,6 +1007,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         // and the message is OOB, insert a dummy message (same msg, saving space), deliver it and drop it later on
         // removal. Else insert the real message
         boolean added=loopback || buf.add(hdr.seqno, msg.isFlagSet(Message.Flag.OOB)? DUMMY_OOB_MSG : msg);
+        if(added && !msg.isFlagSet(Message.Flag.OOB)) {
+            if(!loopback)
+                retained_bytes.addAndGet(msg.getLength());
+            if(stats)
+                setFirstAdded(sender);
+        }
 
         //if(added && is_trace)
           //  log.trace("%s <-- %s: #%d", local_addr, sender, hdr.seqno);
@@ -883,14 +1033,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected void handleMessages(Address dest, Address sender, List<LongTuple<Message>> msgs, boolean oob, AsciiString cluster_name) {
-        Table<Message> buf=xmit_table.get(sender);
+        Buffer<Message> buf=xmit_table.get(sender);
         if(buf == null) {  // discard message if there is no entry for sender
             unknownMember(sender, "batch");
             return;
         }
         num_messages_received+= msgs.size();
         boolean loopback=local_addr.equals(sender);
-        boolean added=loopback || buf.add(msgs, oob, oob? DUMMY_OOB_MSG : null);
+        // removes the elements which were not added (e.g. duplicates), so only the added ones are counted below
+        boolean added=loopback || buf.add(msgs, true, oob? DUMMY_OOB_MSG : null);
+        if(added && !loopback && !oob) {
+            long size=0;
+            for(LongTuple<Message> tuple: msgs)
+                size+=tuple.getVal2().getLength();
+            retained_bytes.addAndGet(size);
+        }
+        if(added && !oob && stats)
+            setFirstAdded(sender);
 
         //if(added && is_trace)
           //  log.trace("%s <-- %s: #%d-%d (%d messages)",
@@ -922,29 +1081,89 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      *  we return immediately and let the existing thread process our message (https://jira.jboss.org/jira/browse/JGRP-829).
      *  Benefit: fewer threads blocked on the same lock, these threads can be returned to the thread pool
      */
-    protected void removeAndDeliver(Table<Message> buf, Address sender, boolean loopback, AsciiString cluster_name) {
+    protected void removeAndDeliver(Buffer<Message> buf, Address sender, boolean loopback, AsciiString cluster_name) {
         AtomicInteger adders=buf.getAdders();
         if(adders.getAndIncrement() != 0)
             return;
-        boolean remove_msgs=discard_delivered_msgs && !loopback;
-        MessageBatch batch=new MessageBatch(buf.size()).dest(null).sender(sender).clusterName(cluster_name).multicast(true);
+        if(!drain(buf, sender, loopback, cluster_name))
+            return;
+        // max_delivery_time was exceeded: queue the delivery behind the ones of other senders, and run the queued
+        // deliveries in turn until none are left
+        yielded_deliveries.add(() -> drain(buf, sender, loopback, cluster_name));
+        num_delivery_yields.increment();
+        BooleanSupplier delivery;
+        while((delivery=yielded_deliveries.poll()) != null) {
+            if(delivery.getAsBoolean()) {
+                yielded_deliveries.add(delivery);
+                num_delivery_yields.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes and delivers messages until no more messages can be delivered and no other thread added messages
+     * (adders is 0). Batches have at most max_delivery_batch_size messages. When max_delivery_time is exceeded and
+     * there are more messages to deliver, true is returned without decrementing adders, so no other thread starts
+     * delivering messages from sender until the caller resumes the delivery.
+     * @return True if max_delivery_time was exceeded and the delivery needs to be resumed, false if it is done
+     */
+    protected boolean drain(Buffer<Message> buf, Address sender, boolean loopback, AsciiString cluster_name) {
+        AtomicInteger adders=buf.getAdders();
+        AtomicLong added_time=stats? first_added.get(sender) : null;
+        // with an off-heap xmit buffer, our own messages are retransmitted from the xmit buffer after delivery
+        boolean remove_msgs=loopback? xmit_buffer != null : discard_delivered_msgs;
+        int max_batch_size=max_delivery_batch_size;
+        int capacity=max_batch_size > 0? Math.min(buf.size(), max_batch_size) : buf.size();
+        MessageBatch batch=new MessageBatch(capacity).dest(null).sender(sender).clusterName(cluster_name).multicast(true);
         Supplier<MessageBatch> batch_creator=() -> batch;
-        do {
+        long deadline=max_delivery_time > 0? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(max_delivery_time) : 0;
+        // the filter is applied to all removed messages, so it also sums up the bytes removed from the table
+        long[] removed_bytes={0};
+        Predicate<Message> filter=!remove_msgs? no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs : msg -> {
+            if(msg != null && msg != DUMMY_OOB_MSG)
+                removed_bytes[0]+=msg.getLength();
+            return no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs.test(msg);
+        };
+        for(;;) {
+            long hd=buf.getHighestDelivered();
+            long added=added_time != null? added_time.getAndSet(0) : 0;
             try {
                 batch.reset();
                 // Don't include DUMMY and OOB_DELIVERED messages in the removed set
-                buf.removeMany(remove_msgs, 0, no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs,
-                               batch_creator, BATCH_ACCUMULATOR);
+                buf.removeMany(remove_msgs, max_batch_size, filter, batch_creator, BATCH_ACCUMULATOR);
             }
             catch(Throwable t) {
                 log.error("failed removing messages from table for " + sender, t);
             }
-            if(!batch.isEmpty())
+            if(removed_bytes[0] > 0) {
+                retained_bytes.addAndGet(-removed_bytes[0]);
+                removed_bytes[0]=0;
+            }
+            if(!batch.isEmpty()) {
                 deliverBatch(batch);
+                if(added > 0)
+                    delivery_latencies.computeIfAbsent(sender, k -> new Histogram())
+                      .add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - added));
+            }
+            // the batch was capped: there may be more messages to deliver
+            boolean more=max_batch_size > 0 && buf.getHighestDelivered() - hd >= max_batch_size;
+            if(added > 0 && (more || batch.isEmpty())) // messages are left: they were added no earlier than 'added'
+                added_time.compareAndSet(0, added);
+            if(!more && adders.decrementAndGet() == 0)
+                break;
+            if(deadline > 0 && System.nanoTime() - deadline >= 0)
+                return true;
         }
-        while(adders.decrementAndGet() != 0);
         if(rebroadcasting)
             checkForRebroadcasts();
+        return false;
+    }
+
+    /** Records the time at which a message from sender was added, unless older messages are still undelivered */
+    protected void setFirstAdded(Address sender) {
+        AtomicLong added=first_added.computeIfAbsent(sender, s -> new AtomicLong());
+        if(added.get() == 0)
+            added.compareAndSet(0, System.nanoTime());
     }
 
 
@@ -956,20 +1175,25 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      * @param missing_msgs A list of seqnos that have to be retransmitted
      * @param original_sender The member who originally sent the messsage. Guaranteed to be non-null
      */
-    protected void handleXmitReq(Address xmit_requester, SeqnoList missing_msgs, Address original_sender) {
+    protected void handleXmitReq(Address xmit_requester, Iterable<Long> missing_msgs, Address original_sender) {
         log.trace("%s <-- %s: XMIT(%s%s)", local_addr, xmit_requester, original_sender, missing_msgs);
 
         if(stats)
-            xmit_reqs_received.add(missing_msgs.size());
+            xmit_reqs_received.add(SeqnoRanges.size(missing_msgs));
 
-        Table<Message> buf=xmit_table.get(original_sender);
+        if(xmit_coalesce_window > 0) {
+            coalesceXmitReq(xmit_requester, missing_msgs, original_sender);
+            return;
+        }
+
+        Buffer<Message> buf=xmit_table.get(original_sender);
         if(buf == null) {
             log.error(Util.getMessage("SenderNotFound"), local_addr, original_sender);
             return;
         }
 
         for(long i: missing_msgs) {
-            Message msg=buf.get(i);
+            Message msg=getMessage(buf, original_sender, i);
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester) && i > buf.getLow())
                     log.warn(Util.getMessage("MessageNotFound"), local_addr, original_sender, i);
@@ -981,6 +1205,98 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
     }
 
+    /**
+     * Adds the requested seqnos to the pending retransmit requests and schedules a flush at the end of the current
+     * coalescing window (if not yet scheduled). Requests for a message already pending from the same requester, or
+     * pending from another requester when the message will be multicast, are coalesced into the pending response
+     */
+    protected void coalesceXmitReq(Address xmit_requester, Iterable<Long> missing_msgs, Address original_sender) {
+        int coalesced=0;
+        synchronized(pending_xmit_reqs) {
+            SortedMap<Long,Set<Address>> seqnos=pending_xmit_reqs.computeIfAbsent(original_sender, k -> new TreeMap<>());
+            for(long seqno: missing_msgs) {
+                Set<Address> requesters=seqnos.computeIfAbsent(seqno, k -> new HashSet<>());
+                if(!requesters.add(xmit_requester) || (use_mcast_xmit && requesters.size() > mcast_xmit_threshold))
+                    coalesced++;
+            }
+            if(xmit_coalesce_task == null || xmit_coalesce_task.isDone())
+                xmit_coalesce_task=timer.schedule(this::flushXmitReqs, xmit_coalesce_window, TimeUnit.MILLISECONDS,
+                                                  sends_can_block);
+        }
+        if(stats && coalesced > 0)
+            xmit_reqs_coalesced.add(coalesced);
+    }
+
+    /**
+     * Answers the retransmit requests collected in the last coalescing window: a message requested by at least
+     * mcast_xmit_threshold members is multicast once (if use_mcast_xmit is true), else a unicast response is sent to
+     * each requester
+     */
+    protected void flushXmitReqs() {
+        Map<Address,SortedMap<Long,Set<Address>>> reqs;
+        synchronized(pending_xmit_reqs) {
+            if(pending_xmit_reqs.isEmpty())
+                return;
+            reqs=new HashMap<>(pending_xmit_reqs);
+            pending_xmit_reqs.clear();
+        }
+        for(Map.Entry<Address,SortedMap<Long,Set<Address>>> entry: reqs.entrySet()) {
+            Address original_sender=entry.getKey();
+            Buffer<Message> buf=xmit_table.get(original_sender);
+            if(buf == null) {
+                log.error(Util.getMessage("SenderNotFound"), local_addr, original_sender);
+                continue;
+            }
+            for(Map.Entry<Long,Set<Address>> e: entry.getValue().entrySet()) {
+                long seqno=e.getKey();
+                Set<Address> requesters=e.getValue();
+                Message msg=getMessage(buf, original_sender, seqno);
+                if(msg == null) {
+                    if(log.isWarnEnabled() && log_not_found_msgs && seqno > buf.getLow())
+                        log.warn(Util.getMessage("MessageNotFound"), local_addr, original_sender, seqno);
+                    continue;
+                }
+                if(use_mcast_xmit && requesters.size() >= mcast_xmit_threshold) {
+                    if(is_trace)
+                        log.trace("%s --> [all]: resending %s#%d (requested by %s)", local_addr, original_sender, seqno, requesters);
+                    if(stats)
+                        mcast_xmit_rsps_sent.increment();
+                    sendXmitRsp(null, msg, true);
+                }
+                else {
+                    for(Address requester: requesters) {
+                        if(is_trace)
+                            log.trace("%s --> %s: resending %s#%d", local_addr, requester, original_sender, seqno);
+                        sendXmitRsp(requester, msg, false);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns the message from the retransmission table, or from the off-heap xmit buffer for own messages */
+    protected Message getMessage(Buffer<Message> buf, Address sender, long seqno) {
+        Message msg=buf.get(seqno);
+        if(msg != null || xmit_buffer == null || !Objects.equals(local_addr, sender))
+            return msg;
+        try {
+            return xmit_buffer.get(seqno, getTransport().getMessageFactory());
+        }
+        catch(Throwable t) {
+            log.error("%s: failed reading message #%d from the off-heap xmit buffer: %s", local_addr, seqno, t);
+            return null;
+        }
+    }
+
+    protected void storeOffHeap(long seqno, Message msg) {
+        try {
+            xmit_buffer.add(seqno, msg);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed storing message #%d in the off-heap xmit buffer: %s", local_addr, seqno, t);
+        }
+    }
+
     protected void deliver(Message msg, Address sender, long seqno, String error_msg) {
         if(is_trace)
             log.trace("%s <-- %s: #%d", local_addr, sender, seqno);
@@ -1058,6 +1374,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      * @param msg
      */
     protected void sendXmitRsp(Address dest, Message msg) {
+        sendXmitRsp(dest, msg, use_mcast_xmit);
+    }
+
+    protected void sendXmitRsp(Address dest, Message msg, boolean multicast) {
         if(msg == null)
             return;
 
@@ -1067,7 +1387,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         if(msg.getSrc() == null)
             msg.setSrc(local_addr);
 
-        if(use_mcast_xmit) { // we simply send the original multicast message
+        if(multicast) { // we simply send the original multicast message
             down_prot.down(msg);
             return;
         }
@@ -1110,7 +1430,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void handleHighestSeqno(Address sender, long seqno) {
         // check whether the highest seqno received from sender is > highest seqno received for sender in my digest.
         // If yes, request retransmission (see "Last Message Dropped" topic in DESIGN)
-        Table<Message> buf=xmit_table.get(sender);
+        Buffer<Message> buf=xmit_table.get(sender);
         if(buf == null)
             return;
         long my_highest_received=buf.getHighestReceived();
@@ -1249,18 +1569,21 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      */
     protected void adjustReceivers(List<Address> members) {
         Set<Address> keys=xmit_table.keySet();
+        delivery_latencies.keySet().retainAll(members);
+        first_added.keySet().retainAll(members);
 
         // remove members which left
         for(Address member: keys) {
             if(!members.contains(member)) {
                 if(Objects.equals(local_addr, member))
                     continue;
-                Table<Message> buf=xmit_table.remove(member);
+                Buffer<Message> buf=xmit_table.remove(member);
                 if(buf != null)
                     log.debug("%s: removed %s from xmit_table (not member anymore)", local_addr, member);
             }
         }
         members.stream().filter(mbr -> !keys.contains(mbr)).forEach(mbr -> xmit_table.putIfAbsent(mbr, createTable(0)));
+        updateRetainedBytes();
     }
 
 
@@ -1269,9 +1592,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      */
     public Digest getDigest() {
         final Map<Address,long[]> map=new HashMap<>();
-        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
+        for(Map.Entry<Address,Buffer<Message>> entry: xmit_table.entrySet()) {
             Address sender=entry.getKey(); // guaranteed to be non-null (CCHM)
-            Table<Message> buf=entry.getValue(); // guaranteed to be non-null (CCHM)
+            Buffer<Message> buf=entry.getValue(); // guaranteed to be non-null (CCHM)
             long[] seqnos=buf.getDigest();
             map.put(sender, seqnos);
         }
@@ -1282,7 +1605,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     public Digest getDigest(Address mbr) {
         if(mbr == null)
             return getDigest();
-        Table<Message> buf=xmit_table.get(mbr);
+        Buffer<Message> buf=xmit_table.get(mbr);
         if(buf == null)
             return null;
         long[] seqnos=buf.getDigest();
@@ -1327,7 +1650,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
             long highest_delivered_seqno=entry.getHighestDeliveredSeqno();
 
-            Table<Message> buf=xmit_table.get(member);
+            Buffer<Message> buf=xmit_table.get(member);
             if(buf != null) {
                 if(local_addr.equals(member)) {
                     // Adjust the highest_delivered seqno (to send msgs again): https://jira.jboss.org/browse/JGRP-1251
@@ -1368,7 +1691,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
             long highest_delivered_seqno=entry.getHighestDeliveredSeqno();
 
-            Table<Message> buf=xmit_table.get(member);
+            Buffer<Message> buf=xmit_table.get(member);
             if(buf != null) {
                 // We only reset the window if its seqno is lower than the seqno shipped with the digest. Also, we
                 // don't reset our own window (https://jira.jboss.org/jira/browse/JGRP-948, comment 20/Apr/09 03:39 AM)
@@ -1397,9 +1720,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
-    protected Table<Message> createTable(long initial_seqno) {
-        return new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row,
-                                  initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
+    protected Buffer<Message> createTable(long initial_seqno) {
+        if(xmit_table_ring)
+            return new RingTable<>(xmit_table_msgs_per_row, initial_seqno);
+        return new TableBuffer<>(xmit_table_num_rows, xmit_table_msgs_per_row,
+                                       initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
     }
 
 
@@ -1426,7 +1751,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
             // check whether the last seqno received for a sender P in the stability digest is > last seqno
             // received for P in my digest. if yes, request retransmission (see "Last Message Dropped" topic in DESIGN)
-            Table<Message> buf=xmit_table.get(member);
+            Buffer<Message> buf=xmit_table.get(member);
             if(buf != null) {
                 long my_hr=buf.getHighestReceived();
                 if(hr >= 0 && hr > my_hr) {
@@ -1441,8 +1766,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 buf.forEach(buf.getLow(), hd, DECR);
                 log.trace("%s: deleting msgs <= %s from %s", local_addr, hd, member);
                 buf.purge(hd);
+                if(xmit_buffer != null && member.equals(local_addr))
+                    xmit_buffer.purge(hd);
             }
         }
+        updateRetainedBytes();
     }
 
 
@@ -1454,11 +1782,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected void retransmit(long first_seqno, long last_seqno, final Address sender, boolean multicast_xmit_request) {
+        if(xmit_req_ranges) {
+            sendXmitReq(new SeqnoRanges(1).add(first_seqno, last_seqno), (int)(last_seqno - first_seqno + 1), sender,
+                        multicast_xmit_request);
+            return;
+        }
         SeqnoList list=new SeqnoList((int)(last_seqno - first_seqno +1), first_seqno).add(first_seqno, last_seqno);
         retransmit(list,sender,multicast_xmit_request);
     }
 
     protected void retransmit(SeqnoList missing_msgs, final Address sender, boolean multicast_xmit_request) {
+        SizeStreamable missing=xmit_req_ranges? SeqnoRanges.from(missing_msgs) : missing_msgs;
+        sendXmitReq(missing, missing_msgs.size(), sender, multicast_xmit_request);
+    }
+
+    /** Sends a retransmit request; missing_msgs is either a {@link SeqnoList} or a {@link SeqnoRanges} */
+    protected void sendXmitReq(SizeStreamable missing_msgs, int num_missing, final Address sender,
+                               boolean multicast_xmit_request) {
         Address dest=(multicast_xmit_request || this.use_mcast_xmit_req)? null : sender; // to whom do we send the XMIT request ?
 
         if(xmit_from_random_member && !local_addr.equals(sender)) {
@@ -1473,18 +1813,26 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         log.trace("%s --> %s: XMIT_REQ(%s)", local_addr, dest, missing_msgs);
         down_prot.down(retransmit_msg);
         if(stats)
-            xmit_reqs_sent.add(missing_msgs.size());
+            xmit_reqs_sent.add(num_missing);
     }
 
 
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        retained_bytes.set(0);
+        if(xmit_buffer != null)
+            xmit_buffer.clear();
+    }
+
+    /** Sets retained_bytes to the size of all messages in xmit_table (e.g. after purging messages) */
+    protected void updateRetainedBytes() {
+        retained_bytes.set(getSizeOfAllMessages());
     }
 
 
 
-    protected static long sizeOfAllMessages(Table<Message> buf, boolean include_headers) {
+    protected static long sizeOfAllMessages(Buffer<Message> buf, boolean include_headers) {
         return buf.stream().reduce(0L, (size,el) -> {
             if(el == null)
                 return size;
@@ -1525,9 +1873,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     public void triggerXmit() {
         SeqnoList missing;
 
-        for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
+        for(Map.Entry<Address,Buffer<Message>> entry: xmit_table.entrySet()) {
             Address target=entry.getKey(); // target to send retransmit requests to
-            Table<Message> buf=entry.getValue();
+            Buffer<Message> buf=entry.getValue();
 
             if(buf != null && buf.getNumMissing() > 0 && (missing=buf.getMissing(max_xmit_req_size)) != null) { // getNumMissing() is fast
                 long highest=missing.getLast();
@@ -1583,5 +1931,34 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /**
+     * Writes the seqno of a MSG header as delta to the seqno of the previous MSG header in the same message list
+     * (used with compact headers, see {@link HeaderDictionary})
+     */
+    protected static class SeqnoCodec implements HeaderDictionary.Codec<NakAckHeader2> {
+        protected static final byte FULL=0, DELTA=1;
+
+        public void write(NakAckHeader2 prev, NakAckHeader2 hdr, DataOutput out) throws IOException {
+            if(prev != null && prev.type == NakAckHeader2.MSG && hdr.type == NakAckHeader2.MSG) {
+                out.writeByte(DELTA);
+                Bits.writeLong(hdr.seqno - prev.seqno, out);
+            }
+            else {
+                out.writeByte(FULL);
+                hdr.writeTo(out);
+            }
+        }
+
+        public NakAckHeader2 read(NakAckHeader2 prev, DataInput in) throws IOException, ClassNotFoundException {
+            if(in.readByte() == DELTA) {
+                if(prev == null)
+                    throw new IOException("seqno delta without previous header");
+                return NakAckHeader2.createMessageHeader(prev.seqno + Bits.readLong(in));
+            }
+            NakAckHeader2 hdr=new NakAckHeader2();
+            hdr.readFrom(in);
+            return hdr;
+        }
+    }
 
 }
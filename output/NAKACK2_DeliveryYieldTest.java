@@ -0,0 +1,124 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the delivery of messages in {@link NAKACK2} with max_delivery_batch_size and max_delivery_time: a delivery
+ * exceeding max_delivery_time yields to the deliveries of other senders
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NAKACK2_DeliveryYieldTest {
+    protected JChannel         a, b;
+    protected MyReceiver       receiver;
+    protected static final int NUM=1000, MAX_BATCH_SIZE=10;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    /** Messages whose delivery yielded (and was resumed) are still delivered in order, in capped batches */
+    public void testYield() throws Exception {
+        setup(5);
+        send();
+        NAKACK2 nak=b.getProtocolStack().findProtocol(NAKACK2.class);
+        assert nak.getNumDeliveryYields() > 0;
+    }
+
+    /** max_delivery_time=0 never yields, and max_delivery_batch_size still caps the batches */
+    public void testNoYield() throws Exception {
+        setup(0);
+        send();
+        NAKACK2 nak=b.getProtocolStack().findProtocol(NAKACK2.class);
+        assert nak.getNumDeliveryYields() == 0;
+    }
+
+    protected void setup(long max_delivery_time) throws Exception {
+        a=create("A", max_delivery_time).connect(getClass().getSimpleName());
+        b=create("B", max_delivery_time);
+        b.setReceiver(receiver=new MyReceiver(a.getAddress()));
+        b.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+    }
+
+    /** Sends NUM messages from A and checks that B delivers them in order, in batches of at most MAX_BATCH_SIZE */
+    protected void send() throws Exception {
+        for(int i=1; i <= NUM; i++)
+            a.send(null, i);
+        Util.waitUntil(10000, 100, () -> receiver.size() >= NUM, () -> String.format("received %d msgs", receiver.size()));
+        List<Integer> list=receiver.list();
+        assert list.size() == NUM : String.format("expected %d msgs, but got %d", NUM, list.size());
+        for(int i=0; i < list.size(); i++)
+            assert list.get(i) == i+1 : String.format("msg #%d is %d", i+1, list.get(i));
+        assert receiver.max_batch_size <= MAX_BATCH_SIZE : String.format("max batch size: %d", receiver.max_batch_size);
+    }
+
+    protected static JChannel create(String name, long max_delivery_time) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2().setMaxDeliveryBatchSize(MAX_BATCH_SIZE).setMaxDeliveryTime(max_delivery_time),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+
+    /** Records the messages from sender; delivery of a batch takes at least 1 ms, so delivery runs take a while */
+    protected static class MyReceiver implements Receiver {
+        protected final Address       sender;
+        protected final List<Integer> list=new ArrayList<>();
+        protected volatile int        max_batch_size;
+
+        protected MyReceiver(Address sender) {
+            this.sender=sender;
+        }
+
+        public void receive(Message msg) {
+            if(sender.equals(msg.getSrc())) {
+                Integer num=msg.getObject();
+                add(List.of(num));
+            }
+        }
+
+        public void receive(MessageBatch batch) {
+            if(!sender.equals(batch.sender()))
+                return;
+            List<Integer> tmp=new ArrayList<>(batch.size());
+            for(Message msg: batch)
+                tmp.add(msg.getObject());
+            add(tmp);
+            Util.sleep(1);
+        }
+
+        protected void add(List<Integer> nums) {
+            synchronized(list) {
+                list.addAll(nums);
+                max_batch_size=Math.max(max_batch_size, nums.size());
+            }
+        }
+
+        protected int size() {
+            synchronized(list) {
+                return list.size();
+            }
+        }
+
+        protected List<Integer> list() {
+            synchronized(list) {
+                return new ArrayList<>(list);
+            }
+        }
+    }
+}
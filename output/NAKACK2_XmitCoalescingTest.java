@@ -0,0 +1,122 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests coalescing of retransmit requests in NAKACK2 (xmit_coalesce_window and mcast_xmit_threshold)
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NAKACK2_XmitCoalescingTest {
+    protected static final short   ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B"),
+                                   C=Util.createRandomAddress("C");
+    protected static final View    view=View.create(A, 1, A, B, C);
+    protected NAKACK2              nak;
+    protected MockTransport        transport;
+    protected TimeScheduler        timer;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        timer=new TimeScheduler3();
+        nak=new NAKACK2().setXmitCoalesceWindow(200).setMcastXmitThreshold(2).setXmitInterval(60_000);
+        transport=new MockTransport();
+        transport.setTimer(timer);
+        ProtocolStack stack=new ProtocolStack();
+        stack.addProtocols(transport, nak, new Protocol() {});
+        stack.init();
+        nak.start();
+
+        nak.down(new Event(Event.BECOME_SERVER));
+        nak.down(new Event(Event.SET_LOCAL_ADDRESS, A));
+        Digest digest=new Digest(view.getMembersRaw(), new long[]{0, 0, 0, 0, 0, 0});
+        nak.down(new Event(Event.SET_DIGEST, digest));
+        for(int i=1; i <= 5; i++)
+            nak.down(new EmptyMessage(null));
+        transport.clear();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        nak.stop();
+        timer.stop();
+    }
+
+    /** B and C request #2, only B requests #3: #2 is multicast once, #3 is sent to B only */
+    public void testMulticastAboveThreshold() throws Exception {
+        xmitReq(B, 2, 3);
+        xmitReq(C, 2);
+        xmitReq(B, 2, 3); // duplicate request from B
+        assert transport.sent().isEmpty() : "responses must only be sent at the end of the window";
+
+        Util.waitUntil(5000, 100, () -> transport.sent().size() >= 2);
+        List<String> sent=transport.sent();
+        assert sent.size() == 2 : sent;
+        assert sent.contains("all#2") && sent.contains(B + "#3") : sent;
+    }
+
+    public void testUnicastBelowThreshold() throws Exception {
+        xmitReq(B, 1);
+        xmitReq(C, 4);
+        Util.waitUntil(5000, 100, () -> transport.sent().size() >= 2);
+        List<String> sent=transport.sent();
+        assert sent.size() == 2 && sent.contains(B + "#1") && sent.contains(C + "#4") : sent;
+    }
+
+    public void testUnicastWithoutMcastXmit() throws Exception {
+        nak.useMcastXmit(false);
+        xmitReq(B, 5);
+        xmitReq(C, 5);
+        Util.waitUntil(5000, 100, () -> transport.sent().size() >= 2);
+        List<String> sent=transport.sent();
+        assert sent.size() == 2 && sent.contains(B + "#5") && sent.contains(C + "#5") : sent;
+    }
+
+    /** Makes NAKACK2 receive a retransmit request from requester for messages sent by A */
+    protected void xmitReq(Address requester, long ... seqnos) {
+        SeqnoList list=new SeqnoList(seqnos.length);
+        for(long seqno: seqnos)
+            list.add(seqno);
+        Message msg=new ObjectMessage(A, list).setSrc(requester)
+          .putHeader(ID, NakAckHeader2.createXmitRequestHeader(A));
+        nak.up(msg);
+    }
+
+
+    /** Records the retransmissions (dest#seqno, or all#seqno for multicasts) sent by NAKACK2 */
+    protected static class MockTransport extends TP {
+        protected final List<String> sent=new ArrayList<>();
+
+        public synchronized List<String> sent() {return new ArrayList<>(sent);}
+        public synchronized void  clear() {sent.clear();}
+        public void               init() throws Exception {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Message msg) {
+            NakAckHeader2 hdr=msg.getHeader(ID);
+            if(hdr == null || hdr.getType() == NakAckHeader2.XMIT_REQ)
+                return null;
+            synchronized(this) {
+                sent.add((msg.getDest() == null? "all" : msg.getDest().toString()) + "#" + hdr.getSeqno());
+            }
+            return null;
+        }
+    }
+}
@@ -108,7 +108,7 @@ public class NAKACK_Delivery_Test {
                 no_duplicates.size());
 
         // we need to add our own messages (nak is for A), or else they will get discarded by NAKACK.handleMessage()
-        Table<Message> win=nak.getWindow(a);
+        Buffer<Message> win=nak.getWindow(a);
         for(int i=1; i <= NUM_MSGS; i++)
             win.add(i, msg(a, i, i, true));
 
@@ -179,6 +179,38 @@ public class NioConnection extends Connection {
     }
 
 
+    /**
+     * Sends the concatenation of bufs as a single message with one gathering write. Falls back to copying the buffers
+     * into a single buffer if there are more buffers than the send buffer can hold
+     * @param bufs The buffers to be sent; their positions will be modified
+     * @param length The sum of the remaining bytes of all buffers
+     */
+    public void send(ByteBuffer[] bufs, int length) throws Exception {
+        if(bufs.length + 1 > server.maxSendBuffers()) {
+            send(ByteBuffer.wrap(Util.bufferToArray(bufs, length)));
+            return;
+        }
+        ByteBuffer[] tmp=new ByteBuffer[bufs.length+1];
+        tmp[0]=ByteBuffer.allocate(Global.INT_SIZE).putInt(0, length); // absolute put: position stays at 0
+        System.arraycopy(bufs, 0, tmp, 1, bufs.length);
+        send_lock.lock();
+        try {
+            send_buf.add(tmp);
+            boolean success=send_buf.write(channel);
+            writeInterest(!success);
+            if(success)
+                updateLastAccessed();
+            if(!success) {
+                if(copy_on_partial_write)
+                    send_buf.copy(); // copy data on partial write as subsequent writes might corrupt data (https://issues.jboss.org/browse/JGRP-1991)
+                partial_writes++;
+            }
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
     public void send() throws Exception {
         send_lock.lock();
         try {
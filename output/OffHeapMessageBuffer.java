@@ -0,0 +1,204 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.MessageFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the serialized form of messages, keyed by seqno, in off-heap memory. Used by
+ * {@link org.jgroups.protocols.pbcast.NAKACK2} to keep sent messages for retransmission without retaining them on
+ * the heap until they're stable.<br/>
+ * Messages are appended to chunks of direct memory; an index maps seqnos to positions in the chunks. Seqnos are
+ * expected to be (mostly) increasing; messages can be added out of order, but not below the last purged seqno.
+ * A chunk is released when all of its messages have been purged; since a chunk is only reclaimed after all of its
+ * messages are stable, a single unstable message can hold on to an entire chunk.<br/>
+ * All methods are synchronized; the (de)serialization of messages is done outside of the lock.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class OffHeapMessageBuffer {
+    protected final int         chunk_size;
+    protected final List<Chunk> chunks=new ArrayList<>(); // oldest chunk first; the last chunk is the current one
+    protected Chunk             spare;         // a released chunk, reused for the next allocation
+    protected int               next_id;       // ID of the next chunk
+    protected long[]            index=new long[64]; // ring of (chunk ID << 32 | offset), -1 if absent
+    protected int               head;          // index of seqno low+1
+    protected int               count;         // number of slots in use (including absent ones)
+    protected long              low;           // the highest purged seqno
+    protected int               size;          // number of messages
+    protected long              bytes;         // number of bytes of all messages
+
+    public OffHeapMessageBuffer(int chunk_size) {
+        if(chunk_size <= 0)
+            throw new IllegalArgumentException("chunk_size must be positive: " + chunk_size);
+        this.chunk_size=chunk_size;
+        Arrays.fill(index, -1);
+    }
+
+    public synchronized int  size()      {return size;}
+    public synchronized long bytes()     {return bytes;}
+    public synchronized long low()       {return low;}
+    public synchronized int  numChunks() {return chunks.size();}
+
+    /** Returns the number of bytes of direct memory allocated by this buffer (including the spare chunk) */
+    public synchronized long capacity() {
+        long retval=spare != null? spare.buf.capacity() : 0;
+        for(Chunk chunk: chunks)
+            retval+=chunk.buf.capacity();
+        return retval;
+    }
+
+    /** Serializes msg and stores it under seqno */
+    public void add(long seqno, Message msg) throws Exception {
+        ByteArray buf=Util.messageToBuffer(msg);
+        add(seqno, buf.getArray(), buf.getOffset(), buf.getLength());
+    }
+
+    /** Copies the given bytes to off-heap memory. Returns false if seqno has already been purged or is present */
+    public synchronized boolean add(long seqno, byte[] buf, int offset, int length) {
+        if(seqno <= low)
+            return false;
+        long diff=seqno - low - 1;
+        if(diff >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format("seqno %d is too far ahead of low (%d)", seqno, low));
+        int idx=(int)diff;
+        if(idx >= index.length)
+            grow(idx + 1);
+        int slot=slot(idx);
+        if(index[slot] != -1)
+            return false;
+        Chunk chunk=chunkFor(Global.INT_SIZE + length);
+        int pos=chunk.buf.position();
+        chunk.buf.putInt(length).put(buf, offset, length);
+        chunk.high=Math.max(chunk.high, seqno);
+        index[slot]=(long)chunk.id << 32 | pos;
+        count=Math.max(count, idx + 1);
+        size++;
+        bytes+=length;
+        return true;
+    }
+
+    /** Returns a copy of the bytes stored under seqno, or null if not found */
+    public synchronized byte[] getBytes(long seqno) {
+        if(seqno <= low || seqno - low > count)
+            return null;
+        long pos=index[slot((int)(seqno - low - 1))];
+        if(pos == -1)
+            return null;
+        ByteBuffer buf=chunk((int)(pos >>> 32)).buf.duplicate();
+        int offset=(int)pos;
+        byte[] retval=new byte[buf.getInt(offset)];
+        buf.position(offset + Global.INT_SIZE);
+        buf.get(retval);
+        return retval;
+    }
+
+    /** Re-creates the message stored under seqno, or returns null if not found */
+    public Message get(long seqno, MessageFactory factory) throws Exception {
+        byte[] buf=getBytes(seqno);
+        return buf != null? Util.messageFromBuffer(buf, 0, buf.length, factory) : null;
+    }
+
+    /** Removes all messages with seqnos <= seqno and releases the chunks which don't contain messages anymore */
+    public synchronized void purge(long seqno) {
+        if(seqno <= low)
+            return;
+        int num=(int)Math.min(seqno - low, count);
+        for(int i=0; i < num; i++) {
+            int slot=slot(i);
+            long pos=index[slot];
+            if(pos != -1) {
+                bytes-=chunk((int)(pos >>> 32)).buf.getInt((int)pos);
+                size--;
+                index[slot]=-1;
+            }
+        }
+        head=slot(num);
+        count-=num;
+        low=seqno;
+        releaseChunks();
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(index, -1);
+        head=count=size=0;
+        low=bytes=0;
+        chunks.clear();
+        spare=null;
+    }
+
+    public synchronized String toString() {
+        return String.format("low=%d, %d msgs (%s) in %d chunks", low, size, Util.printBytes(bytes), chunks.size());
+    }
+
+    protected int slot(int idx) {
+        return (head + idx) & (index.length - 1);
+    }
+
+    protected void grow(int min_length) {
+        long[] tmp=new long[Util.getNextHigherPowerOfTwo(min_length)];
+        Arrays.fill(tmp, -1);
+        for(int i=0; i < count; i++)
+            tmp[i]=index[slot(i)];
+        index=tmp;
+        head=0;
+    }
+
+    protected Chunk chunk(int id) {
+        return chunks.get(id - chunks.get(0).id);
+    }
+
+    /** Returns the current chunk if it has space for length bytes, or a new chunk */
+    protected Chunk chunkFor(int length) {
+        Chunk current=chunks.isEmpty()? null : chunks.get(chunks.size() - 1);
+        if(current != null && current.buf.remaining() >= length)
+            return current;
+        Chunk chunk;
+        if(spare != null && length <= chunk_size) {
+            chunk=spare.reset(next_id++);
+            spare=null;
+        }
+        else
+            chunk=new Chunk(next_id++, ByteBuffer.allocateDirect(Math.max(chunk_size, length)));
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    /** Releases the oldest chunks whose messages have all been purged. The current chunk is reset instead */
+    protected void releaseChunks() {
+        while(!chunks.isEmpty() && chunks.get(0).high <= low) {
+            if(chunks.size() == 1) {
+                if(size == 0)
+                    chunks.get(0).buf.clear(); // nothing references the current chunk: reuse it from the start
+                break;
+            }
+            Chunk chunk=chunks.remove(0);
+            if(spare == null && chunk.buf.capacity() == chunk_size)
+                spare=chunk; // larger chunks are left to the GC
+        }
+    }
+
+
+    protected static class Chunk {
+        protected int              id;
+        protected final ByteBuffer buf;
+        protected long             high; // the highest seqno stored in this chunk
+
+        protected Chunk(int id, ByteBuffer buf) {
+            this.id=id;
+            this.buf=buf;
+        }
+
+        protected Chunk reset(int new_id) {
+            id=new_id;
+            high=0;
+            buf.clear();
+            return this;
+        }
+    }
+}
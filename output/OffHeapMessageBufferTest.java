@@ -0,0 +1,73 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.util.OffHeapMessageBuffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link OffHeapMessageBuffer}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class OffHeapMessageBufferTest {
+    protected static final MessageFactory FACTORY=new DefaultMessageFactory();
+    protected final Address               a=Util.createRandomAddress("A");
+
+    public void testAddAndGet() throws Exception {
+        OffHeapMessageBuffer buf=new OffHeapMessageBuffer(1024);
+        for(int i=1; i <= 10; i++)
+            buf.add(i, msg(i));
+        assert buf.size() == 10;
+        for(int i=1; i <= 10; i++) {
+            Message msg=buf.get(i, FACTORY);
+            assert msg.getSrc().equals(a);
+            assert new String(msg.getArray(), msg.getOffset(), msg.getLength()).equals("msg-" + i);
+        }
+        assert buf.get(11, FACTORY) == null;
+    }
+
+    public void testOutOfOrderAdd() throws Exception {
+        OffHeapMessageBuffer buf=new OffHeapMessageBuffer(1024);
+        for(int i: new int[]{3, 1, 200, 2})
+            buf.add(i, msg(i));
+        assert buf.size() == 4;
+        assert buf.get(100, FACTORY) == null;
+        for(int i: new int[]{1, 2, 3, 200})
+            assert buf.get(i, FACTORY) != null;
+        assert !buf.add(3, new byte[10], 0, 10); // already present
+    }
+
+    public void testPurge() throws Exception {
+        OffHeapMessageBuffer buf=new OffHeapMessageBuffer(256);
+        for(int i=1; i <= 100; i++)
+            buf.add(i, msg(i));
+        int chunks=buf.numChunks();
+        assert chunks > 1;
+        buf.purge(50);
+        assert buf.size() == 50 && buf.low() == 50;
+        assert buf.numChunks() < chunks;
+        assert buf.get(50, FACTORY) == null && buf.get(51, FACTORY) != null;
+        assert !buf.add(20, new byte[10], 0, 10); // below low
+
+        buf.purge(100);
+        assert buf.size() == 0 && buf.bytes() == 0 && buf.numChunks() == 1;
+        buf.add(101, msg(101));
+        assert buf.get(101, FACTORY) != null;
+    }
+
+    public void testLargeMessage() throws Exception {
+        OffHeapMessageBuffer buf=new OffHeapMessageBuffer(128);
+        buf.add(1, new BytesMessage(null, new byte[1000]).setSrc(a));
+        buf.add(2, msg(2));
+        assert buf.get(1, FACTORY).getLength() == 1000;
+        assert buf.get(2, FACTORY) != null;
+        buf.purge(2);
+        assert buf.size() == 0;
+    }
+
+    protected Message msg(int i) {
+        return new BytesMessage(null, ("msg-" + i).getBytes()).setSrc(a);
+    }
+}
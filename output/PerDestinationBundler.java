@@ -0,0 +1,353 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.util.AverageMinMax;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Runner;
+import org.jgroups.util.Util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bundler which keeps a separate queue per destination (and one for multicasts), so that a slow or bursty destination
+ * doesn't affect batching of messages to other destinations.<br/>
+ * A queue is flushed when its accumulated size exceeds its flush threshold, or when its oldest message has been
+ * waiting longer than the queue's max delay. Both values adapt per destination to meet a latency target (time from
+ * adding the first message of a batch until the batch has been sent):
+ * <ul>
+ *     <li>max delay: latency target minus the average time it takes to send a batch to the destination</li>
+ *     <li>flush threshold: decreased multiplicatively when a batch exceeded the latency target, increased additively
+ *         (up to max_bundle_size) otherwise</li>
+ * </ul>
+ * A destination with a high message rate therefore gets large batches, flushed by size by the sender threads,
+ * while infrequent messages (e.g. heartbeats) are flushed by the bundler thread once their max delay has elapsed.<br/>
+ * Messages are only added under a queue's lock; the batch is serialized and sent after the lock has been released,
+ * holding only the queue's send lock (which preserves the order of batches to a destination). The bundler thread
+ * doesn't send expired batches itself, but hands them to the thread pool, so a slow destination cannot delay the
+ * flushing of queues for other destinations.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class PerDestinationBundler extends BaseBundler {
+    protected final ConcurrentMap<Address,DestinationQueue> queues=new ConcurrentHashMap<>();
+    protected DestinationQueue                              mcast_queue; // null keys are not allowed in queues
+    protected Runner                                        flusher;
+    protected volatile boolean                              flusher_parked;
+    protected long                                          latency_target=TimeUnit.MICROSECONDS.toNanos(500);
+    protected int                                           min_flush_size=1024;
+    protected static final String                           THREAD_NAME="PerDestinationBundler";
+    protected static final long                             MAX_PARK_TIME=TimeUnit.MILLISECONDS.toNanos(10);
+
+    public PerDestinationBundler() {
+    }
+
+    public long                  latencyTarget()               {return TimeUnit.NANOSECONDS.toMicros(latency_target);}
+    /** Sets the latency target in microseconds */
+    public PerDestinationBundler latencyTarget(long t)         {latency_target=TimeUnit.MICROSECONDS.toNanos(t); return this;}
+    public int                   minFlushSize()                {return min_flush_size;}
+    public PerDestinationBundler minFlushSize(int s)           {min_flush_size=s; return this;}
+    public Thread                getThread()                   {return flusher != null? flusher.getThread() : null;}
+
+    public void init(TP transport) {
+        super.init(transport);
+        latencyTarget(transport.getBundlerLatencyTarget());
+        min_flush_size=Math.min(min_flush_size, transport.getMaxBundleSize());
+        mcast_queue=new DestinationQueue(null);
+        flusher=new Runner(transport.getThreadFactory(), THREAD_NAME, this::flushExpiredQueues, null);
+    }
+
+    public void start() {
+        flusher.start();
+    }
+
+    public void stop() {
+        flusher.stop();
+    }
+
+    public void send(Message msg) throws Exception {
+        Address dest=msg.getDest();
+        DestinationQueue q=dest == null? mcast_queue : queues.computeIfAbsent(dest, DestinationQueue::new);
+        if(q.add(msg) && flusher_parked) // the queue was empty: make sure its max delay is honored
+            LockSupport.unpark(flusher.getThread());
+    }
+
+    /** Removes the queues of members that left; their pending messages are flushed rather than dropped */
+    public void viewChange(View view) {
+        List<Address> mbrs=view.getMembers();
+        for(Map.Entry<Address,DestinationQueue> e: queues.entrySet()) {
+            Address dest=e.getKey();
+            DestinationQueue q=e.getValue();
+            if(!mbrs.contains(dest) && queues.remove(dest, q))
+                q.remove();
+        }
+    }
+
+    public int size() {
+        int retval=mcast_queue != null? mcast_queue.size() : 0;
+        for(DestinationQueue q: queues.values())
+            retval+=q.size();
+        return retval;
+    }
+
+    public int getQueueSize() {return size();}
+
+    public Map<String,Object> getStats() {
+        Map<String,Object> map=new HashMap<>();
+        map.put("destinations", queues.size());
+        map.put("latency_target (us)", latencyTarget());
+        map.put("mcast", mcast_queue.toString());
+        return map;
+    }
+
+    public void resetStats() {
+        mcast_queue.resetStats();
+        queues.values().forEach(DestinationQueue::resetStats);
+    }
+
+    @ManagedAttribute(description="Number of destination queues")
+    public int getNumDestinations() {return queues.size();}
+
+    @ManagedOperation(description="Prints the flush threshold, max delay and send stats of all destination queues")
+    public String printDestinations() {
+        StringBuilder sb=new StringBuilder("<all>: ").append(mcast_queue).append("\n");
+        for(Map.Entry<Address,DestinationQueue> e: queues.entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        return sb.toString();
+    }
+
+
+    /** Called in a loop by the flusher thread: flushes all queues whose max delay has elapsed, then parks */
+    protected void flushExpiredQueues() {
+        // set before scanning: a message added during the scan unparks us, so the following park() returns immediately
+        flusher_parked=true;
+        long now=System.nanoTime(), park_time=MAX_PARK_TIME;
+        park_time=Math.min(park_time, mcast_queue.flushIfExpired(now));
+        for(DestinationQueue q: queues.values())
+            park_time=Math.min(park_time, q.flushIfExpired(now));
+        if(park_time > 0)
+            LockSupport.parkNanos(park_time);
+        flusher_parked=false;
+    }
+
+    /** Serializes a batch (or a single message) into out and sends it to dest */
+    protected void sendBatch(Address dest, List<Message> list, ByteArrayDataOutputStream out) throws Exception {
+        out.position(0);
+        if(list.size() == 1)
+            Util.writeMessage(list.get(0), out, dest == null);
+        else
+            Util.writeMessageList(dest, list.get(0).getSrc(), transport.getClusterNameAscii().chars(), list,
+                                  out, dest == null, transport.getId(), transport.compactHeaders());
+        transport.doSend(out.buffer(), 0, out.position(), dest);
+    }
+
+
+    protected class DestinationQueue {
+        protected final Address                   dest;
+        protected final ReentrantLock             lock=new ReentrantLock();      // guards msgs, bytes etc
+        protected final ReentrantLock             send_lock=new ReentrantLock(); // guards sending, out and the stats
+        protected List<Message>                   msgs=new ArrayList<>();
+        protected List<Message>                   sending=new ArrayList<>();     // the batch currently being sent
+        protected int                             bytes;            // accumulated size of msgs
+        protected long                            first_msg_time;   // time (ns) the first message was added to msgs
+        protected boolean                         flush_pending;    // a flush has been handed to the thread pool
+        protected boolean                         removed;          // removed from queues: don't hold messages
+        protected volatile int                    flush_size=transport.getMaxBundleSize();
+        protected volatile long                   send_time;        // average send time (ns), read without send_lock
+        protected ByteArrayDataOutputStream       out;              // created on first use
+        protected final AverageMinMax             avg_send_time=new AverageMinMax(); // ns
+        protected final AverageMinMax             avg_latency=new AverageMinMax();   // ns
+        protected final AverageMinMax             avg_batch_size=new AverageMinMax();
+        protected int                             flushed_by_size, flushed_by_delay;
+
+        protected DestinationQueue(Address dest) {
+            this.dest=dest;
+        }
+
+        protected int size() {
+            lock.lock();
+            try {
+                return msgs.size();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        /** Adds a message; flushes before, if the message doesn't fit, and after, if the flush size was exceeded.
+         * Returns true if the queue was empty before adding the message */
+        protected boolean add(Message msg) {
+            int size=msg.size();
+            lock.lock();
+            if(bytes > 0 && bytes + size > transport.getMaxBundleSize()) {
+                flushed_by_size++;
+                flush(); // releases lock
+                lock.lock();
+            }
+            boolean was_empty=msgs.isEmpty();
+            if(was_empty)
+                first_msg_time=System.nanoTime();
+            msgs.add(msg);
+            bytes+=size;
+            // a removed queue is not seen by the flusher anymore: send right away (sender got it before the removal)
+            if(bytes >= flush_size || removed) {
+                if(!removed)
+                    flushed_by_size++;
+                flush(); // releases lock
+                return false;
+            }
+            lock.unlock();
+            return was_empty;
+        }
+
+        /** Hands the queue to the thread pool if its max delay has elapsed. Returns the time (ns) until the queue
+         * expires next */
+        protected long flushIfExpired(long now) {
+            lock.lock();
+            try {
+                if(msgs.isEmpty() || flush_pending)
+                    return Long.MAX_VALUE; // the pending flush will send all messages
+                long remaining=first_msg_time + maxDelay() - now;
+                if(remaining > 0)
+                    return remaining;
+                flush_pending=true;
+            }
+            finally {
+                lock.unlock();
+            }
+            try {
+                transport.getThreadPool().execute(this::flushByDelay);
+            }
+            catch(RejectedExecutionException ex) {
+                flushByDelay();
+            }
+            return Long.MAX_VALUE;
+        }
+
+        protected void flushByDelay() {
+            lock.lock();
+            flush_pending=false;
+            if(msgs.isEmpty()) {
+                lock.unlock();
+                return;
+            }
+            flushed_by_delay++;
+            flush(); // releases lock
+        }
+
+        /** Called when the queue has been removed from queues: sends pending messages */
+        protected void remove() {
+            lock.lock();
+            removed=true;
+            flush(); // releases lock
+        }
+
+        /** The time a batch can wait for more messages, leaving enough time to send it within the latency target */
+        protected long maxDelay() {
+            return Math.max(0, latency_target - send_time);
+        }
+
+        /**
+         * Swaps the accumulated messages with the (empty) send list and sends them. Must be called with lock held;
+         * lock is released before sending. Acquiring send_lock before releasing lock keeps batches in order.
+         */
+        protected void flush() {
+            if(msgs.isEmpty()) {
+                lock.unlock();
+                return;
+            }
+            int num_bytes=bytes;
+            long first=first_msg_time;
+            send_lock.lock();
+            try {
+                List<Message> tmp=sending;
+                sending=msgs;
+                msgs=tmp;
+                bytes=0;
+            }
+            finally {
+                lock.unlock();
+            }
+            try {
+                send(num_bytes, first);
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        // send_lock must be held
+        protected void send(int num_bytes, long first) {
+            int num_msgs=sending.size();
+            long start=System.nanoTime();
+            try {
+                if(out == null)
+                    out=new ByteArrayDataOutputStream(Math.min(num_bytes + TP.MSG_OVERHEAD + 128, transport.getMaxBundleSize() + TP.MSG_OVERHEAD));
+                sendBatch(dest, sending, out);
+                if(transport.statsEnabled())
+                    transport.incrBatchesSent(num_msgs);
+            }
+            catch(Throwable t) {
+                log.trace(Util.getMessage("SendFailure"), transport.localAddress(), dest == null? "cluster" : dest,
+                          num_bytes, t.toString(), "");
+            }
+            finally {
+                long now=System.nanoTime();
+                adjust(now - start, now - first);
+                avg_batch_size.add(num_msgs);
+                sending.clear();
+            }
+        }
+
+        /** Adapts the flush size to the latency of the last batch (AIMD) */
+        protected void adjust(long send_time, long latency) {
+            avg_send_time.add(send_time);
+            this.send_time=(long)avg_send_time.average();
+            avg_latency.add(latency);
+            int max_size=transport.getMaxBundleSize();
+            if(latency > latency_target)
+                flush_size=Math.max(min_flush_size, flush_size / 2);
+            else if(flush_size < max_size)
+                flush_size=Math.min(max_size, flush_size + min_flush_size);
+        }
+
+        protected void resetStats() {
+            lock.lock();
+            try {
+                flushed_by_size=flushed_by_delay=0;
+            }
+            finally {
+                lock.unlock();
+            }
+            send_lock.lock();
+            try {
+                avg_send_time.clear();
+                send_time=0;
+                avg_latency.clear();
+                avg_batch_size.clear();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        public String toString() {
+            return String.format("flush-size=%d max-delay=%d us, send-time=%s, latency=%s, batch-size=%s, " +
+                                   "flushed by size/delay: %d/%d",
+                                 flush_size, TimeUnit.NANOSECONDS.toMicros(maxDelay()), avg_send_time, avg_latency,
+                                 avg_batch_size, flushed_by_size, flushed_by_delay);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link PerDestinationBundler}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class PerDestinationBundlerTest {
+    protected JChannel             ch;
+    protected RecordingBundler     bundler;
+    protected static final Address B=Util.createRandomAddress("B"), C=Util.createRandomAddress("C");
+
+    @BeforeMethod protected void setup() throws Exception {
+        bundler=new RecordingBundler();
+        ch=new JChannel(new SHARED_LOOPBACK().setBundler(bundler),
+                        new SHARED_LOOPBACK_PING(),
+                        new NAKACK2(),
+                        new STABLE(),
+                        new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name("A").connect(getClass().getSimpleName());
+    }
+
+    @AfterMethod protected void destroy() {
+        bundler.unblock();
+        Util.close(ch);
+    }
+
+    /** Messages queued for a member that left must be sent when its queue is removed, not dropped */
+    public void testViewChangeFlushesRemovedQueue() throws Exception {
+        bundler.latencyTarget(TimeUnit.SECONDS.toMicros(10)); // only flushed by the view change
+        for(int i=1; i <= 5; i++)
+            bundler.send(msg(B, i));
+        assert bundler.getNumDestinations() == 1 && bundler.size() == 5;
+        bundler.viewChange(View.create(ch.getAddress(), 10, ch.getAddress()));
+        assert bundler.getNumDestinations() == 0 && bundler.size() == 0;
+        assert bundler.sent(B).equals(Arrays.asList(1, 2, 3, 4, 5));
+    }
+
+    /** A message added to a queue that was removed concurrently (e.g. by a view change) must still be sent */
+    public void testAddToRemovedQueue() throws Exception {
+        bundler.latencyTarget(TimeUnit.SECONDS.toMicros(10));
+        PerDestinationBundler.DestinationQueue q=bundler.queues.computeIfAbsent(B, a -> bundler.new DestinationQueue(a));
+        bundler.viewChange(View.create(ch.getAddress(), 10, ch.getAddress()));
+        q.add(msg(B, 1));
+        assert bundler.sent(B).equals(List.of(1));
+        assert q.size() == 0;
+    }
+
+    /** A blocked send to B must not prevent batches to C from being flushed by the bundler thread */
+    public void testSlowDestinationDoesNotDelayOthers() throws Exception {
+        bundler.block(B).latencyTarget(1000);
+        bundler.send(msg(B, 1));
+        Util.waitUntil(5000, 10, () -> bundler.sending_to_b);
+        for(int i=1; i <= 3; i++)
+            bundler.send(msg(C, i));
+        Util.waitUntil(5000, 10, () -> bundler.sent(C).size() == 3);
+        assert bundler.sent(C).equals(Arrays.asList(1, 2, 3));
+        assert bundler.sent(B).isEmpty();
+
+        bundler.send(msg(B, 2)); // must not block, although a send to B is in progress
+        bundler.unblock();
+        Util.waitUntil(5000, 10, () -> bundler.sent(B).size() == 2);
+        assert bundler.sent(B).equals(Arrays.asList(1, 2));
+    }
+
+    /** Messages to the same destination are sent in order, even when flushed concurrently by size and delay */
+    public void testOrderingWithConcurrentFlushes() throws Exception {
+        bundler.latencyTarget(10).minFlushSize(1);
+        final int NUM=5000;
+        for(int i=1; i <= NUM; i++)
+            bundler.send(msg(B, i));
+        Util.waitUntil(5000, 10, () -> bundler.sent(B).size() == NUM);
+        List<Integer> list=bundler.sent(B);
+        for(int i=0; i < list.size(); i++)
+            assert list.get(i) == i+1 : String.format("expected %d but got %d", i+1, list.get(i));
+    }
+
+    protected Message msg(Address dest, int num) {
+        return new ObjectMessage(dest, num).setSrc(ch.getAddress());
+    }
+
+    protected static class RecordingBundler extends PerDestinationBundler {
+        protected final Map<Address,List<Integer>> sent=new ConcurrentHashMap<>();
+        protected volatile Address                 block;
+        protected final CountDownLatch             blocked=new CountDownLatch(1);
+        protected volatile boolean                 sending_to_b;
+
+        protected RecordingBundler block(Address a) {block=a; return this;}
+        protected void             unblock()        {blocked.countDown();}
+
+        protected List<Integer> sent(Address dest) {
+            List<Integer> l=sent.get(dest);
+            if(l == null)
+                return new ArrayList<>();
+            synchronized(l) {
+                return new ArrayList<>(l);
+            }
+        }
+
+        @Override
+        protected void sendBatch(Address dest, List<Message> list, ByteArrayDataOutputStream out) throws Exception {
+            if(dest != null && dest.equals(block)) {
+                sending_to_b=true;
+                blocked.await();
+            }
+            if(dest == null)
+                return;
+            List<Integer> l=sent.computeIfAbsent(dest, d -> new ArrayList<>());
+            synchronized(l) {
+                for(Message m: list)
+                    l.add(m.getObject());
+            }
+        }
+    }
+}
@@ -42,6 +42,7 @@ public class ProtocolStack extends Protocol {
     protected Protocol            bottom_prot;
     protected JChannel            channel;
     protected volatile boolean    stopped=true;
+    protected volatile int        num_headers=Util.DEFAULT_HEADERS; // max number of headers of a sent message
 
 
     public ProtocolStack topProtocol(Protocol top)       {this.top_prot=top; return this;}
@@ -187,6 +188,19 @@ public class ProtocolStack extends Protocol {
 
     public JChannel getChannel() {return channel;}
 
+    /** Returns the max number of headers added to a message by the protocols of this stack */
+    public int getNumHeaders() {return num_headers;}
+
+    /**
+     * Called by the transport with the number of headers of a message it sends. Only protocols which actually add
+     * headers are therefore counted
+     */
+    public ProtocolStack updateNumHeaders(int num) {
+        if(num > num_headers)
+            num_headers=num;
+        return this;
+    }
+
     public ProtocolStack setChannel(JChannel ch) {
         this.channel=ch; return this;
     }
@@ -921,11 +935,17 @@ public class ProtocolStack extends Protocol {
 
     public Object down(Message msg) {
         if(top_prot != null)
-            return top_prot.down(msg);
+            return top_prot.down(sizeHeaders(msg, getNumHeaders()));
         return null;
     }
 
 
+    /** Sizes the headers of msg, so that the protocols adding headers don't need to resize them */
+    protected static Message sizeHeaders(Message msg, int num_headers) {
+        if(msg instanceof BaseMessage)
+            ((BaseMessage)msg).sizeHeaders(num_headers);
+        return msg;
+    }
 
     protected static void callAfterCreationHook(Protocol prot, String classname) throws Exception {
         if(classname == null || prot == null)
@@ -17,7 +17,11 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 
@@ -54,9 +58,27 @@ public class RequestCorrelator {
     /** Whether or not to use async dispatcher */
     protected boolean                                async_dispatching;
 
+    /** Handles OOB requests in a separate virtual thread, so that a blocking request handler doesn't block the
+     * delivery of the messages following the request (e.g. in the same batch) */
+    protected boolean                                virtual_threads;
+
     // send exceptions back wrapped in an {@link InvocationTargetException}, or not
     protected boolean                                wrap_exceptions=false;
 
+    /** Interval (ms) at which sync unicast requests with flag {@link Message.Flag#NO_RELIABILITY} are resent until a
+     * response has been received. Such requests bypass UNICAST3 (no connection, seqnos or ACKs); the request handler
+     * has to be idempotent as a request may be received more than once. 0 disables resending */
+    protected long                                   xmit_interval;
+
+    /** Used to resend requests with flag NO_RELIABILITY; resending is disabled when null */
+    protected TimeScheduler                          timer;
+
+    /** Handles OOB requests when virtual_threads is true, but virtual threads are not available in this JDK */
+    protected Executor                               thread_pool;
+
+    /** Number of times a request with flag NO_RELIABILITY was resent */
+    protected final LongAdder                        num_xmits=new LongAdder();
+
     protected final MyProbeHandler                   probe_handler=new MyProbeHandler();
 
     protected final RpcStats                         rpc_stats=new RpcStats(false);
@@ -98,8 +120,17 @@ public class RequestCorrelator {
     public RequestCorrelator      setLocalAddress(Address a)     {this.local_addr=a; return this;}
     public boolean                asyncDispatching()             {return async_dispatching;}
     public RequestCorrelator      asyncDispatching(boolean flag) {async_dispatching=flag; return this;}
+    public boolean                virtualThreads()               {return virtual_threads;}
+    public RequestCorrelator      virtualThreads(boolean flag)   {virtual_threads=flag; return this;}
     public boolean                wrapExceptions()               {return wrap_exceptions;}
     public RequestCorrelator      wrapExceptions(boolean flag)   {wrap_exceptions=flag; return this;}
+    public long                   xmitInterval()                 {return xmit_interval;}
+    public RequestCorrelator      xmitInterval(long i)           {xmit_interval=i; return this;}
+    public TimeScheduler          timer()                        {return timer;}
+    public RequestCorrelator      timer(TimeScheduler t)         {timer=t; return this;}
+    public Executor               threadPool()                   {return thread_pool;}
+    public RequestCorrelator      threadPool(Executor p)         {thread_pool=p; return this;}
+    public long                   numXmits()                     {return num_xmits.sum();}
 
 
     /**
@@ -174,7 +205,16 @@ public class RequestCorrelator {
         }
         else // async RPC
             rpc_stats.add(RpcStats.Type.UNICAST, dest, false, 0);
+        Message copy=req != null && resendUntilResponse(msg)? msg.copy(true, true) : null;
         transport.down(msg);
+        if(copy != null)
+            timer.schedule(new RequestResender<>(copy, req), xmit_interval, TimeUnit.MILLISECONDS, false);
+    }
+
+    /** Whether the request has to be resent until a response has been received: it bypasses UNICAST3 */
+    protected boolean resendUntilResponse(Message msg) {
+        return xmit_interval > 0 && timer != null && msg.isFlagSet(Message.Flag.NO_RELIABILITY)
+          && !Objects.equals(msg.getDest(), local_addr);
     }
 
 
@@ -332,7 +372,11 @@ public class RequestCorrelator {
     protected void dispatch(final Message msg, final Header hdr) {
         switch(hdr.type) {
             case Header.REQ:
-                handleRequest(msg, hdr);
+                // regular requests are handled on the caller's thread to preserve ordering
+                if(virtual_threads && msg.isFlagSet(Message.Flag.OOB))
+                    handleRequestInSeparateThread(msg, hdr);
+                else
+                    handleRequest(msg, hdr);
                 break;
 
             case Header.RSP:
@@ -350,6 +394,30 @@ public class RequestCorrelator {
         }
     }
 
+    /**
+     * Handles an OOB request in a new virtual thread. Without virtual threads, Util.createFiber() would create a
+     * platform thread per request, so the (bounded) thread pool of the transport is used instead. If there is no
+     * thread pool, or the task is rejected, the request is handled on the caller's thread
+     */
+    protected void handleRequestInSeparateThread(Message msg, Header hdr) {
+        Runnable r=() -> handleRequest(msg, hdr);
+        if(Util.fibersAvailable()) {
+            Util.createFiber(r, "RequestCorrelator-" + hdr.req_id).start();
+            return;
+        }
+        Executor pool=thread_pool;
+        if(pool != null) {
+            try {
+                pool.execute(r);
+                return;
+            }
+            catch(RejectedExecutionException ex) {
+                log.trace("%s: thread pool rejected request %d, handling it on the caller's thread", local_addr, hdr.req_id);
+            }
+        }
+        r.run();
+    }
+
     /** Handle a request msg for this correlator */
     protected void handleRequest(Message req, Header hdr) {
         Object        retval;
@@ -409,6 +477,33 @@ public class RequestCorrelator {
     // .......................................................................
 
 
+    /** Resends a request (with flag NO_RELIABILITY) every xmit_interval ms until it has been removed */
+    protected class RequestResender<T> implements Runnable {
+        protected final Message    req_msg;
+        protected final Request<T> req;
+
+        protected RequestResender(Message req_msg, Request<T> req) {
+            this.req_msg=req_msg;
+            this.req=req;
+        }
+
+        public void run() {
+            if(!started || req.isDone() || requests.get(req.requestId()) != req)
+                return;
+            if(log.isTraceEnabled())
+                log.trace("%s: resending request %d to %s", local_addr, req.requestId(), req_msg.getDest());
+            num_xmits.increment();
+            transport.down(req_msg.copy(true, true));
+            timer.schedule(this, xmit_interval, TimeUnit.MILLISECONDS, false);
+        }
+
+        public String toString() {
+            return String.format("%s: resending request %d (interval=%d ms)", RequestCorrelator.class.getSimpleName(),
+                                 req.requestId(), xmit_interval);
+        }
+    }
+
+
     protected class ResponseImpl implements Response {
         protected final Message req;
         protected final long    req_id;
@@ -580,6 +675,7 @@ public class RequestCorrelator {
                         retval.put("async multicast RPCs", String.valueOf(rpc_stats.multicasts(false)));
                         retval.put("sync  anycast   RPCs", String.valueOf(rpc_stats.anycasts(true)));
                         retval.put("async anycast   RPCs", String.valueOf(rpc_stats.anycasts(false)));
+                        retval.put("resent unreliable requests", String.valueOf(num_xmits.sum()));
                         break;
                     case "rpcs-reset":
                         rpc_stats.reset();
@@ -2,10 +2,15 @@ package org.jgroups.protocols;
 
 
 import org.jgroups.*;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.HeaderDictionary;
 import org.jgroups.util.RingBuffer;
 import org.jgroups.util.Runner;
 import org.jgroups.util.Util;
 
+import java.io.DataOutput;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
@@ -23,6 +28,8 @@ public class RingBufferBundler extends BaseBundler {
     protected BiConsumer<Integer,Integer> wait_strategy=SPIN_PARK;
     protected int                         capacity;
     protected final Runnable              run_function=this::readMessages;
+    protected final Segments              segments=new Segments(16); // used with gathering writes
+    protected final HeaderDictionary      dict=new HeaderDictionary(); // used with compact headers
 
     protected static final BiConsumer<Integer,Integer> SPIN=(it,spins) -> {;};
     protected static final BiConsumer<Integer,Integer> YIELD=(it,spins) -> Thread.yield();
@@ -100,27 +107,37 @@ public class RingBufferBundler extends BaseBundler {
             }
 
             Address dest=msg.getDest();
+            // compact headers can only be written by BaseMessages
+            boolean compact=transport.compactHeaders() && msg instanceof BaseMessage;
             try {
                 output.position(0);
-                Util.writeMessageListHeader(dest, msg.getSrc(), cluster_name, 1, output, dest == null);
+                Util.writeMessageListHeader(dest, msg.getSrc(), cluster_name, 1, output, dest == null, compact);
 
                 // remember the position at which the number of messages (an int) was written, so we can later set the
                 // correct value (when we know the correct number of messages)
                 int size_pos=output.position() - Global.INT_SIZE;
-                int num_msgs=marshalMessagesToSameDestination(dest, buf, start, end, max_bundle_size);
+                int num_msgs=marshalMessagesToSameDestination(dest, buf, start, end, max_bundle_size, compact);
                 if(num_msgs > 1) {
                     int current_pos=output.position();
                     output.position(size_pos);
                     output.writeInt(num_msgs);
                     output.position(current_pos);
                 }
-                transport.doSend(output.buffer(), 0, output.position(), dest);
+                if(segments.isEmpty())
+                    transport.doSend(output.buffer(), 0, output.position(), dest);
+                else {
+                    ByteBuffer[] bufs=segments.toBuffers(output);
+                    transport.doSend(bufs, segments.length(), dest);
+                }
                 if(transport.statsEnabled())
                     transport.incrBatchesSent(num_msgs);
             }
             catch(Exception ex) {
                 log.error("failed to send message(s) to %s: %s", dest == null? "group" : dest, ex.getMessage());
             }
+            finally {
+                segments.clear();
+            }
 
             if(start == end)
                 break;
@@ -128,20 +145,32 @@ public class RingBufferBundler extends BaseBundler {
         }
     }
 
-    // Iterate through the following messages and find messages to the same destination (dest) and write them to output
-    protected int marshalMessagesToSameDestination(Address dest, Message[] buf,
-                                                   int start_index, final int end_index, int max_bundle_size) throws Exception {
+    // Iterate through the following messages and find messages to the same destination (dest) and write them to output.
+    // If compact is true, the list ends at the first message which is not a BaseMessage
+    protected int marshalMessagesToSameDestination(Address dest, Message[] buf, int start_index, final int end_index,
+                                                   int max_bundle_size, boolean compact) throws Exception {
         int num_msgs=0, bytes=0;
+        boolean gather=dest != null && transport.gatheringWrites();
+        HeaderDictionary d=compact? dict.clear() : null;
+        int min_gather_size=transport.getGatheringWritesMinSize();
         for(;;) {
             Message msg=buf[start_index];
             if(msg != null && Objects.equals(dest, msg.getDest())) {
+                boolean base=msg instanceof BaseMessage;
+                if(compact && !base) // sent in the next list, which will not use compact headers
+                    break;
                 int size=msg.size();
                 if(bytes + size > max_bundle_size)
                     break;
                 bytes+=size;
                 num_msgs++;
                 buf[start_index]=null;
-                msg.writeToNoAddrs(msg.getSrc(), output, transport.getId());
+                if(!base)
+                    msg.writeToNoAddrs(msg.getSrc(), output, transport.getId());
+                else if(gather && msg.getType() == Message.BYTES_MSG && msg.hasArray() && msg.getLength() >= min_gather_size)
+                    writeWithSeparatePayload((BaseMessage)msg, d);
+                else
+                    ((BaseMessage)msg).writeToNoAddrs(msg.getSrc(), output, d, transport.getId());
             }
             if(start_index == end_index)
                 break;
@@ -150,6 +179,16 @@ public class RingBufferBundler extends BaseBundler {
         return num_msgs;
     }
 
+    /**
+     * Writes everything but the payload of a BytesMessage to output, and adds the payload as a separate segment. The
+     * resulting byte stream is the same as that of {@link Message#writeToNoAddrs(Address,DataOutput,short...)}
+     */
+    protected void writeWithSeparatePayload(BaseMessage msg, HeaderDictionary d) throws Exception {
+        msg.writeMetadataNoAddrs(msg.getSrc(), output, d, transport.getId());
+        output.writeInt(msg.getLength()); // BytesMessage.writePayload() writes the length before the array
+        segments.add(output.position(), msg.getArray(), msg.getOffset(), msg.getLength());
+    }
+
     protected void readMessages() {
         try {
             int available_msgs=rb.waitForMessages(num_spins, wait_strategy);
@@ -204,4 +243,69 @@ public class RingBufferBundler extends BaseBundler {
         if(value <= 0) throw new IllegalArgumentException(message);
         return value;
     }
+
+
+    /**
+     * Keeps track of the payloads which are written separately from the output buffer (gathering writes). The
+     * regions of the output buffer between payloads are only turned into buffers by {@link #toBuffers}, as the
+     * output buffer may get reallocated while messages are marshalled.
+     */
+    protected static class Segments {
+        protected int[]    marks;    // position in the output buffer at which the payload at the same index was inserted
+        protected byte[][] payloads;
+        protected int[]    offsets, lengths;
+        protected int      size, length;
+
+        protected Segments(int capacity) {
+            marks=new int[capacity];
+            payloads=new byte[capacity][];
+            offsets=new int[capacity];
+            lengths=new int[capacity];
+        }
+
+        protected boolean isEmpty() {return size == 0;}
+        protected int     length()  {return length;}
+
+        protected Segments add(int mark, byte[] payload, int offset, int len) {
+            if(size >= payloads.length) {
+                int new_capacity=payloads.length * 2;
+                marks=Arrays.copyOf(marks, new_capacity);
+                payloads=Arrays.copyOf(payloads, new_capacity);
+                offsets=Arrays.copyOf(offsets, new_capacity);
+                lengths=Arrays.copyOf(lengths, new_capacity);
+            }
+            marks[size]=mark;
+            payloads[size]=payload;
+            offsets[size]=offset;
+            lengths[size++]=len;
+            return this;
+        }
+
+        /** Interleaves the regions of the output buffer with the payloads. Sets {@link #length()} */
+        protected ByteBuffer[] toBuffers(ByteArrayDataOutputStream out) {
+            byte[] out_buf=out.buffer();
+            int end=out.position();
+            boolean trailer=marks[size-1] < end;
+            ByteBuffer[] retval=new ByteBuffer[size*2 + (trailer? 1 : 0)];
+            int index=0, prev_mark=0;
+            length=0;
+            for(int i=0; i < size; i++) {
+                retval[index++]=ByteBuffer.wrap(out_buf, prev_mark, marks[i] - prev_mark);
+                retval[index++]=ByteBuffer.wrap(payloads[i], offsets[i], lengths[i]);
+                length+=marks[i] - prev_mark + lengths[i];
+                prev_mark=marks[i];
+            }
+            if(trailer) {
+                retval[index]=ByteBuffer.wrap(out_buf, prev_mark, end - prev_mark);
+                length+=end - prev_mark;
+            }
+            return retval;
+        }
+
+        protected void clear() {
+            if(size > 0)
+                Arrays.fill(payloads, 0, size, null); // don't hold on to payloads of sent messages
+            size=length=0;
+        }
+    }
 }
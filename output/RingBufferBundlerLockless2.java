@@ -1,6 +1,7 @@
 package org.jgroups.protocols;
 
 import org.jgroups.Address;
+import org.jgroups.BaseMessage;
 import org.jgroups.EmptyMessage;
 import org.jgroups.Global;
 import org.jgroups.Message;
@@ -28,6 +29,7 @@ public class RingBufferBundlerLockless2 extends BaseBundler {
     protected final AtomicBoolean   unparking;
     protected Runner                bundler_thread;
     protected final Runnable        run_function=this::readMessages;
+    protected final HeaderDictionary dict=new HeaderDictionary(); // used with compact headers
     protected static final String   THREAD_NAME=RingBufferBundlerLockless2.class.getSimpleName();
     public static final Message     NULL_MSG=new EmptyMessage(); // public for unit test
 
@@ -168,14 +170,15 @@ public class RingBufferBundlerLockless2 extends BaseBundler {
                 break;
 
             Address dest=msg.getDest();
+            boolean compact=transport.compactHeaders() && msg instanceof BaseMessage;
             try {
                 output.position(0);
-                Util.writeMessageListHeader(dest, msg.getSrc(), cluster_name, 1, output, dest == null);
+                Util.writeMessageListHeader(dest, msg.getSrc(), cluster_name, 1, output, dest == null, compact);
 
                 // remember the position at which the number of messages (an int) was written, so we can later set the
                 // correct value (when we know the correct number of messages)
                 int size_pos=output.position() - Global.INT_SIZE;
-                int num_msgs=marshalMessagesToSameDestination(dest, buf, i, write_index, max_bundle_size);
+                int num_msgs=marshalMessagesToSameDestination(dest, buf, i, write_index, max_bundle_size, compact);
                 sent_msgs+=num_msgs;
                 if(num_msgs > 1) {
                     int current_pos=output.position();
@@ -198,20 +201,28 @@ public class RingBufferBundlerLockless2 extends BaseBundler {
 
 
 
-    // Iterate through the following messages and find messages to the same destination (dest) and write them to output
+    // Iterate through the following messages and find messages to the same destination (dest) and write them to output.
+    // If compact is true, the list ends at the first message which is not a BaseMessage
     protected int marshalMessagesToSameDestination(Address dest, Message[] buf, final int start_index, final int end_index,
-                                                   int max_bundle_size) throws Exception {
+                                                   int max_bundle_size, boolean compact) throws Exception {
         int num_msgs=0, bytes=0;
+        HeaderDictionary d=compact? dict.clear() : null;
         for(int i=start_index; i != end_index; i=increment(i)) {
             Message msg=buf[i];
             if(msg != null && msg != NULL_MSG && Objects.equals(dest, msg.getDest())) {
+                boolean base=msg instanceof BaseMessage;
+                if(compact && !base) // sent in the next list, which will not use compact headers
+                    break;
                 int msg_size=msg.size();
                 if(bytes + msg_size > max_bundle_size)
                     break;
                 bytes+=msg_size;
                 num_msgs++;
                 buf[i]=NULL_MSG;
-                msg.writeToNoAddrs(msg.getSrc(), output, transport.getId());
+                if(d == null || !base)
+                    msg.writeToNoAddrs(msg.getSrc(), output, transport.getId());
+                else
+                    ((BaseMessage)msg).writeToNoAddrs(msg.getSrc(), output, d, transport.getId());
             }
         }
         return num_msgs;
@@ -0,0 +1,418 @@
+package org.jgroups.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link Buffer} which, instead of a matrix of rows guarded by a lock (like {@link Table}), stores
+ * elements in a power-of-two ring, at index {@code seqno & mask}. Semantics (low, highest delivered, highest received,
+ * purging, filters) are the same as those of Table.
+ * <ul>
+ *     <li>Adds CAS the element into its slot and only take the shared side of a {@link StampedLock}, so concurrent
+ *         adders never block each other</li>
+ *     <li>Reads ({@link #get(long)}) are lock-free (optimistic reads)</li>
+ *     <li>Removal is single-consumer: callers already ensure (via {@link #getAdders()}) that only one thread removes
+ *         elements at a time; the remove lock only serializes removers with adders passing a remove filter</li>
+ *     <li>Only resizing (when a seqno is added beyond the capacity) and purging take the exclusive side of the lock.
+ *         The ring grows by doubling and is never compacted</li>
+ *     <li>All slots of seqnos <= low are null, so that they can be reused by seqno + capacity</li>
+ * </ul>
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class RingTable<T> implements Buffer<T> {
+    protected volatile AtomicReferenceArray<T> ring;
+    protected volatile long                    low_seqno; // seqnos <= low_seqno have been purged
+    protected volatile long                    hd_seqno;  // the highest delivered (= removed) seqno
+    protected final AtomicLong                 hr_seqno;  // the highest received seqno
+    protected final AtomicInteger              num_elements=new AtomicInteger(); // undelivered elements
+    protected final StampedLock                ring_lock=new StampedLock(); // exclusive: resize and purge
+    protected final Lock                       remove_lock=new ReentrantLock();
+    protected final AtomicInteger              adders=new AtomicInteger();
+    protected int                              ring_resizes, ring_purges;
+
+
+    /**
+     * Creates a ring table
+     * @param capacity The initial capacity; rounded up to the next power of 2
+     * @param offset The seqno of the element preceding the first element (low, hd and hr are set to it)
+     */
+    public RingTable(int capacity, long offset) {
+        ring=new AtomicReferenceArray<>(Util.getNextHigherPowerOfTwo(Math.max(capacity, 2)));
+        low_seqno=hd_seqno=offset;
+        hr_seqno=new AtomicLong(offset);
+    }
+
+    @Override public int     capacity()              {return ring.length();}
+    @Override public int     getNumRows()            {return 1;}
+    @Override public int     getNumCompactions()     {return 0;}
+    @Override public int     getNumMoves()           {return 0;}
+    @Override public int     getNumResizes()         {return ring_resizes;}
+    @Override public int     getNumPurges()          {return ring_purges;}
+    @Override public long    getLow()                {return low_seqno;}
+    @Override public long    getHighestDelivered()   {return hd_seqno;}
+    @Override public long    getHighestReceived()    {return hr_seqno.get();}
+    @Override public long[]  getDigest()             {return new long[]{hd_seqno, hr_seqno.get()};}
+    @Override public int     size()                  {return num_elements.get();}
+    @Override public boolean isEmpty()               {return num_elements.get() <= 0;}
+    @Override public int     getNumMissing()         {return (int)Math.max(0, hr_seqno.get() - hd_seqno - num_elements.get());}
+    @Override public void    compact()               {}
+    @Override public AtomicInteger getAdders()       {return adders;}
+
+    @Override public void resetStats() {
+        ring_resizes=ring_purges=0;
+    }
+
+    @Override public void setHighestDelivered(long seqno) {
+        remove_lock.lock();
+        try {
+            hd_seqno=seqno;
+        }
+        finally {
+            remove_lock.unlock();
+        }
+    }
+
+    @Override public long getHighestDeliverable() {
+        long seqno=hd_seqno;
+        while(seqno < hr_seqno.get() && get(seqno + 1) != null)
+            seqno++;
+        return seqno;
+    }
+
+    @Override public int getNumDeliverable() {
+        return (int)(getHighestDeliverable() - hd_seqno);
+    }
+
+
+    @Override public boolean add(long seqno, T element) {
+        return add(seqno, element, null);
+    }
+
+    @Override public boolean add(long seqno, T element, Predicate<T> remove_filter) {
+        if(!_add(seqno, element))
+            return false;
+        if(remove_filter != null && seqno == hd_seqno + 1)
+            skipFiltered(remove_filter);
+        return true;
+    }
+
+    @Override public boolean add(List<LongTuple<T>> list) {
+        return add(list, false);
+    }
+
+    @Override public boolean add(List<LongTuple<T>> list, boolean remove_added_elements) {
+        return add(list, remove_added_elements, null);
+    }
+
+    /**
+     * Adds elements from the list
+     * @param list The list of tuples of seqnos and elements
+     * @param remove_added_elements If true, elements that could not be added are removed from the list
+     * @param const_value If non-null, this value is added instead of the elements of the list
+     * @return True if at least 1 element was added
+     */
+    @Override public boolean add(List<LongTuple<T>> list, boolean remove_added_elements, T const_value) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        for(Iterator<LongTuple<T>> it=list.iterator(); it.hasNext();) {
+            LongTuple<T> tuple=it.next();
+            if(_add(tuple.getVal1(), const_value != null? const_value : tuple.getVal2()))
+                added=true;
+            else if(remove_added_elements)
+                it.remove();
+        }
+        return added;
+    }
+
+    @Override public T get(long seqno) {
+        StampedLock l=ring_lock;
+        long stamp=l.tryOptimisticRead();
+        T element=_get(seqno);
+        if(l.validate(stamp))
+            return element;
+        stamp=l.readLock();
+        try {
+            return _get(seqno);
+        }
+        finally {
+            l.unlockRead(stamp);
+        }
+    }
+
+    public T _get(long seqno) {
+        if(seqno <= low_seqno || seqno > hr_seqno.get())
+            return null;
+        AtomicReferenceArray<T> r=ring;
+        return r.get(index(r, seqno));
+    }
+
+    public List<T> get(long from, long to) {
+        List<T> retval=null;
+        for(long seqno=from; seqno <= to; seqno++) {
+            T element=get(seqno);
+            if(element != null) {
+                if(retval == null)
+                    retval=new ArrayList<>();
+                retval.add(element);
+            }
+        }
+        return retval;
+    }
+
+    @Override public T remove() {
+        return remove(true);
+    }
+
+    @Override public T remove(boolean nullify) {
+        List<T> list=removeMany(nullify, 1);
+        return list != null? list.get(0) : null;
+    }
+
+    @Override public List<T> removeMany(boolean nullify, int max_results) {
+        return removeMany(nullify, max_results, null);
+    }
+
+    @Override public List<T> removeMany(boolean nullify, int max_results, Predicate<T> filter) {
+        return removeMany(nullify, max_results, filter, ArrayList::new, List::add);
+    }
+
+    /**
+     * Removes elements from hd+1 up to the first missing element (or max_results elements) and advances hd.
+     * Removed elements passing the filter are added to the result (created lazily by result_creator)
+     * @return The result, or null if no element was added to it
+     */
+    @Override public <R> R removeMany(boolean nullify, int max_results, Predicate<T> filter,
+                                      Supplier<R> result_creator, BiConsumer<R,T> accumulator) {
+        R result=null;
+        int num_removed=0;
+        remove_lock.lock();
+        try {
+            long stamp=ring_lock.readLock();
+            try {
+                AtomicReferenceArray<T> r=ring;
+                long first=hd_seqno + 1, seqno=first;
+                for(; seqno <= hr_seqno.get() && (max_results <= 0 || num_removed < max_results); seqno++) {
+                    int index=index(r, seqno);
+                    T element=r.get(index);
+                    if(element == null)
+                        break;
+                    if(filter == null || filter.test(element)) {
+                        if(result == null)
+                            result=result_creator.get();
+                        accumulator.accept(result, element);
+                    }
+                    hd_seqno=seqno; // removers are serialized by remove_lock; set before nulling the slot (see _add())
+                    if(nullify)
+                        r.set(index, null);
+                    num_removed++;
+                }
+                if(nullify && hd_seqno > low_seqno) {
+                    // also null the slots of elements skipped by skipFiltered(), or seqno + capacity couldn't be added
+                    for(long i=low_seqno + 1; i < first; i++)
+                        r.set(index(r, i), null);
+                    low_seqno=hd_seqno; // after nulling the slots: adders may now reuse them
+                }
+            }
+            finally {
+                ring_lock.unlockRead(stamp);
+            }
+        }
+        finally {
+            remove_lock.unlock();
+        }
+        if(num_removed > 0)
+            num_elements.addAndGet(-num_removed);
+        return result;
+    }
+
+    @Override public void purge(long seqno) {
+        purge(seqno, false);
+    }
+
+    /**
+     * Removes all elements <= seqno. If force is false, only delivered elements (<= hd) are removed, else all
+     * elements <= seqno are removed and hd (and hr) are set to seqno if lower
+     */
+    @Override public void purge(long seqno, boolean force) {
+        remove_lock.lock();
+        try {
+            long to=force? seqno : Math.min(seqno, hd_seqno);
+            if(to <= low_seqno)
+                return;
+            long stamp=ring_lock.writeLock();
+            try {
+                AtomicReferenceArray<T> r=ring;
+                int removed=0;
+                for(long i=low_seqno + 1; i <= to; i++) {
+                    int index=index(r, i);
+                    if(r.get(index) != null && i > hd_seqno)
+                        removed++;
+                    r.set(index, null);
+                }
+                low_seqno=to;
+                if(hd_seqno < to) {
+                    hd_seqno=to;
+                    num_elements.addAndGet(-removed);
+                }
+                hr_seqno.accumulateAndGet(to, Math::max);
+                ring_purges++;
+            }
+            finally {
+                ring_lock.unlockWrite(stamp);
+            }
+        }
+        finally {
+            remove_lock.unlock();
+        }
+    }
+
+    @Override public void forEach(long from, long to, Visitor<T> visitor) {
+        for(long seqno=Math.max(from, low_seqno + 1); seqno <= to; seqno++) {
+            AtomicReferenceArray<T> r=ring;
+            if(!visitor.visit(seqno, get(seqno), 0, index(r, seqno)))
+                break;
+        }
+    }
+
+    @Override public Iterator<T> iterator() {
+        return stream().iterator();
+    }
+
+    @Override public Stream<T> stream() {
+        return stream(low_seqno + 1, hr_seqno.get());
+    }
+
+    public Stream<T> stream(long from, long to) {
+        return LongStream.rangeClosed(from, to).mapToObj(this::get);
+    }
+
+    /** Returns the number of undelivered elements */
+    @Override public int computeSize() {
+        int count=0;
+        for(long seqno=hd_seqno + 1, highest=hr_seqno.get(); seqno <= highest; seqno++)
+            if(get(seqno) != null)
+                count++;
+        return count;
+    }
+
+    @Override public SeqnoList getMissing() {
+        return getMissing(0);
+    }
+
+    /** Returns a list of missing seqnos between hd and hr (at most max_msgs if > 0), or null if none are missing */
+    @Override public SeqnoList getMissing(int max_msgs) {
+        long start=hd_seqno + 1, end=hr_seqno.get();
+        if(getNumMissing() == 0 || start >= end)
+            return null;
+        SeqnoList missing=new SeqnoList((int)(end - start), start);
+        int num=0;
+        for(long seqno=start; seqno < end && (max_msgs <= 0 || num < max_msgs); seqno++) {
+            if(get(seqno) == null) {
+                missing.add(seqno);
+                num++;
+            }
+        }
+        return missing.isEmpty()? null : missing;
+    }
+
+    @Override public String toString() {
+        return String.format("[%d | %d | %d] (%d elements, %d missing, capacity=%d)",
+                             low_seqno, hd_seqno, hr_seqno.get(), num_elements.get(), getNumMissing(), ring.length());
+    }
+
+    @Override public String dump() {
+        return stream().filter(Objects::nonNull).map(String::valueOf).reduce((a, b) -> a + ", " + b).orElse("");
+    }
+
+
+    /** CAS-adds the element; takes the exclusive lock only if the ring has to be resized */
+    protected boolean _add(long seqno, T element) {
+        if(element == null)
+            throw new IllegalArgumentException("element must not be null");
+        for(;;) {
+            long stamp=ring_lock.readLock();
+            try {
+                if(seqno <= hd_seqno)
+                    return false;
+                AtomicReferenceArray<T> r=ring;
+                if(seqno - low_seqno <= r.length()) {
+                    int index=index(r, seqno);
+                    if(!r.compareAndSet(index, null, element))
+                        return false;
+                    if(seqno <= hd_seqno) { // removed (and nulled) concurrently: undo the add of the duplicate
+                        r.compareAndSet(index, element, null);
+                        return false;
+                    }
+                    num_elements.incrementAndGet();
+                    hr_seqno.accumulateAndGet(seqno, Math::max);
+                    return true;
+                }
+            }
+            finally {
+                ring_lock.unlockRead(stamp);
+            }
+            resize(seqno);
+        }
+    }
+
+    /** Grows the ring so that seqno fits */
+    protected void resize(long seqno) {
+        long stamp=ring_lock.writeLock();
+        try {
+            AtomicReferenceArray<T> r=ring;
+            long needed=seqno - low_seqno;
+            if(needed <= r.length())
+                return; // someone else resized already
+            if(needed > Integer.MAX_VALUE / 2)
+                throw new IllegalStateException(String.format("seqno %d is too far ahead of low (%d)", seqno, low_seqno));
+            AtomicReferenceArray<T> tmp=new AtomicReferenceArray<>(Util.getNextHigherPowerOfTwo((int)needed));
+            for(long i=low_seqno + 1, highest=hr_seqno.get(); i <= highest; i++)
+                tmp.set(index(tmp, i), r.get(index(r, i)));
+            ring=tmp;
+            ring_resizes++;
+        }
+        finally {
+            ring_lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Advances hd over consecutive elements matching the filter; they won't be delivered by removeMany(). The slots are
+     * not nulled, as the elements may still be needed (e.g. for retransmission), but nulled when low is moved past them
+     * (by a nullifying removeMany() or by purge())
+     */
+    protected void skipFiltered(Predicate<T> filter) {
+        int num_skipped=0;
+        remove_lock.lock();
+        try {
+            for(long seqno=hd_seqno + 1; seqno <= hr_seqno.get(); seqno++) {
+                T element=get(seqno);
+                if(element == null || !filter.test(element))
+                    break;
+                hd_seqno=seqno;
+                num_skipped++;
+            }
+        }
+        finally {
+            remove_lock.unlock();
+        }
+        if(num_skipped > 0)
+            num_elements.addAndGet(-num_skipped);
+    }
+
+    protected static int index(AtomicReferenceArray<?> r, long seqno) {
+        return (int)(seqno & (r.length() - 1));
+    }
+}
@@ -0,0 +1,184 @@
+package org.jgroups.tests;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Tests {@link RingTable}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RingTableTest {
+    protected static final Predicate<Message> dont_loopback_filter=msg -> msg != null && msg.isFlagSet(Message.TransientFlag.DONT_LOOPBACK);
+
+    public void testAddAndGet() {
+        RingTable<Integer> table=new RingTable<>(8, 0);
+        for(int i: Arrays.asList(1,2,3,5))
+            assert table.add(i, i);
+        assert !table.add(3, 3);
+        assert table.get(0) == null && table.get(3) == 3 && table.get(4) == null && table.get(6) == null;
+        assert table.size() == 4 && table.getNumMissing() == 1;
+        assertIndices(table, 0, 0, 5);
+        assert table.getHighestDeliverable() == 3;
+    }
+
+    public void testResize() {
+        RingTable<Integer> table=new RingTable<>(4, 0);
+        for(int i=1; i <= 100; i++)
+            assert table.add(i, i);
+        assert table.capacity() >= 100 && table.getNumResizes() > 0;
+        for(int i=1; i <= 100; i++)
+            assert table.get(i) == i;
+    }
+
+    public void testWrapAround() {
+        RingTable<Integer> table=new RingTable<>(8, 0);
+        for(int i=1; i <= 100; i++) {
+            assert table.add(i, i);
+            assert table.remove() == i;
+        }
+        assert table.capacity() == 8 && table.getNumResizes() == 0;
+        assertIndices(table, 100, 100, 100);
+        assert table.isEmpty();
+    }
+
+    public void testRemoveMany() {
+        RingTable<Integer> table=new RingTable<>(16, 0);
+        for(int seqno: Arrays.asList(1,2,3,4,5,7,8,9,10))
+            table.add(seqno, seqno);
+        List<Integer> list=table.removeMany(true, 4);
+        assert list != null && list.equals(Arrays.asList(1,2,3,4));
+        assert table.size() == 5 && table.getNumMissing() == 1;
+        assertIndices(table, 4, 4, 10);
+
+        list=table.removeMany(false, 0);
+        assert list.size() == 1;
+        assertIndices(table, 4, 5, 10);
+        assert table.removeMany(false, 0) == null;
+        assert table.computeSize() == table.size();
+
+        table.add(6, 6);
+        list=table.removeMany(true, 0);
+        assert list.equals(Arrays.asList(6,7,8,9,10));
+        assertIndices(table, 10, 10, 10);
+    }
+
+    public void testPurge() {
+        RingTable<Integer> table=new RingTable<>(16, 0);
+        IntStream.rangeClosed(1, 10).forEach(i -> table.add(i, i));
+        table.removeMany(false, 5);
+        table.purge(8); // only up to hd
+        assertIndices(table, 5, 5, 10);
+        assert table.get(5) == null && table.get(6) == 6;
+
+        table.purge(8, true);
+        assertIndices(table, 8, 8, 10);
+        assert table.size() == 2;
+        for(int i=1; i <= 8; i++)
+            assert table._get(i) == null;
+    }
+
+    public void testGetMissing() {
+        RingTable<Integer> table=new RingTable<>(16, 0);
+        assert table.getMissing() == null;
+        for(int num: Arrays.asList(2,4,6,8))
+            table.add(num, num);
+        SeqnoList missing=table.getMissing();
+        assert missing.size() == 4 && table.getNumMissing() == 4;
+        missing=table.getMissing(2);
+        assert missing.size() == 2;
+    }
+
+    public void testAddWithFilter() {
+        RingTable<Message> table=new RingTable<>(16, 3);
+        table.add(5, msg(5), dont_loopback_filter);
+        table.add(6, msg(6), dont_loopback_filter);
+        table.add(4, msg(4), dont_loopback_filter);
+        assert table.getHighestReceived() == 6;
+        assert table.getHighestDelivered() == 6;
+        assert table.isEmpty();
+    }
+
+    /** Elements skipped by the filter must not block their slots when the ring wraps around */
+    public void testAddWithFilterAndWrapAround() {
+        RingTable<Message> table=new RingTable<>(8, 0);
+        int delivered=0;
+        for(int i=1; i <= 100; i++) {
+            Message m=i % 3 == 0? new BytesMessage(null, i) : msg(i);
+            assert table.add(i, m, dont_loopback_filter) : String.format("adding %d failed: %s", i, table);
+            List<Message> list=table.removeMany(true, 0);
+            if(list != null) {
+                for(Message msg: list)
+                    assert !dont_loopback_filter.test(msg);
+                delivered+=list.size();
+            }
+        }
+        assert delivered == 33;
+        assert table.capacity() == 8 && table.getNumResizes() == 0;
+        assertIndices(table, 100, 100, 100);
+        assert table.isEmpty();
+    }
+
+    public void testRemoveManyIntoBatch() {
+        RingTable<Message> table=new RingTable<>(16, 0);
+        IntStream.rangeClosed(1, 10).forEach(i -> table.add(i, new BytesMessage(null, "test")));
+        MessageBatch batch=new MessageBatch(10);
+        MessageBatch result=table.removeMany(true, 0, null, () -> batch, MessageBatch::add);
+        assert result == batch && batch.size() == 10;
+        assert table.removeMany(true, 0, null, () -> batch, MessageBatch::add) == null;
+    }
+
+    public void testConcurrentAdds() throws Exception {
+        final RingTable<Integer> table=new RingTable<>(16, 0);
+        final int NUM_THREADS=8, NUM=5000;
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_THREADS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(int j=1; j <= NUM; j++) // all threads add all seqnos (duplicates must be rejected)
+                    table.add(j, j);
+            });
+            adders[i].start();
+        }
+        latch.countDown();
+        int removed=0;
+        while(removed < NUM) {
+            List<Integer> list=table.removeMany(true, 0);
+            if(list != null) {
+                for(int num: list)
+                    assert num == ++removed;
+            }
+        }
+        for(Thread adder: adders)
+            adder.join();
+        assert table.removeMany(true, 0) == null;
+        assertIndices(table, NUM, NUM, NUM);
+        assert table.isEmpty() : table;
+    }
+
+    protected static Message msg(int num) {
+        return new BytesMessage(null, num).setFlag(Message.TransientFlag.DONT_LOOPBACK);
+    }
+
+    protected static <T> void assertIndices(Buffer<T> table, long low, long hd, long hr) {
+        assert table.getLow() == low : "expected low=" + low + " but was " + table.getLow();
+        assert table.getHighestDelivered() == hd : "expected hd=" + hd + " but was " + table.getHighestDelivered();
+        assert table.getHighestReceived()  == hr : "expected hr=" + hr + " but was " + table.getHighestReceived();
+    }
+}
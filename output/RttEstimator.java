@@ -0,0 +1,69 @@
+package org.jgroups.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round-trip time (RTT) to a peer and computes a retransmission timeout (RTO) from it, similar to
+ * TCP (RFC 6298): SRTT is a smoothed average of the RTT samples and RTTVAR a smoothed average of their deviation from
+ * SRTT. The RTO is SRTT + 4*RTTVAR, bounded by [min_rto .. max_rto]. Each {@link #backoff()} doubles the RTO (up to
+ * max_rto) until the next sample is added.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class RttEstimator {
+    protected final long min_rto, max_rto; // ns
+    protected long       srtt, rttvar;     // ns
+    protected long       rto;              // ns, without backoff
+    protected int        backoff;          // number of times the RTO has been doubled
+    protected long       num_samples;
+
+    public RttEstimator(long initial_rto, long min_rto, long max_rto, TimeUnit unit) {
+        if(min_rto <= 0 || min_rto > max_rto)
+            throw new IllegalArgumentException(String.format("min_rto (%d) has to be > 0 and <= max_rto (%d)", min_rto, max_rto));
+        this.min_rto=unit.toNanos(min_rto);
+        this.max_rto=unit.toNanos(max_rto);
+        this.rto=bound(unit.toNanos(initial_rto));
+    }
+
+    public synchronized long numSamples()           {return num_samples;}
+    public synchronized long srtt(TimeUnit unit)    {return unit.convert(srtt, TimeUnit.NANOSECONDS);}
+    public synchronized long rttvar(TimeUnit unit)  {return unit.convert(rttvar, TimeUnit.NANOSECONDS);}
+
+    /** Returns the current retransmission timeout, including backoff */
+    public synchronized long rto(TimeUnit unit) {
+        return unit.convert(Math.min(max_rto, rto << backoff), TimeUnit.NANOSECONDS);
+    }
+
+    /** Adds an RTT sample. Samples of retransmitted messages are ambiguous and must not be added (Karn's algorithm) */
+    public synchronized RttEstimator add(long rtt, TimeUnit unit) {
+        long r=Math.max(0, unit.toNanos(rtt));
+        if(num_samples++ == 0) {
+            srtt=r;
+            rttvar=r / 2;
+        }
+        else {
+            rttvar=(3 * rttvar + Math.abs(srtt - r)) / 4;
+            srtt=(7 * srtt + r) / 8;
+        }
+        rto=bound(srtt + 4 * rttvar);
+        backoff=0;
+        return this;
+    }
+
+    /** Doubles the RTO, e.g. after a retransmission timed out */
+    public synchronized RttEstimator backoff() {
+        if((rto << backoff) < max_rto)
+            backoff++;
+        return this;
+    }
+
+    public synchronized String toString() {
+        return String.format("srtt=%s, rttvar=%s, rto=%s (samples: %d)",
+                             Util.printTime(srtt, TimeUnit.NANOSECONDS), Util.printTime(rttvar, TimeUnit.NANOSECONDS),
+                             Util.printTime(Math.min(max_rto, rto << backoff), TimeUnit.NANOSECONDS), num_samples);
+    }
+
+    protected long bound(long value) {
+        return Math.max(min_rto, Math.min(max_rto, value));
+    }
+}
@@ -0,0 +1,67 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.RttEstimator;
+import org.testng.annotations.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Tests {@link RttEstimator}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RttEstimatorTest {
+
+    public void testInitialRto() {
+        RttEstimator rtt=new RttEstimator(500, 100, 10_000, MILLISECONDS);
+        assert rtt.rto(MILLISECONDS) == 500 && rtt.numSamples() == 0;
+        rtt=new RttEstimator(5, 100, 10_000, MILLISECONDS);
+        assert rtt.rto(MILLISECONDS) == 100;
+    }
+
+    public void testFirstSample() {
+        RttEstimator rtt=new RttEstimator(500, 10, 10_000, MILLISECONDS).add(40, MILLISECONDS);
+        assert rtt.srtt(MILLISECONDS) == 40 && rtt.rttvar(MILLISECONDS) == 20;
+        assert rtt.rto(MILLISECONDS) == 40 + 4 * 20;
+    }
+
+    public void testConvergence() {
+        RttEstimator rtt=new RttEstimator(500, 1, 10_000, MILLISECONDS);
+        for(int i=0; i < 100; i++)
+            rtt.add(20, MILLISECONDS);
+        assert rtt.srtt(MILLISECONDS) == 20 : rtt;
+        assert rtt.rto(MILLISECONDS) < 25 : rtt;
+
+        for(int i=0; i < 100; i++) // moving to a slower link
+            rtt.add(200, MILLISECONDS);
+        assert rtt.srtt(MILLISECONDS) >= 190 && rtt.rto(MILLISECONDS) >= 190 : rtt;
+    }
+
+    public void testVariance() {
+        RttEstimator rtt=new RttEstimator(500, 1, 10_000, MILLISECONDS);
+        for(int i=0; i < 100; i++)
+            rtt.add(i % 2 == 0? 10 : 90, MILLISECONDS);
+        // the RTO covers the jitter, so that the slower ACKs don't trigger retransmissions
+        assert rtt.rto(MILLISECONDS) > 90 : rtt;
+    }
+
+    public void testBackoff() {
+        RttEstimator rtt=new RttEstimator(500, 100, 3000, MILLISECONDS).add(100, MILLISECONDS);
+        long rto=rtt.rto(MILLISECONDS);
+        assert rto == 300;
+        rtt.backoff();
+        assert rtt.rto(MILLISECONDS) == 600;
+        rtt.backoff().backoff().backoff();
+        assert rtt.rto(MILLISECONDS) == 3000 : rtt; // capped at max_rto
+
+        rtt.add(100, MILLISECONDS); // a new sample resets the backoff
+        assert rtt.rto(MILLISECONDS) < 600 : rtt;
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new RttEstimator(500, 1000, 100, MILLISECONDS);
+    }
+}
@@ -11,11 +11,15 @@ import org.jgroups.util.*;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
@@ -35,6 +39,21 @@ import java.util.function.Supplier;
  * <p>
  * When send_stable_msgs_to_coord_only is true, far fewer messages are exchanged, as members don't multicast
  * STABLE messages, but instead send them only to the coordinator.
+ * <p>
+ * When delta_digests is true, a STABLE message only contains the entries whose seqnos changed since the previous
+ * STABLE message sent by the same member; the recipient applies them to the last digest it received from that member.
+ * A full digest is sent after a view change and every full_digest_interval STABLE messages; deltas received without
+ * a preceding full digest are discarded. As STABLE messages are unreliable, a member keeps sending full digests
+ * until a STABILITY message (which requires its vote) confirms that one of them has been received.
+ * <p>
+ * When tree_fanout is > 0, digests are aggregated up a tree derived from the view: the member with rank r (the
+ * coordinator has rank 0) has the members with ranks r*tree_fanout+1 .. r*tree_fanout+tree_fanout as children.
+ * A member waits for the (aggregated) digests of its children and its own digest, and then sends the aggregate to
+ * its parent. The coordinator therefore handles only tree_fanout digests instead of one digest per member, and
+ * multicasts the STABILITY message when all digests of its subtree have been received.
+ * <p>
+ * When retained_bytes_high_watermark is > 0, a STABLE message is also sent when the size of the messages retained
+ * in NAKACK2's retransmit tables exceeds the high-water mark. This is done at most once per stability round.
  * @author Bela Ban
  */
 @MBean(description="Computes the broadcast messages that are stable")
@@ -73,6 +92,24 @@ public class STABLE extends Protocol {
       "on the coordinator")
     protected boolean send_stable_msgs_to_coord_only=true;
 
+    @Property(description="When true, a STABLE message only contains the members whose seqnos changed since the last " +
+      "STABLE message. Reduces the size of STABLE messages in large clusters where only a few members send messages")
+    protected boolean delta_digests;
+
+    @Property(description="Send a full digest every N STABLE messages (only used when delta_digests is true). " +
+      "This repairs the digests of recipients that lost a STABLE message")
+    protected int     full_digest_interval=10;
+
+    @Property(description="When > 0, digests are aggregated up a tree (derived from the view) with the given fan-out, " +
+      "and the coordinator only receives tree_fanout digests rather than the digests of all members. " +
+      "Overrides send_stable_msgs_to_coord_only. 0 disables the tree")
+    protected int     tree_fanout;
+
+    @Property(description="Sends a STABLE message when the messages retained by NAKACK2 exceed this number of bytes. " +
+      "Only one STABLE message is sent until the next STABILITY message (or view change). 0 disables this",
+      type=AttributeType.BYTES)
+    protected long    retained_bytes_high_watermark;
+
     
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
@@ -80,6 +117,10 @@ public class STABLE extends Protocol {
     protected int    num_stable_msgs_received;
     protected int    num_stability_msgs_sent;
     protected int    num_stability_msgs_received;
+    protected int    num_delta_digests_sent;
+    protected int    num_delta_digests_received;
+    protected int    num_delta_digests_discarded;
+    protected int    num_retained_bytes_triggers;
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -98,8 +139,27 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     protected FixedSizeBitSet     votes;
 
+    /** The number of votes needed: all members, or self and the children (tree_fanout > 0) */
+    @GuardedBy("lock")
+    protected int                 expected_votes;
+
     protected final Lock          lock=new ReentrantLock();
 
+    /** The last digest received from a member: delta digests are applied to it. Cleared on a view change */
+    @GuardedBy("lock")
+    protected final Map<Address,Digest> gossips=new HashMap<>();
+
+    /** The last digest sent and its view-id: delta digests are computed against it */
+    @GuardedBy("lock")
+    protected Digest              last_gossip;
+    @GuardedBy("lock")
+    protected ViewId              last_gossip_view_id;
+    @GuardedBy("lock")
+    protected int                 gossips_since_full_digest;
+    /** Set when a STABILITY message is received after sending a full digest: only then are deltas sent */
+    @GuardedBy("lock")
+    protected boolean             full_digest_confirmed;
+
     @GuardedBy("stability_lock")
     protected Future<?>           stability_task_future;
     protected final Lock          stability_lock=new ReentrantLock(); // to synchronize on stability_task
@@ -130,6 +190,12 @@ public class STABLE extends Protocol {
 
     protected volatile Address    coordinator;
 
+    /** Provides the size of the retained messages; null unless retained_bytes_high_watermark > 0 */
+    protected NAKACK2             nak;
+
+    /** Set when the high-water mark triggered a STABLE message, cleared by the next STABILITY message or view */
+    protected final AtomicBoolean retained_bytes_triggered=new AtomicBoolean();
+
     
     
     public STABLE() {             
@@ -141,6 +207,14 @@ public class STABLE extends Protocol {
     public STABLE setMaxBytes(long m)             {this.max_bytes=m; return this;}
     public long   getStabilityDelay()             {return stability_delay;}
     public STABLE setStabilityDelay(long d)       {stability_delay=d; return this;}
+    public boolean deltaDigests()                 {return delta_digests;}
+    public STABLE deltaDigests(boolean d)         {delta_digests=d; return this;}
+    public int    fullDigestInterval()            {return full_digest_interval;}
+    public STABLE fullDigestInterval(int i)       {full_digest_interval=i; return this;}
+    public int    treeFanout()                    {return tree_fanout;}
+    public STABLE treeFanout(int f)               {tree_fanout=f; return this;}
+    public long   retainedBytesHighWatermark()    {return retained_bytes_high_watermark;}
+    public STABLE retainedBytesHighWatermark(long r) {retained_bytes_high_watermark=r; return this;}
 
     // @ManagedAttribute(name="bytes_received")
     public long getBytes() {return num_bytes_received;}
@@ -152,6 +226,19 @@ public class STABLE extends Protocol {
     public int getStabilitySent() {return num_stability_msgs_sent;}
     @ManagedAttribute(type=AttributeType.SCALAR)
     public int getStabilityReceived() {return num_stability_msgs_received;}
+    @ManagedAttribute(description="Number of STABLE messages sent with a delta digest",type=AttributeType.SCALAR)
+    public int getDeltaDigestsSent() {return num_delta_digests_sent;}
+    @ManagedAttribute(description="Number of STABLE messages received with a delta digest",type=AttributeType.SCALAR)
+    public int getDeltaDigestsReceived() {return num_delta_digests_received;}
+    @ManagedAttribute(description="Number of delta digests discarded as no full digest had been received from the " +
+      "sender",type=AttributeType.SCALAR)
+    public int getDeltaDigestsDiscarded() {return num_delta_digests_discarded;}
+    @ManagedAttribute(description="Number of STABLE messages sent because the retained bytes in NAKACK2 exceeded " +
+      "retained_bytes_high_watermark",type=AttributeType.SCALAR)
+    public int getRetainedBytesTriggers() {return num_retained_bytes_triggers;}
+    @ManagedAttribute(description="Number of bytes of the messages retained by NAKACK2 (-1 if not available)",
+      type=AttributeType.BYTES)
+    public long getRetainedBytes() {return nak != null? nak.getRetainedBytes() : -1;}
 
     @ManagedAttribute
     public boolean getStableTaskRunning() {
@@ -167,6 +254,8 @@ public class STABLE extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_stability_msgs_received=num_stability_msgs_sent=num_stable_msgs_sent=num_stable_msgs_received=0;
+        num_delta_digests_sent=num_delta_digests_received=num_delta_digests_discarded=0;
+        num_retained_bytes_triggers=0;
     }
 
 
@@ -198,6 +287,12 @@ public class STABLE extends Protocol {
     
     public void init() throws Exception {
         super.init();
+        if(delta_digests && full_digest_interval <= 0)
+            throw new IllegalArgumentException("full_digest_interval has to be > 0");
+        if(tree_fanout < 0)
+            throw new IllegalArgumentException("tree_fanout has to be >= 0");
+        if(retained_bytes_high_watermark > 0 && (nak=stack.findProtocol(NAKACK2.class)) == null)
+            log.warn("%s: retained_bytes_high_watermark is ignored as NAKACK2 was not found", local_addr);
     }
 
     public void start() throws Exception {
@@ -208,7 +303,7 @@ public class STABLE extends Protocol {
             startStableTask();
 
         // we're the only one who sends out STABILITY messages; no need to wait for others to send it (as they won't)
-        if(send_stable_msgs_to_coord_only)
+        if(send_stable_msgs_to_coord_only || tree_fanout > 0)
             stability_delay=0;
     }
 
@@ -241,7 +336,10 @@ public class STABLE extends Protocol {
     protected void handleUpEvent(StableHeader hdr, Address sender, Digest digest) {
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(digest, sender, hdr.view_id);
+                handleStableMessage(digest, sender, hdr.view_id, false);
+                break;
+            case StableHeader.STABLE_GOSSIP_DELTA:
+                handleStableMessage(digest, sender, hdr.view_id, true);
                 break;
             case StableHeader.STABILITY:
                 handleStabilityMessage(digest, sender, hdr.view_id);
@@ -263,6 +361,9 @@ public class STABLE extends Protocol {
             }
         }
 
+        if(batch.dest() == null && !batch.isEmpty())
+            checkRetainedBytes();
+
         // only if message counting is on, and only for multicast messages (http://jira.jboss.com/jira/browse/JGRP-233)
         if(max_bytes > 0 && batch.dest() == null && !batch.isEmpty()) {
             boolean send_stable_msg=false;
@@ -290,6 +391,8 @@ public class STABLE extends Protocol {
 
 
     protected void handleRegularMessage(Message msg) {
+        if(msg.getDest() == null)
+            checkRetainedBytes();
         // only if bytes counting is enabled, and only for multicast messages (http://jira.jboss.com/jira/browse/JGRP-233)
         if(max_bytes <= 0)
             return;
@@ -315,6 +418,20 @@ public class STABLE extends Protocol {
     }
 
 
+    /** Sends a STABLE message if the retained bytes exceed the high-water mark (at most once per stability round) */
+    protected void checkRetainedBytes() {
+        NAKACK2 n=nak;
+        if(n == null || retained_bytes_high_watermark <= 0 || n.getRetainedBytes() < retained_bytes_high_watermark
+          || suspended)
+            return;
+        if(retained_bytes_triggered.compareAndSet(false, true)) {
+            num_retained_bytes_triggers++;
+            log.trace("%s: retained bytes (%d) exceeded retained_bytes_high_watermark (%d): triggers stable msg",
+                      local_addr, n.getRetainedBytes(), retained_bytes_high_watermark);
+            sendStableMessage(true);
+        }
+    }
+
     public Object down(Event evt) {
         switch(evt.getType()) {
             case Event.VIEW_CHANGE:
@@ -358,6 +475,11 @@ public class STABLE extends Protocol {
             this.view=v;
             coordinator=v.getCoord();
             resetDigest();
+            retained_bytes_triggered.set(false);
+            gossips.clear();
+            last_gossip=null;
+            last_gossip_view_id=null;
+            full_digest_confirmed=false;
             if(!initialized)
                 initialized=true;
         }
@@ -407,6 +529,7 @@ public class STABLE extends Protocol {
             return;
         digest=new MutableDigest(view.getMembersRaw()); // .set(getDigest());
         votes=new FixedSizeBitSet(view.size()); // all 0's initially
+        expected_votes=tree_fanout > 0? 1 + numChildren(getRank(local_addr, view), view.size(), tree_fanout) : view.size();
     }
 
     /**
@@ -416,7 +539,7 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     protected boolean addVote(int rank) {
         try {
-            return votes.set(rank) && allVotesReceived(votes);
+            return votes.set(rank) && votes.cardinality() == expected_votes;
         }
         catch(Throwable t) {
             return false;
@@ -429,6 +552,19 @@ public class STABLE extends Protocol {
         return votes.cardinality() == votes.size();
     }
 
+    /** Returns the rank of the parent of the member with the given rank in the tree, or -1 for the root */
+    public static int parent(int rank, int fanout) {
+        return rank <= 0? -1 : (rank - 1) / fanout;
+    }
+
+    /** Returns the number of children of the member with the given rank in a tree of size members */
+    public static int numChildren(int rank, int size, int fanout) {
+        if(rank < 0)
+            return 0;
+        long first=(long)rank * fanout + 1;
+        return (int)Math.max(0, Math.min(fanout, size - first));
+    }
+
     protected static int getRank(Address member, View v) {
         if(v == null || member == null)
             return -1;
@@ -530,8 +666,9 @@ public class STABLE extends Protocol {
      message, which results in garbage collection of messages lower than the ones in the stability vector. The
      maximum of all seqnos will be taken to trigger possible retransmission of last missing seqno (see DESIGN
      for details).
+     If delta is true, d only contains the entries that changed since the previous digest from sender.
      */
-    protected void handleStableMessage(final Digest d, final Address sender, final ViewId view_id) {
+    protected void handleStableMessage(final Digest d, final Address sender, final ViewId view_id, boolean delta) {
         if(d == null || sender == null) {
             if(log.isErrorEnabled()) log.error(Util.getMessage("DigestOrSenderIsNull"));
             return;
@@ -551,16 +688,30 @@ public class STABLE extends Protocol {
 
         Digest stable_digest=null;
         ViewId stable_view_id=null;
+        Address parent_addr=null; // the parent to which the aggregated digest is sent (tree_fanout > 0)
         lock.lock();
         try {
+            // the delta is applied even if we already have a vote from sender, or else subsequent deltas would miss it
+            Digest gossip=applyGossip(d, sender, delta);
+            if(gossip == null)
+                return;
             int rank=getRank(sender, view);
             if(rank < 0 || votes.get(rank))  // already received gossip from sender; discard it
                 return;
+            if(tree_fanout > 0 && !Objects.equals(sender, local_addr)
+              && parent(rank, tree_fanout) != getRank(local_addr, view)) {
+                log.trace("%s: discarded STABLE message from %s as it is not a child", local_addr, sender);
+                return;
+            }
             num_stable_msgs_received++;
-            updateLocalDigest(d, sender);
-            if(addVote(rank)) {       // votes from all members have been received
+            updateLocalDigest(gossip, sender);
+            if(addVote(rank)) {       // votes from all members (or self and all children) have been received
                 stable_digest=digest; // no need to copy, as digest (although mutable) is reassigned below
                 stable_view_id=view.getViewId();
+                if(tree_fanout > 0) {
+                    int parent=parent(getRank(local_addr, view), tree_fanout);
+                    parent_addr=parent >= 0? view.getMembersRaw()[parent] : null;
+                }
                 resetDigest();        // sets digest
             }
         }
@@ -573,14 +724,96 @@ public class STABLE extends Protocol {
 
         // we don't yet reset digest: new STABLE messages will be discarded anyway as we have already
         // received votes from their senders
+        if(stable_digest != null && parent_addr != null) {
+            sendGossip(parent_addr, stable_digest, stable_view_id, false);
+            return;
+        }
         if(stable_digest != null) {
             resetNumBytes();
+            retained_bytes_triggered.set(false);
             sendStabilityMessage(stable_digest, stable_view_id);
             // we discard our own STABILITY message: pass it down now, so NAKACK can purge old messages
             down_prot.down(new Event(Event.STABLE, stable_digest));
         }
     }
 
+    /**
+     * Stores the digest received from sender and returns it. If d is a delta, it is applied to the last digest from
+     * sender and the result is returned, or null if no full digest has been received from sender in the current view
+     */
+    @GuardedBy("lock")
+    protected Digest applyGossip(Digest d, Address sender, boolean delta) {
+        if(!delta) {
+            gossips.put(sender, d);
+            return d;
+        }
+        num_delta_digests_received++;
+        Digest base=gossips.get(sender);
+        if(base == null) {
+            num_delta_digests_discarded++;
+            log.trace("%s: discarded delta digest from %s as no full digest has been received yet", local_addr, sender);
+            return null;
+        }
+        MutableDigest gossip=new MutableDigest(view.getMembersRaw()).set(base).set(d);
+        gossips.put(sender, gossip);
+        return gossip;
+    }
+
+    /**
+     * Returns the entries of d whose seqnos changed since the last digest sent, or null if the full digest needs to
+     * be sent: this is the case after a view change, every full_digest_interval digests and as long as the receipt
+     * of the last full digest hasn't been confirmed by a STABILITY message (the full digest might have been lost)
+     */
+    protected Digest createDelta(Digest d, ViewId view_id) {
+        lock.lock();
+        try {
+            Digest last=last_gossip;
+            boolean full=last == null || !view_id.equals(last_gossip_view_id) || !full_digest_confirmed
+              || ++gossips_since_full_digest >= full_digest_interval;
+            last_gossip=d;
+            last_gossip_view_id=view_id;
+            if(full) {
+                gossips_since_full_digest=0;
+                full_digest_confirmed=false;
+                return null;
+            }
+            List<Address> mbrs=new ArrayList<>();
+            List<long[]> changed=new ArrayList<>();
+            for(Digest.Entry entry: d) {
+                long hd=entry.getHighestDeliveredSeqno(), hr=entry.getHighestReceivedSeqno();
+                long[] seqnos=last.get(entry.getMember());
+                if(seqnos == null || seqnos[0] != hd || seqnos[1] != hr) {
+                    mbrs.add(entry.getMember());
+                    changed.add(new long[]{hd, hr});
+                }
+            }
+            long[] seqnos=new long[changed.size() * 2];
+            for(int i=0; i < changed.size(); i++) {
+                seqnos[i*2]=changed.get(i)[0];
+                seqnos[i*2+1]=changed.get(i)[1];
+            }
+            return new Digest(mbrs.toArray(new Address[0]), seqnos);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A STABILITY message requires a vote from every member, so it confirms that the coordinator (or the parent)
+     * received one of our full digests: deltas can be sent from now on
+     */
+    protected void confirmFullDigest(ViewId view_id) {
+        lock.lock();
+        try {
+            if(last_gossip != null && view_id.equals(last_gossip_view_id))
+                full_digest_confirmed=true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     protected void resetNumBytes() {
         received.lock();
         try {
@@ -606,6 +839,7 @@ public class STABLE extends Protocol {
         // received my own STABILITY message - no need to handle it as I already reset my digest before I sent the msg
         if(Objects.equals(local_addr, sender)) {
             num_stability_msgs_received++;
+            confirmFullDigest(view_id);
             return;
         }
 
@@ -625,6 +859,8 @@ public class STABLE extends Protocol {
 
             num_stability_msgs_received++;
             resetDigest();
+            retained_bytes_triggered.set(false);
+            confirmFullDigest(view_id);
         }
         finally {
             lock.unlock();
@@ -648,15 +884,34 @@ public class STABLE extends Protocol {
 
         if(d.allSet() || d.set(getDigest()).allSet()) // try once more if the first digest didn't match
             log.trace("%s: sending stable msg to %s: %s",
-                      local_addr, (send_stable_msgs_to_coord_only? coordinator : "cluster"), printDigest(d));
+                      local_addr, tree_fanout > 0? "self" : (send_stable_msgs_to_coord_only? coordinator : "cluster"),
+                      printDigest(d));
         else {
             log.trace("%s: could not find matching digest for view %s, missing members: %s", local_addr, current_view, d.getNonSetMembers());
             return;
         }
 
-        final Message msg=new ObjectMessage(dest, d)
+        if(tree_fanout > 0) { // our own digest is a vote; the aggregate is sent to the parent when all votes are in
+            Runnable r=() -> handleStableMessage(d, local_addr, current_view.getViewId(), false);
+            if(send_in_background)
+                timer.execute(r, getTransport() instanceof TCP);
+            else
+                r.run();
+            return;
+        }
+        sendGossip(dest, d, current_view.getViewId(), send_in_background);
+    }
+
+    /** Sends a STABLE message with digest d (or the delta to the previous digest) to dest (null: the cluster) */
+    protected void sendGossip(Address dest, Digest d, ViewId view_id, boolean send_in_background) {
+        // an empty delta is still sent: it is needed as vote
+        final Digest delta=delta_digests? createDelta(d, view_id) : null;
+        if(delta != null)
+            num_delta_digests_sent++;
+        final Message msg=new ObjectMessage(dest, delta != null? delta : d)
           .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
-          .putHeader(this.id, new StableHeader(StableHeader.STABLE_GOSSIP, current_view.getViewId()));
+          .putHeader(this.id, new StableHeader(delta != null? StableHeader.STABLE_GOSSIP_DELTA : StableHeader.STABLE_GOSSIP,
+                                               view_id));
         try {
             if(!send_in_background) {
                 num_stable_msgs_sent++;
@@ -761,6 +1016,7 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final byte STABLE_GOSSIP=1;
         public static final byte STABILITY=2;
+        public static final byte STABLE_GOSSIP_DELTA=3;
 
         protected byte   type;
         protected ViewId view_id;
@@ -781,6 +1037,7 @@ public class STABLE extends Protocol {
             switch(t) {
                 case STABLE_GOSSIP: return "STABLE_GOSSIP";
                 case STABILITY:     return "STABILITY";
+                case STABLE_GOSSIP_DELTA: return "STABLE_GOSSIP_DELTA";
                 default:            return "<unknown>";
             }
         }
@@ -0,0 +1,246 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.conf.ClassConfigurator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A sorted set of seqnos, stored as non-overlapping ranges [from..to]. Used in retransmit requests: a gap of
+ * consecutive missing seqnos is a single range, regardless of its length.<br/>
+ * When marshalled, the more compact of 2 encodings is picked: a run-length encoding (the distance of each range to
+ * the previous one and its length) or a bitmap of all seqnos between the lowest and the highest seqno. Long runs (e.g.
+ * after a GC pause) are therefore encoded in a few bytes, and scattered seqnos never take up (much) more space than
+ * a {@link SeqnoList}.<br/>
+ * Seqnos have to be added in increasing order. This class is not synchronized.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class SeqnoRanges implements SizeStreamable, Iterable<Long> {
+    /** Magic number, so that a marshalled SeqnoRanges (e.g. in an ObjectMessage) doesn't include the classname */
+    public static final short   MAGIC_ID=1050;
+    protected static final byte RUNS=1, BITMAP=2;
+    protected long[]            ranges;     // from-to pairs
+    protected int               num_ranges;
+    protected long              size;       // number of seqnos
+
+    public SeqnoRanges() { // for marshalling
+        this(4);
+    }
+
+    public SeqnoRanges(int capacity) {
+        ranges=new long[Math.max(1, capacity) * 2];
+    }
+
+    /** Creates a SeqnoRanges from a sorted list of seqnos, e.g. a {@link SeqnoList} */
+    public static SeqnoRanges from(Iterable<Long> seqnos) {
+        SeqnoRanges retval=new SeqnoRanges();
+        for(long seqno: seqnos)
+            retval.add(seqno);
+        return retval;
+    }
+
+    /**
+     * Registers {@link #MAGIC_ID} with the {@link ClassConfigurator}, unless already registered. Needs to be called
+     * before a SeqnoRanges is received, e.g. in the static initializer of a protocol
+     */
+    public static synchronized void register() {
+        if(ClassConfigurator.getMagicNumber(SeqnoRanges.class) < 0)
+            ClassConfigurator.add(MAGIC_ID, SeqnoRanges.class);
+    }
+
+    /** Returns the number of seqnos of a SeqnoRanges or a {@link SeqnoList}, without converting them */
+    public static int size(Iterable<Long> seqnos) {
+        if(seqnos instanceof SeqnoRanges)
+            return ((SeqnoRanges)seqnos).size();
+        if(seqnos instanceof SeqnoList)
+            return ((SeqnoList)seqnos).size();
+        int retval=0;
+        for(Iterator<Long> it=seqnos.iterator(); it.hasNext(); it.next())
+            retval++;
+        return retval;
+    }
+
+    public SeqnoRanges add(long seqno) {
+        return add(seqno, seqno);
+    }
+
+    /** Adds the range [from..to]; from has to be greater than the highest seqno added so far */
+    public SeqnoRanges add(long from, long to) {
+        if(from > to)
+            throw new IllegalArgumentException(String.format("from (%d) must be <= to (%d)", from, to));
+        if(num_ranges > 0) {
+            long last=getLast();
+            if(from <= last)
+                throw new IllegalArgumentException(String.format("%d-%d is not greater than %d", from, to, last));
+            if(from == last + 1) { // extend the last range
+                ranges[num_ranges*2 - 1]=to;
+                size+=to - from + 1;
+                return this;
+            }
+        }
+        if(num_ranges*2 == ranges.length)
+            ranges=Arrays.copyOf(ranges, ranges.length * 2);
+        ranges[num_ranges*2]=from;
+        ranges[num_ranges*2 + 1]=to;
+        num_ranges++;
+        size+=to - from + 1;
+        return this;
+    }
+
+    public int     size()      {return (int)Math.min(size, Integer.MAX_VALUE);}
+    public int     numRanges() {return num_ranges;}
+    public boolean isEmpty()   {return num_ranges == 0;}
+
+    public long getFirst() {
+        if(num_ranges == 0)
+            throw new NoSuchElementException();
+        return ranges[0];
+    }
+
+    public long getLast() {
+        if(num_ranges == 0)
+            throw new NoSuchElementException();
+        return ranges[num_ranges*2 - 1];
+    }
+
+    public boolean contains(long seqno) {
+        int low=0, high=num_ranges - 1;
+        while(low <= high) {
+            int mid=(low + high) >>> 1;
+            if(seqno < ranges[mid*2])
+                high=mid - 1;
+            else if(seqno > ranges[mid*2 + 1])
+                low=mid + 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    public Iterator<Long> iterator() {
+        return new SeqnoIterator();
+    }
+
+    public int serializedSize() {
+        return Global.BYTE_SIZE + (int)Math.min(runsSize(), bitmapSize());
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        if(runsSize() <= bitmapSize()) {
+            out.writeByte(RUNS);
+            Bits.writeIntCompressed(num_ranges, out);
+            long prev=0;
+            for(int i=0; i < num_ranges; i++) {
+                long from=ranges[i*2], to=ranges[i*2 + 1];
+                Bits.writeLongCompressed(from - prev, out);
+                Bits.writeLongCompressed(to - from, out);
+                prev=to;
+            }
+            return;
+        }
+        out.writeByte(BITMAP);
+        long first=getFirst(), span=getLast() - first;
+        Bits.writeLongCompressed(first, out);
+        Bits.writeLongCompressed(span, out);
+        byte[] bitmap=new byte[(int)(span / 8 + 1)];
+        for(int i=0; i < num_ranges; i++) {
+            for(long seqno=ranges[i*2]; seqno <= ranges[i*2 + 1]; seqno++) {
+                long index=seqno - first;
+                bitmap[(int)(index >>> 3)]|=1 << (index & 7);
+            }
+        }
+        out.write(bitmap);
+    }
+
+    public void readFrom(DataInput in) throws IOException {
+        num_ranges=0;
+        size=0;
+        byte type=in.readByte();
+        switch(type) {
+            case RUNS:
+                int num=Bits.readIntCompressed(in);
+                if(ranges.length < num * 2)
+                    ranges=new long[num * 2];
+                long prev=0;
+                for(int i=0; i < num; i++) {
+                    long from=prev + Bits.readLongCompressed(in), to=from + Bits.readLongCompressed(in);
+                    add(from, to);
+                    prev=to;
+                }
+                break;
+            case BITMAP:
+                long first=Bits.readLongCompressed(in), span=Bits.readLongCompressed(in);
+                byte[] bitmap=new byte[(int)(span / 8 + 1)];
+                in.readFully(bitmap);
+                for(long index=0; index <= span; index++) {
+                    if((bitmap[(int)(index >>> 3)] & (1 << (index & 7))) != 0)
+                        add(first + index);
+                }
+                break;
+            default:
+                throw new IOException("encoding " + type + " not known");
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder().append('[');
+        int max=Math.min(num_ranges, 20);
+        for(int i=0; i < max; i++) {
+            long from=ranges[i*2], to=ranges[i*2 + 1];
+            if(i > 0)
+                sb.append(", ");
+            sb.append(from);
+            if(to > from)
+                sb.append('-').append(to);
+        }
+        if(max < num_ranges)
+            sb.append(", ...");
+        return sb.append("] (").append(size).append(" seqnos)").toString();
+    }
+
+    /** Size of the run-length encoding */
+    protected long runsSize() {
+        long retval=Bits.size(num_ranges), prev=0;
+        for(int i=0; i < num_ranges; i++) {
+            long from=ranges[i*2], to=ranges[i*2 + 1];
+            retval+=Bits.size(from - prev) + Bits.size(to - from);
+            prev=to;
+        }
+        return retval;
+    }
+
+    /** Size of the bitmap encoding, or Long.MAX_VALUE if the bitmap would be too large */
+    protected long bitmapSize() {
+        if(num_ranges == 0)
+            return Long.MAX_VALUE;
+        long first=getFirst(), span=getLast() - first, bytes=span / 8 + 1;
+        return bytes >= Integer.MAX_VALUE? Long.MAX_VALUE : Bits.size(first) + Bits.size(span) + bytes;
+    }
+
+
+    protected class SeqnoIterator implements Iterator<Long> {
+        protected int  index;   // index of the current range
+        protected long next=num_ranges > 0? ranges[0] : 0;
+
+        public boolean hasNext() {
+            return index < num_ranges;
+        }
+
+        public Long next() {
+            if(index >= num_ranges)
+                throw new NoSuchElementException();
+            long retval=next;
+            if(next < ranges[index*2 + 1])
+                next++;
+            else if(++index < num_ranges)
+                next=ranges[index*2];
+            return retval;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.SeqnoList;
+import org.jgroups.util.SeqnoRanges;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link SeqnoRanges}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class SeqnoRangesTest {
+
+    public void testAdd() {
+        SeqnoRanges r=new SeqnoRanges(1).add(1).add(2).add(3).add(5).add(10, 20).add(21);
+        assert r.size() == 16 && r.numRanges() == 3;
+        assert r.getFirst() == 1 && r.getLast() == 21;
+        assert r.contains(2) && !r.contains(4) && r.contains(5) && r.contains(15) && !r.contains(22);
+        List<Long> list=new ArrayList<>();
+        r.forEach(list::add);
+        assert list.size() == 16 && list.get(3) == 5 && list.get(4) == 10;
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testAddOutOfOrder() {
+        new SeqnoRanges().add(5).add(3);
+    }
+
+    public void testFromSeqnoList() {
+        SeqnoList list=new SeqnoList(100, 1000).add(1000, 1049).add(1060).add(1070, 1099);
+        SeqnoRanges r=SeqnoRanges.from(list);
+        assert r.size() == list.size() && r.numRanges() == 3;
+        assert SeqnoRanges.size(list) == list.size() && SeqnoRanges.size(r) == r.size();
+    }
+
+    /** A registered SeqnoRanges is marshalled with its magic number rather than its classname */
+    public void testMarshalledWithMagicNumber() throws Exception {
+        SeqnoRanges.register();
+        SeqnoRanges r=new SeqnoRanges().add(5).add(10, 20);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+        Util.writeGenericStreamable(r, out);
+        assert out.position() == Global.BYTE_SIZE + Global.SHORT_SIZE + r.serializedSize() : "size is " + out.position();
+        SeqnoRanges r2=Util.readGenericStreamable(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        assert r2.size() == r.size() && r2.numRanges() == r.numRanges();
+    }
+
+    public void testSerializationOfLargeGap() throws Exception {
+        SeqnoRanges r=new SeqnoRanges().add(1_000_000, 1_500_000);
+        assert r.serializedSize() < 20 : "size is " + r.serializedSize();
+        SeqnoRanges r2=marshalAndUnmarshal(r);
+        assert r2.size() == 500_001 && r2.numRanges() == 1 && r2.getFirst() == 1_000_000 && r2.getLast() == 1_500_000;
+    }
+
+    public void testSerializationOfScatteredSeqnos() throws Exception {
+        SeqnoRanges r=new SeqnoRanges();
+        for(long i=1; i <= 10_000; i+=2)
+            r.add(i);
+        // the bitmap is picked: roughly 1 bit per seqno
+        assert r.serializedSize() < 10_000 / 8 + 10 : "size is " + r.serializedSize();
+        SeqnoRanges r2=marshalAndUnmarshal(r);
+        assert r2.size() == 5000 && r2.numRanges() == 5000;
+        for(long i=1; i <= 10_000; i++)
+            assert r2.contains(i) == (i % 2 == 1);
+    }
+
+    public void testSerializationOfEmptySet() throws Exception {
+        SeqnoRanges r=marshalAndUnmarshal(new SeqnoRanges());
+        assert r.isEmpty() && r.size() == 0;
+    }
+
+    public void testSerializationMixed() throws Exception {
+        SeqnoRanges r=new SeqnoRanges().add(5).add(7, 9).add(100, 200).add(202).add(5000, 5001);
+        SeqnoRanges r2=marshalAndUnmarshal(r);
+        List<Long> l1=new ArrayList<>(), l2=new ArrayList<>();
+        r.forEach(l1::add);
+        r2.forEach(l2::add);
+        assert l1.equals(l2) : Arrays.asList(l1, l2);
+    }
+
+    protected static SeqnoRanges marshalAndUnmarshal(SeqnoRanges r) throws Exception {
+        byte[] buf=Util.streamableToByteBuffer(r);
+        assert buf.length == r.serializedSize() : String.format("expected size %d, actual %d", r.serializedSize(), buf.length);
+        return Util.streamableFromByteBuffer(SeqnoRanges::new, buf);
+    }
+}
@@ -0,0 +1,102 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bundler which spreads messages over a number of {@link RingBufferBundler}s (shards), each with its own ring buffer,
+ * output buffer and sender thread. The shard is picked by the hash of the destination, so all messages to the same
+ * destination are sent by the same thread, preserving per-destination FIFO order. Multicasts go to the shard of the
+ * null destination.<br/>
+ * This allows marshalling and sending to use more than one core, when messages are sent to a number of different
+ * destinations.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class ShardedRingBufferBundler extends BaseBundler {
+    protected RingBufferBundler[] shards;
+    protected int                 num_shards;
+    protected int                 capacity;
+
+    public ShardedRingBufferBundler() {
+    }
+
+    public ShardedRingBufferBundler(int num_shards, int capacity) {
+        this.num_shards=num_shards;
+        this.capacity=capacity;
+    }
+
+    @ManagedAttribute(description="Number of shards (ring buffers and sender threads)")
+    public int numShards() {return shards != null? shards.length : num_shards;}
+
+    public void init(TP transport) {
+        super.init(transport);
+        if(num_shards <= 0)
+            num_shards=transport.getBundlerNumShards();
+        if(capacity <= 0)
+            capacity=transport.getBundlerCapacity();
+        shards=new RingBufferBundler[RingBufferBundler.assertPositive(num_shards, "number of shards cannot be " + num_shards)];
+        for(int i=0; i < shards.length; i++) {
+            shards[i]=new RingBufferBundler(capacity).numSpins(transport.getBundlerNumSpins())
+              .waitStrategy(transport.getBundlerWaitStrategy());
+            shards[i].init(transport);
+        }
+    }
+
+    public void start() {
+        for(RingBufferBundler shard: shards)
+            shard.start();
+    }
+
+    public void stop() {
+        for(RingBufferBundler shard: shards)
+            shard.stop();
+    }
+
+    public void send(Message msg) throws Exception {
+        shards[shard(msg.getDest())].send(msg);
+    }
+
+    public void viewChange(View view) {
+        for(RingBufferBundler shard: shards)
+            shard.viewChange(view);
+    }
+
+    public int size() {
+        int retval=0;
+        for(RingBufferBundler shard: shards)
+            retval+=shard.size();
+        return retval;
+    }
+
+    public int getQueueSize() {return size();}
+
+    public Map<String,Object> getStats() {
+        Map<String,Object> map=new HashMap<>();
+        map.put("shards", shards.length);
+        map.put("queue sizes", printQueueSizes());
+        return map;
+    }
+
+    @ManagedOperation(description="Prints the number of queued messages of each shard")
+    public String printQueueSizes() {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < shards.length; i++)
+            sb.append(i > 0? ", " : "").append(shards[i].size());
+        return sb.toString();
+    }
+
+    protected int shard(Address dest) {
+        if(dest == null)
+            return 0;
+        int h=dest.hashCode();
+        h^=(h >>> 16); // spread the higher bits, as UUIDs only differ in some
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+}
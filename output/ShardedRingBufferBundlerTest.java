@@ -0,0 +1,146 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link ShardedRingBufferBundler}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ShardedRingBufferBundlerTest {
+    protected JChannel         a, b, c;
+    protected Recorder         rb, rc;
+    protected static final int NUM_SHARDS=4, NUM=1000;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A", new SHARED_LOOPBACK().setBundler(new ShardedRingBufferBundler(NUM_SHARDS, 1024)), null);
+        b=create("B", new SHARED_LOOPBACK(), rb=new Recorder());
+        c=create("C", new SHARED_LOOPBACK(), rc=new Recorder());
+        for(JChannel ch: List.of(a, b, c))
+            ch.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+        rb.sender(a.getAddress());
+        rc.sender(a.getAddress());
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    public void testNumShards() throws Exception {
+        TP tp=a.getProtocolStack().getTransport();
+        ShardedRingBufferBundler bundler=new ShardedRingBufferBundler();
+        bundler.init(tp);
+        assert bundler.numShards() == tp.getBundlerNumShards();
+        assert ((ShardedRingBufferBundler)tp.getBundler()).numShards() == NUM_SHARDS;
+    }
+
+    /** Multicasts go to the first shard, and the same destination always maps to the same shard */
+    public void testShardSelection() throws Exception {
+        ShardedRingBufferBundler bundler=new ShardedRingBufferBundler(NUM_SHARDS, 1024);
+        bundler.init(a.getProtocolStack().getTransport());
+        assert bundler.shard(null) == 0;
+        Set<Integer> used=new HashSet<>();
+        for(int i=0; i < 100; i++) {
+            Address addr=Util.createRandomAddress("X" + i);
+            int shard=bundler.shard(addr);
+            assert shard >= 0 && shard < NUM_SHARDS : String.format("shard %d of %s is out of range", shard, addr);
+            assert bundler.shard(addr) == shard;
+            used.add(shard);
+        }
+        assert used.size() == NUM_SHARDS : String.format("only shards %s were used", used);
+    }
+
+    /** Concurrent unicasts to different members and multicasts are each sent in the order in which they were sent */
+    public void testPerDestinationOrdering() throws Exception {
+        Thread[] senders={new Thread(() -> send(b.getAddress())),
+          new Thread(() -> send(c.getAddress())),
+          new Thread(() -> send(null))};
+        for(Thread t: senders)
+            t.start();
+        for(Thread t: senders)
+            t.join();
+        for(Recorder r: List.of(rb, rc)) {
+            Util.waitUntil(10000, 100, () -> r.unicasts().size() >= NUM && r.multicasts().size() >= NUM,
+                           () -> String.format("received %d unicasts and %d multicasts",
+                                               r.unicasts().size(), r.multicasts().size()));
+            assertOrdered(r.unicasts());
+            assertOrdered(r.multicasts());
+        }
+    }
+
+    protected void send(Address dest) {
+        try {
+            for(int i=1; i <= NUM; i++)
+                a.send(dest, i);
+        }
+        catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static void assertOrdered(List<Integer> list) {
+        assert list.size() == NUM : String.format("expected %d msgs, but got %d", NUM, list.size());
+        for(int i=0; i < list.size(); i++)
+            assert list.get(i) == i+1 : String.format("expected %d but got %d", i+1, list.get(i));
+    }
+
+    protected static JChannel create(String name, TP transport, Protocol recorder) throws Exception {
+        List<Protocol> prots=new ArrayList<>(List.of(transport, new SHARED_LOOPBACK_PING()));
+        if(recorder != null)
+            prots.add(recorder);
+        prots.addAll(List.of(new NAKACK2(), new UNICAST3(), new STABLE(),
+                             new GMS().setJoinTimeout(500).printLocalAddress(false)));
+        return new JChannel(prots).name(name);
+    }
+
+    /**
+     * Records the application messages from the sender in the order in which they are received by the transport, ie.
+     * before they are ordered by {@link NAKACK2} and {@link UNICAST3}. Retransmissions are ignored.
+     */
+    protected static class Recorder extends Protocol {
+        protected volatile Address    sender;
+        protected final List<Integer> ucasts=new ArrayList<>(), mcasts=new ArrayList<>();
+        protected final Set<Integer>  ucasts_seen=new HashSet<>(), mcasts_seen=new HashSet<>();
+
+        protected Recorder sender(Address s) {sender=s; return this;}
+
+        protected List<Integer> unicasts()   {synchronized(ucasts) {return new ArrayList<>(ucasts);}}
+        protected List<Integer> multicasts() {synchronized(mcasts) {return new ArrayList<>(mcasts);}}
+
+        public Object up(Message msg) {
+            record(msg);
+            return up_prot.up(msg);
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                record(msg);
+            up_prot.up(batch);
+        }
+
+        protected void record(Message msg) {
+            if(sender == null || !sender.equals(msg.getSrc()) || msg.getType() != Message.OBJ_MSG)
+                return;
+            Object obj=msg.getObject();
+            if(!(obj instanceof Integer))
+                return;
+            List<Integer> list=msg.getDest() == null? mcasts : ucasts;
+            Set<Integer> seen=msg.getDest() == null? mcasts_seen : ucasts_seen;
+            synchronized(list) {
+                if(seen.add((Integer)obj))
+                    list.add((Integer)obj);
+            }
+        }
+    }
+}
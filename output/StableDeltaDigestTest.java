@@ -0,0 +1,131 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link STABLE} with delta digests
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StableDeltaDigestTest {
+    protected JChannel a, b, c;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A").connect(getClass().getSimpleName());
+        b=create("B").connect(getClass().getSimpleName());
+        c=create("C").connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    public void testGarbageCollectionWithDeltas() throws Exception {
+        send(10);
+        gcAndWait(10, a, b, c);
+        assert Stream.of(a, b, c).allMatch(ch -> stable(ch).getDeltaDigestsSent() == 0); // first digest is always full
+
+        send(10);
+        gcAndWait(20, a, b, c);
+        assert Stream.of(a, b, c).allMatch(ch -> stable(ch).getDeltaDigestsSent() == 1);
+        STABLE coord=stable(a);
+        assert coord.getDeltaDigestsReceived() == 3 && coord.getDeltaDigestsDiscarded() == 0;
+    }
+
+    /** After a view change, the first digest is a full digest again */
+    public void testFullDigestAfterViewChange() throws Exception {
+        send(5);
+        gcAndWait(5, a, b, c);
+        Util.close(c);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        send(5);
+        gcAndWait(10, a, b);
+        assert Stream.of(a, b).allMatch(ch -> stable(ch).getDeltaDigestsSent() == 0);
+    }
+
+    /** A lost full digest must not make the coordinator discard the subsequent deltas and stall garbage collection */
+    public void testLostFullDigest() throws Exception {
+        DropStableMessage drop=new DropStableMessage(stable(b).getId());
+        b.getProtocolStack().insertProtocol(drop, ProtocolStack.Position.BELOW, STABLE.class);
+
+        send(10);
+        stable(b).gc(); // the full digest is dropped
+        assert drop.dropped;
+        gcAndWait(10, a, b, c);
+
+        send(10);
+        gcAndWait(20, a, b, c);
+        send(10);
+        gcAndWait(30, a, b, c);
+        assert stable(a).getDeltaDigestsDiscarded() == 0;
+        assert stable(b).getDeltaDigestsSent() > 0;
+    }
+
+    protected void send(int num) throws Exception {
+        for(int i=0; i < num; i++)
+            a.send(null, i);
+    }
+
+    protected void gcAndWait(long expected_low, JChannel... channels) throws Exception {
+        // wait until all messages have been received, or else the digests would not be stable yet
+        Util.waitUntil(5000, 100, () -> Stream.of(channels)
+          .allMatch(ch -> ch.getProtocolStack().<NAKACK2>findProtocol(NAKACK2.class).getWindow(a.getAddress())
+            .getHighestDelivered() == expected_low));
+        for(JChannel ch: channels)
+            stable(ch).gc();
+        Util.waitUntil(5000, 100, () -> Stream.of(channels).allMatch(ch -> window(ch) == expected_low));
+    }
+
+    protected long window(JChannel ch) {
+        NAKACK2 nak=ch.getProtocolStack().findProtocol(NAKACK2.class);
+        return nak.getWindow(a.getAddress()).getLow();
+    }
+
+    /** Drops the next STABLE message sent */
+    protected static class DropStableMessage extends Protocol {
+        protected final short      stable_id;
+        protected volatile boolean dropped;
+
+        protected DropStableMessage(short stable_id) {
+            this.stable_id=stable_id;
+        }
+
+        public Object down(Message msg) {
+            if(!dropped && msg.getHeader(stable_id) != null) {
+                dropped=true;
+                return null;
+            }
+            return down_prot.down(msg);
+        }
+    }
+
+    protected static STABLE stable(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(STABLE.class);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE().deltaDigests(true).setDesiredAverageGossip(0).setMaxBytes(0),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+}
@@ -0,0 +1,76 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Tests that {@link STABLE} triggers garbage collection when the bytes retained by {@link NAKACK2} exceed
+ * retained_bytes_high_watermark
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StableRetainedBytesTest {
+    protected JChannel            a, b;
+    protected static final int    SIZE=1000;
+    protected static final long   HIGH_WATERMARK=10 * SIZE;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A", HIGH_WATERMARK).connect(getClass().getSimpleName());
+        b=create("B", HIGH_WATERMARK).connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    /** A retains its own messages until they're stable, B removes the messages from A when they're delivered */
+    public void testRetainedBytes() throws Exception {
+        AtomicInteger received=new AtomicInteger();
+        b.setReceiver(new Receiver() {
+            public void receive(Message msg) {
+                received.incrementAndGet();
+            }
+        });
+        for(int i=0; i < 5; i++)
+            a.send(new BytesMessage(null, new byte[SIZE]));
+        Util.waitUntil(5000, 100, () -> received.get() == 5);
+        assert nak(a).getRetainedBytes() == 5 * SIZE;
+        assert nak(a).getRetainedBytes() == nak(a).getSizeOfAllMessages();
+        assert nak(b).getRetainedBytes() == nak(b).getSizeOfAllMessages()
+          : String.format("retained bytes: %d, size of all messages: %d", nak(b).getRetainedBytes(), nak(b).getSizeOfAllMessages());
+    }
+
+    public void testHighWatermarkTriggersStability() throws Exception {
+        for(int i=0; i < 30; i++)
+            a.send(new BytesMessage(null, new byte[SIZE]));
+        Util.waitUntil(5000, 100, () -> Stream.of(a, b).allMatch(ch -> nak(ch).getRetainedBytes() < HIGH_WATERMARK),
+                       () -> String.format("retained bytes: A=%d B=%d", nak(a).getRetainedBytes(), nak(b).getRetainedBytes()));
+        assert Stream.of(a, b).allMatch(ch -> stable(ch).getRetainedBytesTriggers() > 0);
+        assert stable(a).getStabilitySent() > 0;
+    }
+
+    protected static NAKACK2 nak(JChannel ch) {return ch.getProtocolStack().findProtocol(NAKACK2.class);}
+    protected static STABLE stable(JChannel ch) {return ch.getProtocolStack().findProtocol(STABLE.class);}
+
+    protected static JChannel create(String name, long high_watermark) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE().retainedBytesHighWatermark(high_watermark).setDesiredAverageGossip(0).setMaxBytes(0),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+}
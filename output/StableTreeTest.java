@@ -0,0 +1,76 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link STABLE} with digests aggregated up a tree (tree_fanout > 0)
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StableTreeTest {
+    protected JChannel[] channels;
+
+    @BeforeMethod protected void setup() throws Exception {
+        channels=new JChannel[5];
+        for(int i=0; i < channels.length; i++)
+            channels[i]=create(String.valueOf((char)('A' + i))).connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+    /** The tree is A -> (B, C), B -> (D, E): the coordinator only handles the digests of B, C and itself */
+    public void testAggregation() throws Exception {
+        for(int i=1; i <= 10; i++)
+            channels[0].send(null, i);
+        Util.waitUntil(5000, 100, () -> Stream.of(channels).allMatch(ch -> nak(ch).getWindow(sender()).getHighestDelivered() == 10));
+        for(JChannel ch: channels)
+            stable(ch).gc();
+        Util.waitUntil(5000, 100, () -> Stream.of(channels).allMatch(ch -> nak(ch).getWindow(sender()).getLow() == 10));
+
+        assert stable(channels[0]).getStableReceived() == 3;
+        assert stable(channels[1]).getStableReceived() == 3;
+        assert stable(channels[2]).getStableReceived() == 1;
+        assert stable(channels[0]).getStabilitySent() == 1;
+        assert Stream.of(channels).skip(1).allMatch(ch -> stable(ch).getStabilitySent() == 0);
+    }
+
+    public void testTree() {
+        assert STABLE.parent(0, 2) == -1 && STABLE.parent(1, 2) == 0 && STABLE.parent(2, 2) == 0 && STABLE.parent(4, 2) == 1;
+        assert STABLE.numChildren(0, 5, 2) == 2 && STABLE.numChildren(1, 5, 2) == 2 && STABLE.numChildren(2, 5, 2) == 0;
+        assert STABLE.numChildren(0, 3, 4) == 2 && STABLE.numChildren(0, 1, 4) == 0;
+    }
+
+    protected Address sender() {return channels[0].getAddress();}
+
+    protected static NAKACK2 nak(JChannel ch) {return ch.getProtocolStack().findProtocol(NAKACK2.class);}
+    protected static STABLE stable(JChannel ch) {return ch.getProtocolStack().findProtocol(STABLE.class);}
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE().treeFanout(2).setDesiredAverageGossip(0).setMaxBytes(0),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+}
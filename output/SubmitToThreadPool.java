@@ -27,17 +27,22 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
     }
 
     public void loopback(Message msg, boolean oob, boolean internal) {
-        tp.submitToThreadPool(() -> tp.passMessageUp(msg, null, false, msg.getDest() == null, false), internal);
+        submit(() -> tp.passMessageUp(msg, null, false, msg.getDest() == null, false), internal);
     }
 
     public void process(Message msg, boolean oob, boolean internal) {
-        tp.submitToThreadPool(new SingleMessageHandler(msg), internal);
+        submit(new SingleMessageHandler(msg), internal);
     }
 
     public void process(MessageBatch batch, boolean oob, boolean internal) {
         if(oob)
             removeAndDispatchNonBundledMessages(batch);
-        tp.submitToThreadPool(new BatchHandler(batch), internal);
+        submit(new ReleasingBatchHandler(batch), internal);
+    }
+
+    /** Runs the task; submits it to the thread pool (or the internal thread pool if internal is true) by default */
+    protected boolean submit(Runnable task, boolean internal) {
+        return tp.submitToThreadPool(task, internal);
     }
 
 
@@ -56,7 +61,7 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
                 it.remove();
                 if(tp.statsEnabled())
                     tp.getMessageStats().incrNumOOBMsgsReceived(1);
-                tp.submitToThreadPool(new SingleMessageHandlerWithClusterName(msg, cname), internal);
+                submit(new SingleMessageHandlerWithClusterName(msg, cname), internal);
             }
         }
     }
@@ -151,4 +156,24 @@ public class SubmitToThreadPool implements MessageProcessingPolicy {
         }
     }
 
+    /**
+     * Passes the batch up and returns it to the pool afterwards (see {@link MessageBatchPool} for the ownership rules).
+     * Only used when the handler is the last owner of the batch; handlers which reuse their batch (e.g. a loop
+     * delivering more messages in the same batch) must not release it
+     */
+    public class ReleasingBatchHandler extends BatchHandler {
+        public ReleasingBatchHandler(final MessageBatch batch) {
+            super(batch);
+        }
+
+        public void run() {
+            try {
+                super.run();
+            }
+            finally {
+                tp.releaseBatch(batch);
+            }
+        }
+    }
+
 }
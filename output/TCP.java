@@ -10,6 +10,7 @@ import org.jgroups.blocks.cs.TcpServer;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.util.SocketFactory;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 /**
@@ -43,6 +44,10 @@ public class TCP extends BasicTCP {
       type=AttributeType.BYTES)
     protected int buffered_output_stream_size=8192;
 
+    @Property(description="Max number of messages in the send queue of a connection. Only used when " +
+      "parallel_fan_out is enabled. When a queue is full, messages to that member are dropped (and retransmitted later)")
+    protected int send_queue_size=2000;
+
     public int getBufferedInputStreamSize() {
         return buffered_input_stream_size;
     }
@@ -52,6 +57,15 @@ public class TCP extends BasicTCP {
         return this;
     }
 
+    public int getSendQueueSize() {return send_queue_size;}
+
+    public TCP setSendQueueSize(int s) {
+        this.send_queue_size=s;
+        if(server != null)
+            server.sendQueueSize(s);
+        return this;
+    }
+
     public int getBufferedOutputStreamSize() {
         return buffered_output_stream_size;
     }
@@ -85,6 +99,20 @@ public class TCP extends BasicTCP {
             server.send(dest, data, offset, length);
     }
 
+    @Override public boolean supportsGatheringWrites() {return true;}
+
+    @Override public void sendUnicast(PhysicalAddress dest, ByteBuffer[] bufs, int length) throws Exception {
+        if(server != null)
+            server.send(dest, bufs, length);
+    }
+
+    @Override public boolean supportsParallelFanOut() {return true;}
+
+    @Override public void enqueueUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        if(server != null)
+            server.sendAsync(dest, data, offset, length);
+    }
+
     public void retainAll(Collection<Address> members) {
         server.retainAll(members);
     }
@@ -102,6 +130,7 @@ public class TCP extends BasicTCP {
           .peerAddressReadTimeout(peer_addr_read_timeout)
           .usePeerConnections(true)
           .socketFactory(getSocketFactory());
+        server.readFramesIntoArray(zero_copy_receive).sendQueueSize(send_queue_size);
 
         if(send_buf_size > 0)
             server.sendBufferSize(send_buf_size);
@@ -23,6 +23,7 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -58,6 +59,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     public static final    byte    LIST=1; // we have a list of messages rather than a single message when set
     public static final    byte    MULTICAST=2; // message is a multicast (versus a unicast) message when set
+    public static final    byte    COMPACT_HEADERS=4; // the headers of a message list use a HeaderDictionary
     public static final    int     MSG_OVERHEAD=Global.SHORT_SIZE + Global.BYTE_SIZE; // version + flags
     protected static final long    MIN_WAIT_BETWEEN_DISCOVERIES=TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);  // ns
 
@@ -128,14 +130,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
       "might get removed without warning")
     protected boolean loopback_separate_thread=true;
 
-    @Property(description="The fully qualified name of a class implementing MessageProcessingPolicy")
+    @Property(description="The fully qualified name of a class implementing MessageProcessingPolicy, or \"submit\" " +
+      "(SubmitToThreadPool), \"max\" (MaxOneThreadPerSender), \"virtual\" (VirtualThreadPerSender) or \"work\" " +
+      "(WorkStealingPolicy)")
     protected String message_processing_policy;
 
 
     @Property(name="message_processing_policy.max_buffer_size",
-      description="Max number of messages buffered for consumption of the delivery thread in MaxOneThreadPerSender. 0 creates an unbounded buffer")
+      description="Max number of messages buffered for consumption of the delivery thread in MaxOneThreadPerSender, " +
+        "or per sender in WorkStealingPolicy. 0 creates an unbounded buffer")
     protected int msg_processing_max_buffer_size=5000;
 
+    @Property(name="message_processing_policy.chunk_size",
+      description="Max number of messages delivered by a single task in WorkStealingPolicy. Regular messages of a " +
+        "sender are delivered in chunks of this size, larger OOB batches are split into chunks delivered in parallel")
+    protected int msg_processing_chunk_size=100;
+
     @Property(description="Thread naming pattern for threads in this channel. Valid values are \"pcl\": " +
       "\"p\": includes the thread name, e.g. \"Incoming thread-1\", \"UDP ucast receiver\", " +
       "\"c\": includes the cluster name, e.g. \"MyCluster\", " +
@@ -225,6 +235,25 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected MessageFactory msg_factory=new DefaultMessageFactory();
 
+    @Property(description="If true, the payloads of received BytesMessages reference the buffer into which a packet " +
+      "was read, instead of being copied into a new array per message. Ignored if msg_factory_class is set")
+    protected boolean zero_copy_receive;
+
+    @Property(description="If true, bundlers write the headers of message lists in compact form: the protocol and " +
+      "magic IDs of a header are replaced by a 1-byte index into a dictionary which is built as part of the list. " +
+      "All members need to support this")
+    protected boolean compact_headers;
+
+    @Property(description="Max number of MessageBatches kept for reuse by the receive path (0 disables reuse). " +
+      "When enabled, protocols and receivers must not hold on to a MessageBatch after up(MessageBatch) returned")
+    protected int message_batch_pool_size;
+
+    /** Recycles MessageBatches read by {@link #handleMessageBatch}; null if message_batch_pool_size is 0 */
+    protected MessageBatchPool batch_pool;
+
+    /** The array of 4 batches filled by {@link #handleMessageBatch}, one per receiver thread */
+    protected final ThreadLocal<MessageBatch[]> batch_arrays=ThreadLocal.withInitial(() -> new MessageBatch[4]);
+
     @Property(description="The number of times a thread pool needs to be full before a thread dump is logged")
     protected int                 thread_dumps_threshold=1;
 
@@ -241,8 +270,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
       description="Maximum number of bytes for messages to be queued until they are sent")
     protected int max_bundle_size=64000;
 
-    @Property(description="The type of bundler used (\"ring-buffer\", \"transfer-queue\" (default), \"sender-sends\" or " +
-      "\"no-bundler\") or the fully qualified classname of a Bundler implementation")
+    @Property(description="The type of bundler used (\"ring-buffer\", \"transfer-queue\" (default), \"sender-sends\", " +
+      "\"per-destination\", \"sharded-ring-buffer\" or \"no-bundler\") or the fully qualified classname of a Bundler implementation")
     protected String bundler_type="transfer-queue";
 
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
@@ -254,6 +283,28 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(description="The wait strategy for a RingBuffer")
     protected String bundler_wait_strategy="park";
 
+    @Property(description="Number of ring buffers (each with its own sender thread) of the sharded ring buffer bundler")
+    protected int bundler_num_shards=Math.max(2, Runtime.getRuntime().availableProcessors() / 4);
+
+    @Property(description="Latency target (in microseconds) of the per-destination bundler: the max time between " +
+      "queuing a message and having sent it. The flush threshold and max delay of each destination are adjusted " +
+      "to meet this target")
+    protected long bundler_latency_target=500;
+
+    @Property(description="If true, bundlers send the payloads of large messages as separate buffers using gathering " +
+      "writes, instead of copying them into the bundler's output buffer first. Only used for unicasts and by " +
+      "transports which support gathering writes")
+    protected boolean gathering_writes;
+
+    @Property(description="Min size (bytes) of a payload to be sent as a separate buffer when gathering_writes is " +
+      "enabled. Smaller payloads are copied into the output buffer",type=AttributeType.BYTES)
+    protected int gathering_writes_min_size=8192;
+
+    @Property(description="If true, a multicast sent as N unicasts (e.g. by TCP) is copied once and the copy is added " +
+      "to the send queue of each connection, which is drained by a separate sender thread per connection. A slow " +
+      "connection then doesn't delay sending to the members after it. Ignored if the transport doesn't support it")
+    protected boolean parallel_fan_out;
+
     @ManagedAttribute(description="Fully qualified classname of bundler")
     public String getBundlerClass() {
         return bundler != null? bundler.getClass().getName() : "null";
@@ -305,6 +356,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public int getMsgProcessingMaxBufferSize() {return msg_processing_max_buffer_size;}
     public <T extends TP> T setMsgProcessingMaxBufferSize(int m) {this.msg_processing_max_buffer_size=m; return (T)this;}
 
+    public int getMsgProcessingChunkSize() {return msg_processing_chunk_size;}
+    public <T extends TP> T setMsgProcessingChunkSize(int s) {this.msg_processing_chunk_size=s; return (T)this;}
+
     public boolean threadPoolEnabled() {return thread_pool_enabled;}
     public <T extends TP> T threadPoolEnabled(boolean t) {this.thread_pool_enabled=t; return (T)this;}
 
@@ -352,12 +406,39 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public String getMsgFactoryClass() {return msg_factory_class;}
     public <T extends TP> T setMsgFactoryClass(String m) {this.msg_factory_class=m; return (T)this;}
 
+    public boolean zeroCopyReceive() {return zero_copy_receive;}
+    public <T extends TP> T zeroCopyReceive(boolean z) {this.zero_copy_receive=z; return (T)this;}
+
+    public boolean compactHeaders() {return compact_headers;}
+    public <T extends TP> T compactHeaders(boolean c) {this.compact_headers=c; return (T)this;}
+
+    public int getMessageBatchPoolSize() {return message_batch_pool_size;}
+    public <T extends TP> T setMessageBatchPoolSize(int s) {this.message_batch_pool_size=s; return (T)this;}
+
+    @ManagedAttribute(description="Size of the message batch pool and the number of batches created and reused")
+    public String getMessageBatchPoolStats() {return batch_pool != null? batch_pool.toString() : "n/a";}
+
     public String getBundlerType() {return bundler_type;}
     public <T extends TP> T setBundlerType(String b) {this.bundler_type=b; return (T)this;}
 
     public int getBundlerNumSpins() {return bundler_num_spins;}
     public <T extends TP> T setBundlerNumSpins(int b) {this.bundler_num_spins=b; return (T)this;}
 
+    public int getBundlerNumShards() {return bundler_num_shards;}
+    public <T extends TP> T setBundlerNumShards(int n) {this.bundler_num_shards=n; return (T)this;}
+
+    public long getBundlerLatencyTarget() {return bundler_latency_target;}
+    public <T extends TP> T setBundlerLatencyTarget(long t) {this.bundler_latency_target=t; return (T)this;}
+
+    public boolean gatheringWrites() {return gathering_writes && supportsGatheringWrites();}
+    public <T extends TP> T gatheringWrites(boolean g) {this.gathering_writes=g; return (T)this;}
+
+    public int getGatheringWritesMinSize() {return gathering_writes_min_size;}
+    public <T extends TP> T setGatheringWritesMinSize(int s) {this.gathering_writes_min_size=s; return (T)this;}
+
+    public boolean parallelFanOut() {return parallel_fan_out && supportsParallelFanOut();}
+    public <T extends TP> T parallelFanOut(boolean f) {this.parallel_fan_out=f; return (T)this;}
+
     public String getBundlerWaitStrategy() {return bundler_wait_strategy;}
     public <T extends TP> T setBundlerWaitStrategy(String b) {this.bundler_wait_strategy=b; return (T)this;}
 
@@ -370,6 +451,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return msg_factory != null? msg_factory.getClass().getName() : "n/a";
     }
 
+    @ManagedAttribute(description="Max number of headers added to a message by the protocols of this stack")
+    public int getNumHeaders() {return stack != null? stack.getNumHeaders() : 0;}
+
+    @ManagedAttribute(description="Number of times the headers of a message had to be resized (all stacks in this JVM)")
+    public static long getNumHeaderResizes() {return BaseMessage.headerResizes();}
+
     @ManagedAttribute(type=AttributeType.BYTES)
     public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
@@ -478,6 +565,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             msg_processing_policy.init(this);
             return;
         }
+        else if(policy.startsWith("virtual")) {
+            msg_processing_policy=new VirtualThreadPerSender();
+            msg_processing_policy.init(this);
+            return;
+        }
+        else if(policy.startsWith("work")) {
+            msg_processing_policy=new WorkStealingPolicy();
+            msg_processing_policy.init(this);
+            return;
+        }
         try {
             Class<MessageProcessingPolicy> clazz=(Class<MessageProcessingPolicy>)Util.loadClass(policy, getClass());
             msg_processing_policy=clazz.getDeclaredConstructor().newInstance();
@@ -614,6 +711,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     protected LazyRemovalCache<Address,PhysicalAddress> logical_addr_cache;
 
+    /** Physical addresses of the members of the current view, indexed by rank. Used by {@link #sendToMembers} instead
+     * of looking up each member in logical_addr_cache. Replaced (never modified) when the view or the physical
+     * address of a member changes */
+    protected volatile MemberAddresses member_addrs;
+
     // last time (in ns) we sent a discovery request
     protected long last_discovery_request;
 
@@ -909,6 +1011,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public void evictLogicalAddressCache(boolean force) {
         logical_addr_cache.removeMarkedElements(force);
         fetchLocalAddresses();
+        updateMemberAddresses();
     }
 
     /**
@@ -931,6 +1034,33 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     public abstract void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception;
 
+    /**
+     * Sends the concatenation of bufs to a single member. Transports which support gathering writes should override
+     * this (and {@link #supportsGatheringWrites()}); the default implementation copies bufs into a single array
+     * @param dest Must be a non-null unicast address
+     * @param bufs The buffers to be sent
+     * @param length The sum of the remaining bytes of all buffers
+     */
+    public void sendUnicast(PhysicalAddress dest, ByteBuffer[] bufs, int length) throws Exception {
+        sendUnicast(dest, Util.bufferToArray(bufs, length), 0, length);
+    }
+
+    /** Whether or not {@link #sendUnicast(PhysicalAddress,ByteBuffer[],int)} writes the buffers without copying them */
+    public boolean supportsGatheringWrites() {return false;}
+
+    /**
+     * Queues data to be sent to a single member by a separate thread, without blocking on the member's connection.
+     * The data is not copied and must not be modified after this call; it may be passed to different members.
+     * Transports which support this should override this and {@link #supportsParallelFanOut()}; the default
+     * implementation sends the data synchronously
+     */
+    public void enqueueUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        sendUnicast(dest, data, offset, length);
+    }
+
+    /** Whether or not {@link #enqueueUnicast(PhysicalAddress,byte[],int,int)} sends asynchronously */
+    public boolean supportsParallelFanOut() {return false;}
+
     public abstract String getInfo();
 
     /* ------------------------------------------------------------------------------- */
@@ -1037,6 +1167,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             Class<MessageFactory> clazz=(Class<MessageFactory>)Util.loadClass(msg_factory_class, getClass());
             msg_factory=clazz.getDeclaredConstructor().newInstance();
         }
+        else if(zero_copy_receive)
+            msg_factory=new ZeroCopyMessageFactory();
+        if(message_batch_pool_size > 0)
+            batch_pool=new MessageBatchPool(message_batch_pool_size);
     }
 
 
@@ -1080,6 +1214,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         // Stop the thread pools
         shutdownThreadPool(thread_pool);
         shutdownThreadPool(internal_pool);
+        if(batch_pool != null)
+            batch_pool.clear();
     }
 
 
@@ -1223,6 +1359,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     // fix for https://jira.jboss.org/jira/browse/JGRP-918
                     logical_addr_cache.retainAll(members);
                     fetchLocalAddresses();
+                    updateMemberAddresses();
 
                     List<Address> left_mbrs=Util.leftMembers(old_members,members);
                     if(left_mbrs != null && !left_mbrs.isEmpty())
@@ -1238,6 +1375,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     bundler.viewChange(evt.getArg());
                 if(msg_processing_policy instanceof MaxOneThreadPerSender)
                     ((MaxOneThreadPerSender)msg_processing_policy).viewChange(view.getMembers());
+                else if(msg_processing_policy instanceof VirtualThreadPerSender)
+                    ((VirtualThreadPerSender)msg_processing_policy).viewChange(view.getMembers());
+                else if(msg_processing_policy instanceof WorkStealingPolicy)
+                    ((WorkStealingPolicy)msg_processing_policy).viewChange(view.getMembers());
                 break;
 
             case Event.CONNECT:
@@ -1313,6 +1454,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public Object down(Message msg) {
         if(header != null)
             msg.putHeader(this.id, header); // added patch by Roland Kurmann (March 20 2003)
+        if(stack != null) // all headers have been added: new messages are sized accordingly by the stack
+            stack.updateNumHeaders(msg.getNumHeaders());
 
         setSourceAddress(msg); // very important !! listToBuffer() will fail with a null src address !!
 
@@ -1395,6 +1538,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             case "rqb": case "rq":
             case "remove-queue-bundler": case "remove-queue":
                 return new RemoveQueueBundler();
+            case "pd":
+            case "per-destination":
+                return new PerDestinationBundler();
+            case "srb":
+            case "sharded-ring-buffer":
+                return new ShardedRingBufferBundler(bundler_num_shards, bundler_capacity);
         }
 
         try {
@@ -1508,11 +1657,30 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         up_prot.up(batch);
     }
 
+    /** Returns a batch to the pool once it has been passed up, or its messages were copied. No-op if pooling is off */
+    public void releaseBatch(MessageBatch batch) {
+        MessageBatchPool tmp=batch_pool;
+        if(tmp != null)
+            tmp.release(batch);
+    }
+
 
     /**
-     * Subclasses must call this method when a unicast or multicast message has been received.
+     * Subclasses must call this method when a unicast or multicast message has been received. If
+     * {@link #zero_copy_receive} is enabled, received messages may reference data, so the caller must not reuse it.
      */
     public void receive(Address sender, byte[] data, int offset, int length) {
+        receive(sender, data, offset, length, null);
+    }
+
+    /**
+     * Same as {@link #receive(Address,byte[],int,int)}, but if map is non-null, the messages of a message list are
+     * added to the batches of their sender in map rather than being passed up. This allows a transport to merge the
+     * lists of multiple packets (received from the same socket) into one batch per sender and message type; the
+     * batches are passed up by {@link #processBatches(Map)}. A single message is passed up right away, after the
+     * batches collected so far
+     */
+    public void receive(Address sender, byte[] data, int offset, int length, Map<Address,MessageBatch[]> map) {
         if(data == null) return;
 
         // drop message from self; it has already been looped back up (https://issues.jboss.org/browse/JGRP-1765)
@@ -1532,10 +1700,17 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         boolean is_message_list=(flags & LIST) == LIST, multicast=(flags & MULTICAST) == MULTICAST;
         ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset, length);
-        if(is_message_list) // used if message bundling is enabled
-            handleMessageBatch(in, multicast, msg_factory);
-        else
+        if(is_message_list) { // used if message bundling is enabled
+            if(map == null)
+                handleMessageBatch(in, multicast, Util.headerDictionary(flags), msg_factory);
+            else
+                addToBatches(in, multicast, Util.headerDictionary(flags), map);
+        }
+        else {
+            if(map != null)
+                processBatches(map); // preserves the order of messages received before this one
             handleSingleMessage(in, multicast);
+        }
     }
 
     public void receive(Address sender, DataInput in) throws Exception {
@@ -1552,15 +1727,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         boolean is_message_list=(flags & LIST) == LIST, multicast=(flags & MULTICAST) == MULTICAST;
         if(is_message_list) // used if message bundling is enabled
-            handleMessageBatch(in, multicast, msg_factory);
+            handleMessageBatch(in, multicast, Util.headerDictionary(flags), msg_factory);
         else
             handleSingleMessage(in, multicast);
     }
 
 
     protected void handleMessageBatch(DataInput in, boolean multicast, MessageFactory factory) {
+        handleMessageBatch(in, multicast, null, factory);
+    }
+
+    /** Reads a message list into batches and passes them to the message processing policy. dict is null unless the
+     * list was written with compact headers */
+    protected void handleMessageBatch(DataInput in, boolean multicast, HeaderDictionary dict, MessageFactory factory) {
+        final MessageBatch[] batches=batch_arrays.get();
         try {
-            final MessageBatch[] batches=Util.readMessageBatch(in, multicast, factory);
+            Util.readMessageBatch(in, multicast, factory, batches, batch_pool, dict);
             final MessageBatch regular=batches[0], oob=batches[1], internal_oob=batches[2], internal=batches[3];
 
             processBatch(oob,          true,  false);
@@ -1571,8 +1753,49 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         catch(Throwable t) {
             log.error(String.format(Util.getMessage("IncomingMsgFailure"), local_addr), t);
         }
+        finally {
+            Arrays.fill(batches, null); // the batches are now owned by the message processing policy
+        }
+    }
+
+
+    /** Reads a message list and adds its messages to the batches of the sender in map */
+    protected void addToBatches(DataInput in, boolean multicast, HeaderDictionary dict, Map<Address,MessageBatch[]> map) {
+        final MessageBatch[] batches=batch_arrays.get();
+        try {
+            Util.readMessageBatch(in, multicast, msg_factory, batches, batch_pool, dict);
+            for(int i=0; i < batches.length; i++) {
+                MessageBatch batch=batches[i];
+                if(batch == null)
+                    continue;
+                MessageBatch[] existing=batch.isEmpty()? null : map.computeIfAbsent(batch.sender(), k -> new MessageBatch[4]);
+                if(existing != null && existing[i] == null)
+                    existing[i]=batch;
+                else {
+                    if(existing != null)
+                        existing[i].add(batch); // the messages are copied to the existing batch
+                    releaseBatch(batch);
+                }
+            }
+        }
+        catch(Throwable t) {
+            log.error(String.format(Util.getMessage("IncomingMsgFailure"), local_addr), t);
+        }
+        finally {
+            Arrays.fill(batches, null);
+        }
     }
 
+    /** Passes up the batches collected by {@link #receive(Address,byte[],int,int,Map)} and clears map */
+    public void processBatches(Map<Address,MessageBatch[]> map) {
+        for(MessageBatch[] batches: map.values()) {
+            processBatch(batches[1], true,  false); // oob
+            processBatch(batches[0], false, false); // regular
+            processBatch(batches[2], true,  true);  // internal-oob
+            processBatch(batches[3], false, true);  // internal
+        }
+        map.clear();
+    }
 
     protected void handleSingleMessage(DataInput in, boolean multicast) {
         try {
@@ -1593,8 +1816,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected void processBatch(MessageBatch batch, boolean oob, boolean internal) {
         try {
-            if(batch != null && !batch.isEmpty() && !unicastDestMismatch(batch.getDest()))
+            if(batch == null)
+                return;
+            if(!batch.isEmpty() && !unicastDestMismatch(batch.getDest()))
                 msg_processing_policy.process(batch, oob, internal);
+            else
+                releaseBatch(batch);
         }
         catch(Throwable t) {
             log.error("processing batch failed", t);
@@ -1685,6 +1912,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /** Sends the concatenation of bufs to dest, using a gathering write for unicasts if the transport supports it */
+    public void doSend(ByteBuffer[] bufs, int length, Address dest) throws Exception {
+        PhysicalAddress physical_dest=dest == null || !supportsGatheringWrites()? null
+          : dest instanceof PhysicalAddress? (PhysicalAddress)dest : getPhysicalAddressFromCache(dest);
+        if(physical_dest == null) { // multicast or physical address needs to be fetched first
+            doSend(Util.bufferToArray(bufs, length), 0, length, dest);
+            return;
+        }
+        if(stats) {
+            msg_stats.incrNumMsgsSent(1);
+            msg_stats.incrNumBytesSent(length);
+        }
+        sendUnicast(physical_dest, bufs, length);
+    }
+
+
     protected void sendToSingleMember(final Address dest, byte[] buf, int offset, int length) throws Exception {
         PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : getPhysicalAddressFromCache(dest);
         if(physical_dest != null) {
@@ -1716,11 +1959,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     /** Fetches the physical addrs for mbrs and sends the msg to each physical address. Asks discovery for missing
      * members' physical addresses if needed */
     protected void sendToMembers(Collection<Address> mbrs, byte[] buf, int offset, int length) throws Exception {
+        MemberAddresses tmp=member_addrs;
+        // members is modified in place on a view change: only use tmp if it was created from the current view
+        if(mbrs == members && tmp != null && tmp.view == view) {
+            sendToMembers(tmp, buf, offset, length);
+            return;
+        }
         List<Address> missing=null;
 
         if(mbrs == null || mbrs.isEmpty())
             mbrs=logical_addr_cache.keySet();
 
+        boolean fan_out=parallelFanOut();
+        if(fan_out) { // the caller reuses buf, so the send queues get a (shared) copy
+            buf=Arrays.copyOfRange(buf, offset, offset + length);
+            offset=0;
+        }
         for(Address mbr: mbrs) {
             PhysicalAddress target=mbr instanceof PhysicalAddress? (PhysicalAddress)mbr : logical_addr_cache.get(mbr);
             if(target == null) {
@@ -1731,8 +1985,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             }
 
             try {
-                if(!Objects.equals(local_physical_addr, target))
-                    sendUnicast(target, buf, offset, length);
+                if(!Objects.equals(local_physical_addr, target)) {
+                    if(fan_out)
+                        enqueueUnicast(target, buf, offset, length);
+                    else
+                        sendUnicast(target, buf, offset, length);
+                }
             }
             catch(SocketException | SocketTimeoutException sock_ex) {
                 log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, mbr, sock_ex);
@@ -1746,6 +2004,42 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /** Sends to all members of the current view, using the physical addresses (by rank) instead of cache lookups */
+    protected void sendToMembers(MemberAddresses addrs, byte[] buf, int offset, int length) throws Exception {
+        List<Address> missing=null;
+        boolean fan_out=parallelFanOut();
+        if(fan_out) {
+            buf=Arrays.copyOfRange(buf, offset, offset + length);
+            offset=0;
+        }
+        for(int i=0; i < addrs.physical.length; i++) {
+            PhysicalAddress target=addrs.physical[i];
+            if(target == null && (target=logical_addr_cache.get(addrs.logical[i])) == null) {
+                if(missing == null)
+                    missing=new ArrayList<>(addrs.logical.length);
+                missing.add(addrs.logical[i]);
+                continue;
+            }
+            try {
+                if(!Objects.equals(local_physical_addr, target)) {
+                    if(fan_out)
+                        enqueueUnicast(target, buf, offset, length);
+                    else
+                        sendUnicast(target, buf, offset, length);
+                }
+            }
+            catch(SocketException | SocketTimeoutException sock_ex) {
+                log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, addrs.logical[i], sock_ex);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, addrs.logical[i], t);
+            }
+        }
+        if(missing != null)
+            fetchPhysicalAddrs(missing);
+    }
+
+
     protected void fetchPhysicalAddrs(List<Address> missing) {
         long current_time=0;
         boolean do_send=false;
@@ -1867,8 +2161,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     protected boolean addPhysicalAddressToCache(Address logical_addr, PhysicalAddress physical_addr, boolean overwrite) {
-        return logical_addr != null && physical_addr != null &&
+        boolean added=logical_addr != null && physical_addr != null &&
           overwrite? logical_addr_cache.add(logical_addr, physical_addr) : logical_addr_cache.addIfAbsent(logical_addr, physical_addr);
+        MemberAddresses tmp=member_addrs;
+        if(added && tmp != null && tmp.needsUpdate(logical_addr, physical_addr))
+            updateMemberAddresses();
+        return added;
     }
 
     protected PhysicalAddress getPhysicalAddressFromCache(Address logical_addr) {
@@ -1883,6 +2181,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         if(logical_addr != null) {
             logical_addr_cache.remove(logical_addr);
             fetchLocalAddresses();
+            updateMemberAddresses();
         }
     }
 
@@ -1891,6 +2190,26 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public void clearLogicalAddressCache() {
         logical_addr_cache.clear(true);
         fetchLocalAddresses();
+        updateMemberAddresses();
+    }
+
+    /**
+     * Recreates {@link #member_addrs} from the current view and logical_addr_cache. Synchronizes on members (like the
+     * view change), so that an instance created from an old view cannot replace the one created from a new view
+     */
+    protected void updateMemberAddresses() {
+        synchronized(members) {
+            View v=view;
+            if(v == null || logical_addr_cache == null) {
+                member_addrs=null;
+                return;
+            }
+            Address[] logical=v.getMembersRaw();
+            PhysicalAddress[] physical=new PhysicalAddress[logical.length];
+            for(int i=0; i < logical.length; i++)
+                physical[i]=logical_addr_cache.get(logical[i]);
+            member_addrs=new MemberAddresses(v, physical);
+        }
     }
 
 
@@ -1899,4 +2218,26 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     /* ----------------------------- End of Private Methods ---------------------------------------- */
 
 
+    /** Logical and physical addresses of the members of a view. Instances are immutable */
+    protected static class MemberAddresses {
+        protected final View              view;     // the view from which this instance was created
+        protected final Address[]         logical;  // the members of the view (not to be modified)
+        protected final PhysicalAddress[] physical; // null if the physical address of a member was not known
+
+        protected MemberAddresses(View view, PhysicalAddress[] physical) {
+            this.view=view;
+            this.logical=view.getMembersRaw();
+            this.physical=physical;
+        }
+
+        /** Returns true if logical_addr is a member and the physical address differs from the one in this instance */
+        protected boolean needsUpdate(Address logical_addr, PhysicalAddress physical_addr) {
+            for(int i=0; i < logical.length; i++)
+                if(logical[i].equals(logical_addr))
+                    return !Objects.equals(physical[i], physical_addr);
+            return false;
+        }
+    }
+
+
 }
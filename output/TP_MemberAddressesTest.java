@@ -0,0 +1,89 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests that {@link TP#member_addrs} always reflects the current view, even when the physical address cache is
+ * updated concurrently with view changes
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TP_MemberAddressesTest {
+    protected JChannel         a, b;
+    protected TP               tp;
+    protected volatile boolean done;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A").connect(getClass().getSimpleName());
+        b=create("B").connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        tp=a.getProtocolStack().getTransport();
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    public void testMemberAddressesAfterJoin() throws Exception {
+        JChannel c=create("C").connect(getClass().getSimpleName());
+        try {
+            Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+            TP.MemberAddresses addrs=tp.member_addrs;
+            assert addrs.view == tp.view;
+            assert Arrays.asList(addrs.logical).contains(c.getAddress());
+        }
+        finally {
+            Util.close(c);
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        TP.MemberAddresses addrs=tp.member_addrs;
+        assert addrs.view == tp.view && addrs.logical.length == 2;
+    }
+
+    /** Updates the physical address of B while views are installed: the last view must always win */
+    public void testConcurrentCacheUpdatesAndViewChanges() throws Exception {
+        Address addr_a=a.getAddress(), addr_b=b.getAddress();
+        PhysicalAddress[] physical_addrs={new IpAddress("127.0.0.1", 5000), new IpAddress("127.0.0.1", 5001)};
+        CountDownLatch latch=new CountDownLatch(1);
+        done=false;
+        Thread updater=new Thread(() -> {
+            try {
+                latch.await();
+                for(int i=0; !done; i++)
+                    tp.addPhysicalAddressToCache(addr_b, physical_addrs[i % 2], true);
+            }
+            catch(InterruptedException ignored) {
+            }
+        });
+        updater.start();
+        latch.countDown();
+        View last=null;
+        for(int i=100; i < 1100; i++) {
+            last=i % 2 == 0? View.create(addr_a, i, addr_a, addr_b) : View.create(addr_a, i, addr_a);
+            tp.down(new Event(Event.VIEW_CHANGE, last));
+        }
+        done=true;
+        updater.join(10000);
+        TP.MemberAddresses addrs=tp.member_addrs;
+        assert addrs.view == last : String.format("member addresses are from view %s, but last view is %s", addrs.view, last);
+        assert addrs.logical.length == 1;
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+}
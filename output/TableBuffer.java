@@ -0,0 +1,18 @@
+package org.jgroups.util;
+
+/**
+ * {@link Table} (a matrix of rows, guarded by a lock) as implementation of {@link Buffer}. Table already provides
+ * all methods of Buffer with the same semantics.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class TableBuffer<T> extends Table<T> implements Buffer<T> {
+
+    public TableBuffer(int num_rows, int msgs_per_row, long offset) {
+        super(num_rows, msgs_per_row, offset);
+    }
+
+    public TableBuffer(int num_rows, int msgs_per_row, long offset, double resize_factor, long max_compaction_time) {
+        super(num_rows, msgs_per_row, offset, resize_factor, max_compaction_time);
+    }
+}
@@ -3,13 +3,19 @@ package org.jgroups.blocks.cs;
 import org.jgroups.Address;
 import org.jgroups.Version;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ByteArray;
+import org.jgroups.util.Runner;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
 
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -29,6 +35,7 @@ public class TcpConnection extends Connection {
     protected final TcpBaseServer    server;
     protected final AtomicInteger    writers=new AtomicInteger(0); // to determine the last writer to flush
     protected boolean                connected;
+    protected volatile Sender        sender; // created on the first call to enqueue()
 
     /** Creates a connection stub and binds it, use {@link #connect(Address)} to connect */
     public TcpConnection(Address peer_addr, TcpBaseServer server) throws Exception {
@@ -141,6 +148,63 @@ public class TcpConnection extends Connection {
         }
     }
 
+    /**
+     * Adds the data to the send queue, to be written by the sender thread. The data is not copied, so the caller must
+     * not modify it afterwards. If the queue is full, the data is dropped (and retransmitted by the protocols above),
+     * rather than blocking the caller on a slow peer
+     * @return True if the data was queued, false if it was dropped
+     * @throws SocketException If the connection is not connected (or has been closed)
+     */
+    public boolean enqueue(byte[] data, int offset, int length) throws SocketException {
+        if(out == null)
+            throw notConnected();
+        Sender s=sender;
+        if(s == null) {
+            synchronized(this) { // close() clears connected under the same lock, so no sender is started after it
+                if(!connected)
+                    throw notConnected();
+                if((s=sender) == null)
+                    sender=s=new Sender(server.factory, server.sendQueueSize()).start();
+            }
+        }
+        return s.add(new ByteArray(data, offset, length));
+    }
+
+    protected SocketException notConnected() {
+        return new SocketException(String.format("%s: connection to %s is not connected", server.localAddress(), peer_addr));
+    }
+
+    /** Number of messages dropped because the send queue was full */
+    public int droppedMessages() {
+        Sender s=sender;
+        return s != null? s.dropped.get() : 0;
+    }
+
+    /** Writes all buffers while holding the send lock, flushing only once. Removes (and closes) the connection
+     * on failure, so that the next message creates a new one */
+    protected void send(List<ByteArray> list) {
+        boolean failed=false;
+        writers.incrementAndGet();
+        send_lock.lock();
+        try {
+            for(ByteArray buf: list)
+                doSend(buf.getArray(), buf.getOffset(), buf.getLength());
+            updateLastAccessed();
+        }
+        catch(Exception ex) {
+            server.log.warn("%s: failed sending %d queued messages to %s, closing connection: %s",
+                            server.localAddress(), list.size(), peer_addr, ex);
+            failed=true;
+        }
+        finally {
+            if(writers.decrementAndGet() == 0)
+                flush();
+            send_lock.unlock();
+        }
+        if(failed) // outside of send_lock: close() acquires it
+            server.removeConnectionIfPresent(peer_addr, this);
+    }
+
     public void send(ByteBuffer buf) throws Exception {
         if(buf == null)
             return;
@@ -156,6 +220,41 @@ public class TcpConnection extends Connection {
     }
 
 
+    /**
+     * Sends the concatenation of bufs as a single message, without copying them into an intermediate array first.
+     * Large buffers are written directly to the socket by the {@link BufferedOutputStream}
+     * @param bufs The buffers to be sent, guaranteed to be non null
+     * @param length The sum of the remaining bytes of all buffers
+     */
+    public void send(ByteBuffer[] bufs, int length) throws Exception {
+        if(out == null)
+            return;
+        writers.incrementAndGet();
+        send_lock.lock();
+        try {
+            doSend(bufs, length);
+            updateLastAccessed();
+        }
+        catch(InterruptedException iex) {
+            Thread.currentThread().interrupt(); // set interrupt flag again
+        }
+        finally {
+            if(writers.decrementAndGet() == 0) // only the last active writer thread calls flush()
+                flush(); // won't throw an exception
+            send_lock.unlock();
+        }
+    }
+
+    protected void doSend(ByteBuffer[] bufs, int length) throws Exception {
+        out.writeInt(length); // write the length of all buffers first
+        for(ByteBuffer buf: bufs) {
+            if(buf.hasArray())
+                out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            else
+                out.write(Util.bufferToArray(buf));
+        }
+    }
+
     protected void doSend(byte[] data, int offset, int length) throws Exception {
         out.writeInt(length); // write the length of the data buffer first
         out.write(data,offset,length);
@@ -269,6 +368,60 @@ public class TcpConnection extends Connection {
 
 
 
+    /** Drains the send queue and writes its contents to the socket */
+    protected class Sender {
+        protected final BlockingQueue<ByteArray> queue;
+        protected final List<ByteArray>          list=new ArrayList<>(); // only accessed by the sender thread
+        protected final Runner                   runner;
+        protected final AtomicInteger            dropped=new AtomicInteger();
+        protected volatile boolean               full; // set when the first message is dropped, to log only once
+
+        public Sender(ThreadFactory f, int capacity) {
+            queue=new ArrayBlockingQueue<>(capacity);
+            runner=new Runner(f, "Connection.Sender [" + getSockAddress() + "]", this::drain, queue::clear);
+        }
+
+        public Sender  start()              {runner.start(); return this;}
+        public Sender  stop()               {runner.stop(); return this;}
+        public int     size()               {return queue.size();}
+
+        public boolean add(ByteArray buf) {
+            if(queue.offer(buf)) {
+                if(full)
+                    full=false;
+                return true;
+            }
+            int num=dropped.incrementAndGet();
+            if(!full) {
+                full=true;
+                server.log.warn("%s: send queue to %s is full (%d messages); dropping messages until it has space " +
+                                  "again (%d dropped so far)", server.localAddress(), peer_addr, queue.size(), num);
+            }
+            return false;
+        }
+
+        protected void drain() {
+            try {
+                list.add(queue.take());
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            queue.drainTo(list);
+            try {
+                send(list);
+            }
+            finally {
+                list.clear();
+            }
+        }
+
+        public String toString() {
+            return String.format("send-queue=%d, dropped=%d", queue.size(), dropped.get());
+        }
+    }
+
+
     protected class Receiver implements Runnable {
         protected final Thread     recv;
         protected volatile boolean receiving=true;
@@ -322,10 +475,11 @@ public class TcpConnection extends Connection {
         InetAddress local=tmp_sock.getLocalAddress(), remote=tmp_sock.getInetAddress();
         String local_str=local != null? Util.shortName(local) : "<null>";
         String remote_str=remote != null? Util.shortName(remote) : "<null>";
-        return String.format("%s:%s --> %s:%s (%d secs old) [%s] [recv_buf=%d]",
+        Sender s=sender;
+        return String.format("%s:%s --> %s:%s (%d secs old) [%s] [recv_buf=%d]%s",
                              local_str, tmp_sock.getLocalPort(), remote_str, tmp_sock.getPort(),
                              TimeUnit.SECONDS.convert(getTimestamp() - last_access, TimeUnit.NANOSECONDS),
-                             status(), receiver != null? receiver.bufferSize() : 0);
+                             status(), receiver != null? receiver.bufferSize() : 0, s != null? " [" + s + "]" : "");
     }
 
     @Override
@@ -354,6 +508,14 @@ public class TcpConnection extends Connection {
 
     public void close() throws IOException {
         Util.close(sock); // fix for https://issues.jboss.org/browse/JGRP-2350
+        Sender s;
+        synchronized(this) { // enqueue() won't start a new sender from now on
+            connected=false;
+            s=sender;
+            sender=null;
+        }
+        if(s != null) // stopped outside of send_lock: the sender thread might be trying to acquire it
+            s.stop();
         send_lock.lock();
         try {
             if(receiver != null) {
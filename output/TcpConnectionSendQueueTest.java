@@ -0,0 +1,112 @@
+package org.jgroups.blocks.cs;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the send queue of {@link TcpConnection}, used by {@link BaseServer#sendAsync(Address,byte[],int,int)}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TcpConnectionSendQueueTest {
+    protected TcpServer                a, b;
+    protected Address                  addr_b;
+    protected final AtomicInteger      received=new AtomicInteger();
+    protected static final byte[]      DATA="hello".getBytes();
+
+    @BeforeMethod protected void setup() throws Exception {
+        InetAddress loopback=Util.getLoopback();
+        received.set(0);
+        a=new TcpServer(loopback, ResourceManager.getNextTcpPort(loopback));
+        b=new TcpServer(loopback, ResourceManager.getNextTcpPort(loopback));
+        a.sendQueueSize(2);
+        b.readFramesIntoArray(true);
+        b.receiver(new ReceiverAdapter() {
+            public void receive(Address sender, byte[] data, int offset, int length) {
+                received.incrementAndGet();
+            }
+        });
+        a.start();
+        b.start();
+        addr_b=b.localAddress();
+    }
+
+    @AfterMethod protected void destroy() {Util.close(a, b);}
+
+    /** Messages exceeding the capacity of the send queue are dropped and counted */
+    public void testFullQueue() throws Exception {
+        TcpConnection conn=(TcpConnection)a.getConnection(addr_b);
+        conn.send_lock.lock(); // blocks the sender thread in send(List)
+        try {
+            int added=0;
+            for(int i=0; i < 10; i++)
+                if(a.sendAsync(addr_b, DATA, 0, DATA.length))
+                    added++;
+            // 1 message taken by the blocked sender thread, 2 in the queue (unless the sender hasn't taken 1 yet)
+            assert added >= 2 && added <= 3 : "added: " + added;
+            assert conn.droppedMessages() == 10 - added && a.numSendQueueDrops() == 10 - added;
+        }
+        finally {
+            conn.send_lock.unlock();
+        }
+        Util.waitUntil(5000, 100, () -> received.get() >= 2);
+        assert a.sendAsync(addr_b, DATA, 0, DATA.length); // the queue has space again
+    }
+
+    /** A connection whose queued messages cannot be written is removed, and the next send creates a new one */
+    public void testFailedSendRemovesConnection() throws Exception {
+        TcpConnection conn=(TcpConnection)a.getConnection(addr_b);
+        conn.out=new DataOutputStream(new OutputStream() {
+            public void write(int b) throws IOException {throw new IOException("broken");}
+            public void write(byte[] b, int off, int len) throws IOException {throw new IOException("broken");}
+        });
+        assert a.sendAsync(addr_b, DATA, 0, DATA.length);
+        Util.waitUntil(5000, 100, () -> !a.hasConnection(addr_b));
+
+        assert a.sendAsync(addr_b, DATA, 0, DATA.length);
+        assert a.getConnection(addr_b) != conn;
+        Util.waitUntil(5000, 100, () -> received.get() == 1);
+    }
+
+    /** Enqueueing on a closed connection throws an exception and doesn't start a new sender thread */
+    public void testEnqueueAfterClose() throws Exception {
+        TcpConnection conn=(TcpConnection)a.getConnection(addr_b);
+        conn.close();
+        try {
+            conn.enqueue(DATA, 0, DATA.length);
+            assert false : "enqueue() should have thrown an exception";
+        }
+        catch(SocketException ex) {
+            // expected
+        }
+        assert conn.sender == null;
+    }
+
+    /** Enqueueing on a connection which isn't connected throws an exception rather than silently dropping the data */
+    public void testEnqueueOnUnconnectedConnection() throws Exception {
+        TcpConnection conn=new TcpConnection(addr_b, a);
+        try {
+            conn.enqueue(DATA, 0, DATA.length);
+            assert false : "enqueue() should have thrown an exception";
+        }
+        catch(SocketException ex) {
+            // expected
+        }
+        finally {
+            Util.close(conn);
+        }
+    }
+}
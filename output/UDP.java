@@ -1,24 +1,21 @@
 package org.jgroups.protocols;
 
 
-import org.jgroups.Event;
-import org.jgroups.Global;
-import org.jgroups.PhysicalAddress;
+import org.jgroups.*;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.AttributeType;
 import org.jgroups.stack.IpAddress;
-import org.jgroups.util.SuppressLog;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.*;
-import java.util.Formatter;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
 
 
 /**
@@ -103,6 +100,15 @@ public class UDP extends TP {
       "a datagram packet",type=AttributeType.TIME)
     protected long suppress_time_out_of_buffer_space=60000;
 
+    @Property(description="If true, multicasts are received by a single thread using a non-blocking DatagramChannel. " +
+      "All datagrams available are read in one go and their messages are passed up as one batch per sender " +
+      "(and message type), instead of one batch per datagram. mcast_receiver_threads is ignored",writable=false)
+    protected boolean nio_mcast_receiver;
+
+    @Property(description="Max number of datagrams read by the NIO multicast receiver before the messages read so far " +
+      "are passed up")
+    protected int nio_max_datagrams_per_read=64;
+
     protected int unicast_receiver_threads=1;
     protected int multicast_receiver_threads=1;
 
@@ -133,6 +139,15 @@ public class UDP extends TP {
     /** Runnable to receive unicast packets */
     protected PacketReceiver[]  ucast_receivers;
 
+    /** Non-blocking channel for <em>receiving</em> multicast packets, used instead of mcast_sock if nio_mcast_receiver is true */
+    protected DatagramChannel   mcast_channel;
+
+    /** Receives multicast packets from mcast_channel */
+    protected NioPacketReceiver nio_mcast_receiver_thread;
+
+    /** Average number of datagrams read by the NIO multicast receiver in one go */
+    protected final AverageMinMax avg_datagrams_per_read=new AverageMinMax();
+
     protected SuppressLog<InetAddress> suppress_log_out_of_buffer_space;
 
     protected static final boolean is_android, is_mac;
@@ -179,6 +194,12 @@ public class UDP extends TP {
     public boolean disableLoopback() {return disable_loopback;}
     public UDP disableLoopback(boolean d) {this.disable_loopback=d; return this;}
 
+    public boolean nioMcastReceiver() {return nio_mcast_receiver;}
+    public UDP nioMcastReceiver(boolean n) {this.nio_mcast_receiver=n; return this;}
+
+    @ManagedAttribute(description="Average number of datagrams read in one go by the NIO multicast receiver")
+    public String getAvgDatagramsPerRead() {return avg_datagrams_per_read.toString();}
+
     public long getSuppressTimeOutOfBufferSpace() {return suppress_time_out_of_buffer_space;}
     public UDP setSuppressTimeOutOfBufferSpace(long s) {this.suppress_time_out_of_buffer_space=s; return this;}
 
@@ -297,6 +318,12 @@ public class UDP extends TP {
 
     /*------------------------------ Protocol interface ------------------------------ */
 
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        avg_datagrams_per_read.clear();
+    }
+
     @Override
     public Object down(Event evt) {
         Object retval=super.down(evt);
@@ -327,8 +354,12 @@ public class UDP extends TP {
             throw ex;
         }
         ucast_receivers=createReceivers(unicast_receiver_threads, sock, UCAST_NAME);
-        if(ip_mcast)
-            mcast_receivers=createReceivers(multicast_receiver_threads, mcast_sock, MCAST_NAME);
+        if(ip_mcast) {
+            if(mcast_channel != null)
+                nio_mcast_receiver_thread=new NioPacketReceiver(mcast_channel, MCAST_NAME);
+            else
+                mcast_receivers=createReceivers(multicast_receiver_threads, mcast_sock, MCAST_NAME);
+        }
     }
 
 
@@ -403,7 +434,13 @@ public class UDP extends TP {
         }
 
         // 3. Create socket for receiving IP multicast packets
-        if(ip_mcast) {
+        if(ip_mcast && nio_mcast_receiver) {
+            createMulticastChannel();
+            if(enable_diagnostics && diagnostics_addr.equals(mcast_group_addr) && diagnostics_port == mcast_port)
+                throw new IllegalArgumentException("diagnostics_addr:diagnostics_port and mcast_addr:mcast_port " +
+                                                     "have to be different");
+        }
+        else if(ip_mcast) {
             // https://jira.jboss.org/jira/browse/JGRP-777 - this doesn't work on MacOS, and we don't have
             // cross talking on Windows anyway, so we just do it for Linux. (How about Solaris ?)
 
@@ -454,8 +491,49 @@ public class UDP extends TP {
     }
 
 
+    /** Creates a non-blocking channel bound to mcast_port, which joins the multicast group on all receive interfaces */
+    protected void createMulticastChannel() throws Exception {
+        ProtocolFamily family=mcast_group_addr instanceof Inet6Address? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        mcast_channel=DatagramChannel.open(family).setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        try {
+            mcast_channel.bind(Util.can_bind_to_mcast_addr? new InetSocketAddress(mcast_group_addr, mcast_port)
+                                 : new InetSocketAddress(mcast_port));
+            if(disable_loopback)
+                mcast_channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+            if(mcast_recv_buf_size > 0)
+                mcast_channel.setOption(StandardSocketOptions.SO_RCVBUF, mcast_recv_buf_size);
+            if(tos > 0)
+                mcast_channel.setOption(StandardSocketOptions.IP_TOS, tos);
+            mcast_addr=new IpAddress(mcast_group_addr, mcast_port);
+
+            List<NetworkInterface> interfaces;
+            if(receive_interfaces != null && !receive_interfaces.isEmpty())
+                interfaces=receive_interfaces;
+            else if(receive_on_all_interfaces)
+                interfaces=Util.getAllAvailableInterfaces();
+            else
+                interfaces=Collections.singletonList(NetworkInterface.getByInetAddress(bind_addr));
+            for(NetworkInterface intf: interfaces) {
+                try {
+                    mcast_channel.join(mcast_group_addr, intf);
+                    log.debug("joined %s on %s", mcast_addr, intf.getName());
+                }
+                catch(IOException e) {
+                    log.warn(Util.getMessage("InterfaceJoinFailed"), mcast_addr, intf.getName());
+                }
+            }
+            mcast_channel.configureBlocking(false);
+        }
+        catch(Exception ex) {
+            Util.close(mcast_channel);
+            mcast_channel=null;
+            throw ex;
+        }
+    }
+
     protected void destroySockets() {
         closeMulticastSocket();
+        closeMulticastChannel();
         closeUnicastSocket();
     }
 
@@ -682,6 +760,15 @@ public class UDP extends TP {
     }
 
 
+    protected void closeMulticastChannel() {
+        if(mcast_channel != null) {
+            Util.close(mcast_channel); // drops group memberships; the NIO receiver thread will break out of its loop
+            mcast_channel=null;
+            mcast_addr=null;
+            log.debug("%s: multicast channel closed", local_addr);
+        }
+    }
+
     protected void closeUnicastSocket() {
         getSocketFactory().close(sock);
     }
@@ -702,6 +789,8 @@ public class UDP extends TP {
         if(mcast_receivers != null)
             for(PacketReceiver r: mcast_receivers)
                 r.start();
+        if(nio_mcast_receiver_thread != null)
+            nio_mcast_receiver_thread.start();
     }
 
     protected void stopThreads() {
@@ -710,7 +799,10 @@ public class UDP extends TP {
     }
 
     protected void stopUcastReceiverThreads() {Util.close(ucast_receivers);}
-    protected void stopMcastReceiverThreads() {Util.close(mcast_receivers);}
+    protected void stopMcastReceiverThreads() {
+        Util.close(mcast_receivers);
+        Util.close(nio_mcast_receiver_thread);
+    }
 
     protected void handleConfigEvent(Map<String,Object> map) throws SocketException {
         boolean set_buffers=false;
@@ -787,8 +879,13 @@ public class UDP extends TP {
                     if(len > receive_buf.length && log.isErrorEnabled())
                         log.error(Util.getMessage("SizeOfTheReceivedPacket"), len, receive_buf.length, receive_buf.length);
 
-                    receive(new IpAddress(packet.getAddress(), packet.getPort()),
-                            receive_buf, packet.getOffset(), len);
+                    // receive_buf is reused: with zero_copy_receive, messages reference the packet, so hand over a copy
+                    if(zero_copy_receive)
+                        receive(new IpAddress(packet.getAddress(), packet.getPort()),
+                                Arrays.copyOfRange(receive_buf, packet.getOffset(), packet.getOffset() + len), 0, len);
+                    else
+                        receive(new IpAddress(packet.getAddress(), packet.getPort()),
+                                receive_buf, packet.getOffset(), len);
                 }
                 catch(SocketException sock_ex) {
                     if(receiver_socket.isClosed()) {
@@ -808,4 +905,109 @@ public class UDP extends TP {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
     }
+
+
+    /**
+     * Reads all datagrams available from a non-blocking channel (up to nio_max_datagrams_per_read) before passing
+     * up their messages, merged into one batch per sender and message type
+     */
+    public class NioPacketReceiver implements Runnable, Closeable {
+        private       Thread          thread;
+        private final DatagramChannel channel;
+        private final String          name;
+        private       Selector        selector;
+
+        public NioPacketReceiver(DatagramChannel channel, String name) {
+            this.channel=channel;
+            this.name=name;
+        }
+
+        public synchronized void start() {
+            if(thread == null || !thread.isAlive()) {
+                try {
+                    selector=Selector.open();
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                catch(IOException e) {
+                    log.error("%s: failed registering multicast channel: %s", local_addr, e);
+                    return;
+                }
+                thread=getThreadFactory().newThread(this, name);
+                thread.start();
+            }
+        }
+
+        public void close() throws IOException {stop();}
+
+        public synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(selector != null)
+                selector.wakeup();
+            if(tmp != null && tmp.isAlive()) {
+                tmp.interrupt();
+                try {
+                    tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt(); // set interrupt flag again
+                }
+            }
+            Util.close(selector);
+        }
+
+        public void run() {
+            final ByteBuffer                  buf=ByteBuffer.allocate(66000); // IPv6 == 65575 bytes, IPv4 = 65535
+            final Map<Address,MessageBatch[]> batches=new LinkedHashMap<>();
+
+            while(Thread.currentThread().equals(thread)) {
+                try {
+                    if(selector.select() == 0)
+                        continue;
+                    selector.selectedKeys().clear();
+                    int num_datagrams=0;
+                    while(num_datagrams < nio_max_datagrams_per_read) {
+                        buf.clear();
+                        InetSocketAddress sender=(InetSocketAddress)channel.receive(buf);
+                        if(sender == null) // no more datagrams available
+                            break;
+                        num_datagrams++;
+                        buf.flip();
+                        byte[] data=buf.array();
+                        int offset=buf.arrayOffset(), len=buf.remaining();
+                        if(zero_copy_receive) // buf is reused, but messages reference the array they were read from
+                            data=Arrays.copyOfRange(data, offset, offset + len);
+                        receive(new IpAddress(sender), data, zero_copy_receive? 0 : offset, len, batches);
+                    }
+                    if(num_datagrams > 0) {
+                        processBatches(batches);
+                        if(stats)
+                            avg_datagrams_per_read.add(num_datagrams);
+                    }
+                }
+                catch(ClosedChannelException | ClosedSelectorException closed) {
+                    log.debug("%s: multicast channel is closed", local_addr);
+                    break;
+                }
+                catch(Throwable ex) {
+                    if(!channel.isOpen())
+                        break;
+                    log.error(Util.getMessage("FailedReceivingPacket"), ex);
+                }
+                finally {
+                    batches.clear();
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(name + " thread terminated");
+        }
+
+        public String toString() {
+            try {
+                return channel != null? String.valueOf(channel.getLocalAddress()) : "null";
+            }
+            catch(IOException e) {
+                return "n/a";
+            }
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the NIO multicast receiver of {@link UDP} (nio_mcast_receiver=true), which passes the datagrams it reads
+ * up through the receive path of {@link TP}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class UDP_NioReceiverTest {
+    protected JChannel          a, b;
+    protected MyReceiver        ra, rb;
+    protected static final int  NUM=500;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        a.connect(getClass().getSimpleName());
+        b.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    /** Bundled and single (DONT_BUNDLE) multicasts are all delivered, in order, and counted by the receive stats */
+    public void testMulticasts() throws Exception {
+        TP tp_b=b.getProtocolStack().getTransport();
+        tp_b.getMessageStats().reset();
+        for(int i=1; i <= NUM; i++) {
+            Message msg=new ObjectMessage(null, i);
+            if(i % 10 == 0)
+                msg.setFlag(Message.Flag.DONT_BUNDLE);
+            a.send(msg);
+        }
+        for(MyReceiver r: List.of(ra, rb)) {
+            Util.waitUntil(10000, 100, () -> r.size() >= NUM, () -> String.format("received %d msgs", r.size()));
+            List<Integer> list=r.list();
+            assert list.size() == NUM : String.format("expected %d msgs, but got %d", NUM, list.size());
+            for(int i=0; i < list.size(); i++)
+                assert list.get(i) == i+1 : String.format("msgs are out of order: %s", list);
+        }
+        assert tp_b.getMessageStats().getNumMsgsReceived() >= NUM;
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new UDP().nioMcastReceiver(true).setBindAddress(Util.getLoopback()),
+                            new LOCAL_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(1000).printLocalAddress(false))
+          .name(name);
+    }
+
+    protected static class MyReceiver implements Receiver {
+        protected final List<Integer> list=new ArrayList<>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add(msg.getObject());
+            }
+        }
+
+        protected int size() {
+            synchronized(list) {
+                return list.size();
+            }
+        }
+
+        protected List<Integer> list() {
+            synchronized(list) {
+                return new ArrayList<>(list);
+            }
+        }
+    }
+}
@@ -6,9 +6,13 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.AttributeType;
+import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -22,6 +26,7 @@ import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
@@ -60,12 +65,34 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "is compacted (only for experts)",writable=false,type=AttributeType.TIME)
     protected long    xmit_table_max_compaction_time= (long) 10 * 60 * 1000;
 
+    @Property(description="If true, a lock-free ring (RingTable) is used as retransmission table instead of a matrix " +
+      "(Table). The initial capacity of the ring is xmit_table_msgs_per_row; it doubles when full",writable=false)
+    protected boolean xmit_table_ring;
+
     // @Property(description="Max time (in ms) after which a connection to a non-member is closed")
     protected long    max_retransmit_time=60 * 1000L;
 
     @Property(description="Interval (in milliseconds) at which messages in the send windows are resent",type=AttributeType.TIME)
     protected long    xmit_interval=500;
 
+    @Property(description="If true, the round-trip time to each peer is measured (from the time a message is sent until " +
+      "it is acked) and retransmissions are scheduled per connection, with a timeout derived from the RTT, instead of " +
+      "by the retransmit task running every xmit_interval ms. The latter still sends delayed ACKs and closes idle " +
+      "connections")
+    protected boolean adaptive_xmit;
+
+    @Property(description="When adaptive_xmit is true, messages whose seqno is a multiple of rtt_sample_interval are " +
+      "acked immediately by the receiver (instead of on the next xmit_interval), and the sender measures the RTT only " +
+      "for these messages, so that delayed ACKs don't inflate the RTT. Needs to be the same on all members")
+    protected int     rtt_sample_interval=8;
+
+    @Property(description="Min retransmission timeout (ms) when adaptive_xmit is true",type=AttributeType.TIME)
+    protected long    min_rto=100;
+
+    @Property(description="Max retransmission timeout (ms) when adaptive_xmit is true. The timeout of a connection " +
+      "is doubled on every retransmission, up to max_rto",type=AttributeType.TIME)
+    protected long    max_rto=10_000;
+
     @Property(description="If true, trashes warnings about retransmission messages not found in the xmit_table (used for testing)")
     protected boolean log_not_found_msgs=true;
 
@@ -73,6 +100,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "Otherwise send delayed acks. If 1, ack single messages (similar to UNICAST)")
     protected int     ack_threshold=100;
 
+    @Property(description="If true, a pending (delayed) ACK for messages received from a member is sent together with " +
+      "the next message to that member: the transport bundles both into the same packet, and the ACK doesn't need " +
+      "to be sent on its own by the retransmit task")
+    protected boolean piggyback_acks;
+
     @Property(description="Min time (in ms) to elapse for successive SEND_FIRST_SEQNO messages to be sent to the same sender",
       type=AttributeType.TIME)
     protected long    sync_min_interval=2000;
@@ -81,6 +113,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "the max bundle size in the transport")
     protected int     max_xmit_req_size;
 
+    @Property(description="If true, retransmit requests carry the missing seqnos as ranges (or a bitmap, whichever " +
+      "is smaller) rather than as a SeqnoList. Requests in either format are always accepted, but all members need " +
+      "to understand the range format before this is enabled")
+    protected boolean xmit_req_ranges;
+
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
@@ -96,6 +133,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @ManagedAttribute(description="Number of retransmit responses sent",type=AttributeType.SCALAR)
     protected final LongAdder  xmit_rsps_sent=new LongAdder();
 
+    @ManagedAttribute(description="Number of delayed ACKs sent together with a message to the same member",
+      type=AttributeType.SCALAR)
+    protected final LongAdder  num_acks_piggybacked=new LongAdder();
+
     protected final AverageMinMax avg_delivery_batch_size=new AverageMinMax();
 
     @ManagedAttribute(description="True if sending a message can block at the transport level")
@@ -149,6 +190,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     protected static final Predicate<Message> dont_loopback_filter=
       msg -> msg != null && msg.isFlagSet(Message.TransientFlag.DONT_LOOPBACK);
 
+    static {
+        HeaderDictionary.register(ClassConfigurator.getMagicNumber(UnicastHeader3.class), new SeqnoCodec());
+        SeqnoRanges.register();
+    }
+
     protected static final BiConsumer<MessageBatch,Message> BATCH_ACCUMULATOR=MessageBatch::add;
 
     protected static final Table.Visitor<Message> DECR=(seqno, msg, row, col) -> {
@@ -208,6 +254,20 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     public UNICAST3 setXmitTableResizeFactor(double x)    {this.xmit_table_resize_factor=x; return this;}
     public long     getXmitTableMaxCompactionTime()       {return xmit_table_max_compaction_time;}
     public UNICAST3 setXmitTableMaxCompactionTime(long x) {this.xmit_table_max_compaction_time=x; return this;}
+    public boolean  xmitTableRing()                       {return xmit_table_ring;}
+    public UNICAST3 xmitTableRing(boolean r)              {this.xmit_table_ring=r; return this;}
+    public boolean  piggybackAcks()                       {return piggyback_acks;}
+    public UNICAST3 piggybackAcks(boolean p)              {this.piggyback_acks=p; return this;}
+    public boolean  adaptiveXmit()                        {return adaptive_xmit;}
+    public UNICAST3 adaptiveXmit(boolean a)               {this.adaptive_xmit=a; return this;}
+    public int      rttSampleInterval()                   {return rtt_sample_interval;}
+    public UNICAST3 rttSampleInterval(int i)              {this.rtt_sample_interval=i; return this;}
+    public long     getMinRto()                           {return min_rto;}
+    public UNICAST3 setMinRto(long m)                     {this.min_rto=m; return this;}
+    public long     getMaxRto()                           {return max_rto;}
+    public UNICAST3 setMaxRto(long m)                     {this.max_rto=m; return this;}
+    public boolean  xmitReqRanges()                       {return xmit_req_ranges;}
+    public UNICAST3 xmitReqRanges(boolean r)              {this.xmit_req_ranges=r; return this;}
     public boolean  logNotFoundMsgs()                     {return log_not_found_msgs;}
     public UNICAST3 logNotFoundMsgs(boolean l)            {this.log_not_found_msgs=l; return this;}
     public long     getSyncMinInterval()                  {return sync_min_interval;}
@@ -241,7 +301,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     public long getNumMessagesSent()     {return num_msgs_sent;}
     @ManagedAttribute(type=AttributeType.SCALAR)
     public long getNumMessagesReceived() {return num_msgs_received;}
-    @ManagedAttribute(type=AttributeType.SCALAR)
+    @ManagedAttribute(description="Number of ACKs sent on their own (excluding piggybacked ACKs)",type=AttributeType.SCALAR)
     public long getNumAcksSent()         {return num_acks_sent;}
     @ManagedAttribute(type=AttributeType.SCALAR)
     public long getNumAcksReceived()     {return num_acks_received;}
@@ -285,42 +345,42 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     /** The number of messages in all Entry.sent_msgs tables (haven't received an ACK yet) */
     @ManagedAttribute(type=AttributeType.SCALAR)
     public int getNumUnackedMessages() {
-        return accumulate(Table::size, send_table.values());
+        return accumulate(Buffer::size, send_table.values());
     }
 
     @ManagedAttribute(description="Total number of undelivered messages in all receive windows",type=AttributeType.SCALAR)
     public int getXmitTableUndeliveredMessages() {
-        return accumulate(Table::size, recv_table.values());
+        return accumulate(Buffer::size, recv_table.values());
     }
 
     @ManagedAttribute(description="Total number of missing messages in all receive windows",type=AttributeType.SCALAR)
     public int getXmitTableMissingMessages() {
-        return accumulate(Table::getNumMissing, recv_table.values());
+        return accumulate(Buffer::getNumMissing, recv_table.values());
     }
 
     @ManagedAttribute(description="Total number of deliverable messages in all receive windows",type=AttributeType.SCALAR)
     public int getXmitTableDeliverableMessages() {
-        return accumulate(Table::getNumDeliverable, recv_table.values());
+        return accumulate(Buffer::getNumDeliverable, recv_table.values());
     }
 
     @ManagedAttribute(description="Number of compactions in all (receive and send) windows")
     public int getXmitTableNumCompactions() {
-        return accumulate(Table::getNumCompactions, recv_table.values(), send_table.values());
+        return accumulate(Buffer::getNumCompactions, recv_table.values(), send_table.values());
     }
 
     @ManagedAttribute(description="Number of moves in all (receive and send) windows")
     public int getXmitTableNumMoves() {
-        return accumulate(Table::getNumMoves, recv_table.values(), send_table.values());
+        return accumulate(Buffer::getNumMoves, recv_table.values(), send_table.values());
     }
 
     @ManagedAttribute(description="Number of resizes in all (receive and send) windows")
     public int getXmitTableNumResizes() {
-        return accumulate(Table::getNumResizes, recv_table.values(), send_table.values());
+        return accumulate(Buffer::getNumResizes, recv_table.values(), send_table.values());
     }
 
     @ManagedAttribute(description="Number of purges in all (receive and send) windows")
     public int getXmitTableNumPurges() {
-        return accumulate(Table::getNumPurges, recv_table.values(), send_table.values());
+        return accumulate(Buffer::getNumPurges, recv_table.values(), send_table.values());
     }
 
     @ManagedOperation(description="Prints the contents of the receive windows for all members")
@@ -328,7 +388,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         StringBuilder ret=new StringBuilder(local_addr + ":\n");
         for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
             Address addr=entry.getKey();
-            Table<Message> buf=entry.getValue().msgs;
+            Buffer<Message> buf=entry.getValue().msgs;
             ret.append(addr).append(": ").append(buf.toString()).append('\n');
         }
         return ret.toString();
@@ -339,7 +399,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         StringBuilder ret=new StringBuilder(local_addr + ":\n");
         for(Map.Entry<Address,SenderEntry> entry: send_table.entrySet()) {
             Address addr=entry.getKey();
-            Table<Message> buf=entry.getValue().msgs;
+            Buffer<Message> buf=entry.getValue().msgs;
             ret.append(addr).append(": ").append(buf.toString()).append('\n');
         }
         return ret.toString();
@@ -349,7 +409,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_acks_sent=num_acks_received=num_xmits=0;
         avg_delivery_batch_size.clear();
-        Stream.of(xmit_reqs_received, xmit_reqs_sent, xmit_rsps_sent).forEach(LongAdder::reset);
+        Stream.of(xmit_reqs_received, xmit_reqs_sent, xmit_rsps_sent, num_acks_piggybacked).forEach(LongAdder::reset);
     }
 
 
@@ -362,6 +422,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         if(time_service == null)
             throw new IllegalStateException("time service from transport is null");
         last_sync_sent=new ExpiryCache<>(sync_min_interval);
+        if(adaptive_xmit && (min_rto <= 0 || min_rto > max_rto))
+            throw new IllegalArgumentException(String.format("min_rto (%d) has to be > 0 and <= max_rto (%d)", min_rto, max_rto));
 
         // max bundle size (minus overhead) divided by <long size> times bits per long
         // Example: for 8000 missing messages, SeqnoList has a serialized size of 1012 bytes, for 64000 messages, the
@@ -394,6 +456,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         running=false;
         stopRetransmitTask();
         xmit_task_map.clear();
+        send_table.values().forEach(Entry::cancelXmitTask);
+        recv_table.values().forEach(Entry::cancelXmitTask);
         removeAllConnections();
         msg_cache.clear();
     }
@@ -436,7 +500,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     handleResendingOfFirstMessage(sender, hdr.timestamp());
                     break;
                 case UnicastHeader3.XMIT_REQ:  // received ACK for previously sent message
-                    handleXmitRequest(sender, msg.getObject());
+                    handleXmitRequest(sender, msg.getObject()); // a SeqnoList or a SeqnoRanges
                     break;
                 case UnicastHeader3.CLOSE:
                     log.trace("%s <-- %s: CLOSE(conn-id=%s)", local_addr, sender, hdr.conn_id);
@@ -546,7 +610,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 log.trace("%s <-- %s: DATA(%s)", local_addr, batch.sender(), printMessageList(list));
 
             int len=list.size();
-            Table<Message> win=entry.msgs;
+            Buffer<Message> win=entry.msgs;
             update(entry, len);
 
             // OOB msg is passed up. When removed, we discard it. Affects ordering: http://jira.jboss.com/jira/browse/JGRP-379
@@ -661,6 +725,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
 
         num_msgs_sent++;
+        if(adaptive_xmit && !dont_loopback_set && !dst.equals(local_addr)) {
+            if(isRttSample(seqno))
+                entry.startRttSample(seqno);
+            scheduleSenderXmit(dst, entry);
+        }
+        if(piggyback_acks && !dst.equals(local_addr))
+            sendPendingAck(dst);
         return down_prot.down(msg);
     }
 
@@ -715,10 +786,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     /** Sends a retransmit request to the given sender */
     protected void retransmit(SeqnoList missing, Address sender) {
-        Message xmit_msg=new ObjectMessage(sender, missing).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+        SizeStreamable payload=xmit_req_ranges? SeqnoRanges.from(missing) : missing;
+        Message xmit_msg=new ObjectMessage(sender, payload).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
           .putHeader(id, UnicastHeader3.createXmitReqHeader());
         if(is_trace)
-            log.trace("%s --> %s: XMIT_REQ(%s)", local_addr, sender, missing);
+            log.trace("%s --> %s: XMIT_REQ(%s)", local_addr, sender, payload);
         down_prot.down(xmit_msg);
         xmit_reqs_sent.add(missing.size());
     }
@@ -769,12 +841,14 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
     protected void addMessage(ReceiverEntry entry, Address sender, long seqno, Message msg) {
-        final Table<Message> win=entry.msgs;
+        final Buffer<Message> win=entry.msgs;
         update(entry, 1);
         boolean oob=msg.isFlagSet(Message.Flag.OOB),
           added=win.add(seqno, oob? DUMMY_OOB_MSG : msg); // adding the same dummy OOB msg saves space (we won't remove it)
+        if(adaptive_xmit && win.getNumMissing() > 0)
+            scheduleReceiverXmit(sender, entry);
 
-        if(ack_threshold <= 1)
+        if(ack_threshold <= 1 || (adaptive_xmit && isRttSample(seqno))) // the sender times the ACK of an RTT sample
             sendAck(sender, win.getHighestDeliverable(), entry.connId());
         else
             entry.sendAck(true); // will be sent delayed (on the next xmit_interval)
@@ -813,7 +887,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
 
         update(entry, 1);
-        final Table<Message> win=entry.msgs;
+        final Buffer<Message> win=entry.msgs;
 
         // An OOB message is passed up immediately. Later, when remove() is called, we discard it. This affects ordering !
         // http://jira.jboss.com/jira/browse/JGRP-377
@@ -831,7 +905,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         removeAndDeliver(win, sender);
     }
 
-    protected void processInternalMessage(final Table<Message> win, final Address sender) {
+    protected void processInternalMessage(final Buffer<Message> win, final Address sender) {
         // If there are other msgs, tell the regular thread pool to handle them (https://issues.jboss.org/browse/JGRP-1732)
         if(!win.isEmpty() && win.getAdders().get() == 0) // just a quick&dirty check, can also be incorrect
             getTransport().submitToThreadPool(() -> removeAndDeliver(win, sender), true);
@@ -844,13 +918,15 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             log.trace("%s <-- %s: DATA(%s)", local_addr, sender, printMessageList(msgs));
 
         int batch_size=msgs.size();
-        Table<Message> win=entry.msgs;
+        Buffer<Message> win=entry.msgs;
 
         // adds all messages to the table, removing messages from 'msgs' which could not be added (already present)
         boolean added=win.add(msgs, oob, oob? DUMMY_OOB_MSG : null);
+        if(adaptive_xmit && win.getNumMissing() > 0)
+            scheduleReceiverXmit(sender, entry);
 
         update(entry, batch_size);
-        if(batch_size >= ack_threshold)
+        if(batch_size >= ack_threshold || (adaptive_xmit && containsRttSample(msgs)))
             sendAck(sender, win.getHighestDeliverable(), entry.connId());
         else
             entry.sendAck(true);
@@ -876,7 +952,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
      * delivery of P1, Q1, Q2, P2: FIFO (implemented by UNICAST) says messages need to be delivered in the
      * order in which they were sent
      */
-    protected void removeAndDeliver(Table<Message> win, Address sender) {
+    protected void removeAndDeliver(Buffer<Message> win, Address sender) {
         AtomicInteger adders=win.getAdders();
         if(adders.getAndIncrement() != 0)
             return;
@@ -979,9 +1055,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         return entry;
     }
 
-    protected Table<Message> createTable(long seqno) {
-        return new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
-                           xmit_table_resize_factor, xmit_table_max_compaction_time);
+    protected Buffer<Message> createTable(long seqno) {
+        if(xmit_table_ring)
+            return new RingTable<>(xmit_table_msgs_per_row, seqno-1);
+        return new TableBuffer<>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
+                                 xmit_table_resize_factor, xmit_table_max_compaction_time);
     }
 
     /** Add the ACK to hashtable.sender.sent_msgs */
@@ -994,11 +1072,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             return;
         }
 
-        Table<Message> win=entry != null? entry.msgs : null;
+        Buffer<Message> win=entry != null? entry.msgs : null;
         if(win != null && entry.updateLastTimestamp(timestamp)) {
             win.forEach(win.getLow(), seqno, DECR);
             win.purge(seqno, true); // removes all messages <= seqno (forced purge)
             num_acks_received++;
+            if(adaptive_xmit)
+                entry.ackReceived(seqno);
         }
     }
 
@@ -1011,7 +1091,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     protected void handleResendingOfFirstMessage(Address sender, int timestamp) {
         log.trace("%s <-- %s: SEND_FIRST_SEQNO", local_addr, sender);
         SenderEntry entry=send_table.get(sender);
-        Table<Message> win=entry != null? entry.msgs : null;
+        Buffer<Message> win=entry != null? entry.msgs : null;
         if(win == null) {
             log.warn(Util.getMessage("SenderNotFound"), local_addr, sender);
             return;
@@ -1035,13 +1115,15 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
-    protected void handleXmitRequest(Address sender, SeqnoList missing) {
+    protected void handleXmitRequest(Address sender, Iterable<Long> missing) {
+        if(missing == null)
+            return;
         if(is_trace)
             log.trace("%s <-- %s: XMIT(#%s)", local_addr, sender, missing);
 
         SenderEntry entry=send_table.get(sender);
-        xmit_reqs_received.add(missing.size());
-        Table<Message> win=entry != null? entry.msgs : null;
+        xmit_reqs_received.add(SeqnoRanges.size(missing));
+        Buffer<Message> win=entry != null? entry.msgs : null;
         if(win != null) {
             for(long seqno: missing) {
                 Message msg=win.get(seqno);
@@ -1053,6 +1135,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
                 down_prot.down(msg);
                 xmit_rsps_sent.increment();
+                entry.resent(seqno);
             }
         }
     }
@@ -1109,6 +1192,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
     protected void sendAck(Address dst, long seqno, short conn_id) {
+        sendAck(dst, seqno, conn_id, false);
+    }
+
+    /** Sends an ACK. If piggybacked is true, the ACK is sent right before a message to dst, in the same packet */
+    protected void sendAck(Address dst, long seqno, short conn_id, boolean piggybacked) {
         if(!running) // if we are disconnected, then don't send any acks which throw exceptions on shutdown
             return;
         Message ack=new EmptyMessage(dst).setFlag(Message.Flag.INTERNAL).
@@ -1117,7 +1205,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             log.trace("%s --> %s: ACK(#%d)", local_addr, dst, seqno);
         try {
             down_prot.down(ack);
-            num_acks_sent++;
+            if(piggybacked)
+                num_acks_piggybacked.increment();
+            else
+                num_acks_sent++;
         }
         catch(Throwable t) {
             log.error(Util.getMessage("FailedSendingAck"), local_addr, seqno, dst, t);
@@ -1125,6 +1216,17 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    /**
+     * Sends the pending ACK (if any) for the messages received from dst right before a message to dst, so that the
+     * transport's bundler sends both in the same packet
+     */
+    protected void sendPendingAck(Address dst) {
+        ReceiverEntry entry=recv_table.get(dst);
+        Buffer<Message> win=entry != null? entry.msgs : null;
+        if(win != null && entry.send_ack && entry.sendAck()) // sendAck() resets send_ack to false
+            sendAck(dst, win.getHighestDeliverable(), entry.connId(), true);
+    }
+
     protected synchronized short getNewConnectionId() {
         short retval=last_conn_id;
         if(last_conn_id >= Short.MAX_VALUE || last_conn_id < 0)
@@ -1254,12 +1356,15 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
             Address        target=entry.getKey(); // target to send retransmit requests to
             ReceiverEntry  val=entry.getValue();
-            Table<Message> win=val != null? val.msgs : null;
+            Buffer<Message> win=val != null? val.msgs : null;
 
             // receiver: send ack for received messages if needed
             if(win != null && val.sendAck()) // sendAck() resets send_ack to false
                 sendAck(target, win.getHighestDeliverable(), val.connId());
 
+            if(adaptive_xmit) // retransmissions are scheduled per connection
+                continue;
+
             // receiver: retransmit missing messages (getNumMissing() is fast)
             if(win != null && win.getNumMissing() > 0 && (missing=win.getMissing(max_xmit_req_size)) != null) {
                 long highest=missing.getLast();
@@ -1279,20 +1384,22 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
 
         // sender: only send the *highest sent* message if HA < HS and HA/HS didn't change from the prev run
-        for(SenderEntry val: send_table.values()) {
-            Table<Message> win=val != null? val.msgs : null;
-            if(win != null) {
-                long highest_acked=win.getHighestDelivered(); // highest delivered == highest ack (sender win)
-                long highest_sent=win.getHighestReceived();   // we use table as a *sender* win, so it's highest *sent*...
-
-                if(highest_acked < highest_sent && val.watermark[0] == highest_acked && val.watermark[1] == highest_sent) {
-                    // highest acked and sent hasn't moved up - let's resend the HS
-                    Message highest_sent_msg=win.get(highest_sent);
-                    if(highest_sent_msg != null)
-                        retransmit(highest_sent_msg);
+        if(!adaptive_xmit) { // else retransmissions are scheduled per connection
+            for(SenderEntry val: send_table.values()) {
+                Buffer<Message> win=val != null? val.msgs : null;
+                if(win != null) {
+                    long highest_acked=win.getHighestDelivered(); // highest delivered == highest ack (sender win)
+                    long highest_sent=win.getHighestReceived();   // we use table as a *sender* win, so it's highest *sent*...
+
+                    if(highest_acked < highest_sent && val.watermark[0] == highest_acked && val.watermark[1] == highest_sent) {
+                        // highest acked and sent hasn't moved up - let's resend the HS
+                        Message highest_sent_msg=win.get(highest_sent);
+                        if(highest_sent_msg != null)
+                            retransmit(highest_sent_msg);
+                    }
+                    else
+                        val.watermark(highest_acked, highest_sent);
                 }
-                else
-                    val.watermark(highest_acked, highest_sent);
             }
         }
 
@@ -1306,12 +1413,99 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    /** Whether the ACK for seqno is sent immediately, and can therefore be timed by the sender */
+    protected boolean isRttSample(long seqno) {
+        return rtt_sample_interval <= 1 || seqno % rtt_sample_interval == 0;
+    }
+
+    protected boolean containsRttSample(List<LongTuple<Message>> msgs) {
+        for(LongTuple<Message> tuple: msgs)
+            if(isRttSample(tuple.getVal1()))
+                return true;
+        return false;
+    }
+
+    /** Schedules a retransmission of the highest sent message to dst in RTO ms (if not yet scheduled) */
+    protected void scheduleSenderXmit(Address dst, SenderEntry entry) {
+        if(running && !entry.xmitTaskScheduled())
+            entry.scheduleXmitTask(() -> senderXmit(dst, entry), entry.rtt.rto(TimeUnit.MILLISECONDS));
+    }
+
+    /** Schedules a retransmit request for the messages missing from sender in RTO ms (if not yet scheduled) */
+    protected void scheduleReceiverXmit(Address sender, ReceiverEntry entry) {
+        if(running && !entry.xmitTaskScheduled())
+            entry.scheduleXmitTask(() -> receiverXmit(sender, entry), rto(sender));
+    }
+
+    /**
+     * Called when the retransmission deadline of a send connection expires: if HA < HS and neither HA nor HS have
+     * changed since the last deadline, the highest sent message is resent and the RTO is doubled. The next deadline
+     * is scheduled as long as there are unacked messages
+     */
+    protected void senderXmit(Address dst, SenderEntry entry) {
+        entry.xmitTaskDone();
+        if(!running || send_table.get(dst) != entry || entry.state() == State.CLOSED)
+            return;
+        Buffer<Message> win=entry.msgs;
+        long highest_acked=win.getHighestDelivered(), highest_sent=win.getHighestReceived();
+        if(highest_acked >= highest_sent) { // all messages have been acked; the next send schedules a new deadline
+            entry.watermark(highest_acked, highest_sent);
+            return;
+        }
+        if(entry.watermark[0] == highest_acked && entry.watermark[1] == highest_sent) {
+            Message highest_sent_msg=win.get(highest_sent);
+            if(highest_sent_msg != null)
+                retransmit(highest_sent_msg);
+            entry.retransmitted();
+        }
+        else
+            entry.watermark(highest_acked, highest_sent);
+        scheduleSenderXmit(dst, entry);
+    }
+
+    /**
+     * Called when the retransmission deadline of a receive connection expires: asks the sender for the messages that
+     * were already missing at the previous deadline (https://issues.jboss.org/browse/JGRP-1539). The next deadline is
+     * scheduled as long as messages are missing
+     */
+    protected void receiverXmit(Address sender, ReceiverEntry entry) {
+        entry.xmitTaskDone();
+        if(!running || recv_table.get(sender) != entry || entry.state() == State.CLOSED)
+            return;
+        Buffer<Message> win=entry.msgs;
+        SeqnoList missing=win.getNumMissing() > 0? win.getMissing(max_xmit_req_size) : null;
+        if(missing == null) {
+            entry.xmit_highest=0;
+            return;
+        }
+        long highest=missing.getLast(), prev_highest=entry.xmit_highest;
+        if(prev_highest > 0) {
+            missing.removeHigherThan(prev_highest);
+            if(!missing.isEmpty())
+                retransmit(missing, sender);
+        }
+        entry.xmit_highest=Math.max(highest, prev_highest);
+        scheduleReceiverXmit(sender, entry);
+    }
+
+    /** Returns the retransmission timeout (ms) for a peer, measured on the send connection to it, or xmit_interval */
+    protected long rto(Address peer) {
+        SenderEntry entry=send_table.get(peer);
+        return entry != null? entry.rtt.rto(TimeUnit.MILLISECONDS) : xmit_interval;
+    }
+
+    @ManagedOperation(description="Prints the round-trip times and retransmission timeouts of all send connections")
+    public String printRtts() {
+        return send_table.entrySet().stream()
+          .map(e -> String.format("%s: %s", e.getKey(), e.getValue().rtt)).collect(Collectors.joining("\n"));
+    }
+
     @ManagedOperation(description="Sends ACKs immediately for entries which are marked as pending (ACK hasn't been sent yet)")
     public void sendPendingAcks() {
         for(Map.Entry<Address,ReceiverEntry> entry: recv_table.entrySet()) {
             Address        target=entry.getKey(); // target to send retransmit requests to
             ReceiverEntry  val=entry.getValue();
-            Table<Message> win=val != null? val.msgs : null;
+            Buffer<Message> win=val != null? val.msgs : null;
 
             // receiver: send ack for received messages if needed
             if(win != null && val.sendAck())// sendAck() resets send_ack to false
@@ -1336,7 +1530,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
     @SafeVarargs
-    protected static int accumulate(ToIntFunction<Table<Message>> func, Collection<? extends Entry> ... entries) {
+    protected static int accumulate(ToIntFunction<Buffer<Message>> func, Collection<? extends Entry> ... entries) {
         return Stream.of(entries).flatMap(Collection::stream)
           .map(entry -> entry.msgs).filter(Objects::nonNull)
           .mapToInt(func).sum();
@@ -1349,12 +1543,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
 
     protected abstract class Entry {
-        protected final Table<Message>  msgs; // stores sent or received messages
+        protected final Buffer<Message>  msgs; // stores sent or received messages
         protected final short           conn_id;
         protected final AtomicLong      timestamp=new AtomicLong(0); // ns
         protected volatile State        state=State.OPEN;
+        protected volatile Future<?>    xmit_task; // the retransmission deadline (only used with adaptive_xmit)
 
-        protected Entry(short conn_id, Table<Message> msgs) {
+        protected Entry(short conn_id, Buffer<Message> msgs) {
             this.conn_id=conn_id;
             this.msgs=msgs;
             update();
@@ -1366,16 +1561,64 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         Entry       state(State state)    {if(this.state != state) {this.state=state; update();} return this;}
         /** Returns the age of the entry in ms */
         long        age()                 {return TimeUnit.MILLISECONDS.convert(getTimestamp() - timestamp.longValue(), TimeUnit.NANOSECONDS);}
+        boolean     xmitTaskScheduled()   {Future<?> f=xmit_task; return f != null && !f.isDone();}
+        synchronized void xmitTaskDone()  {xmit_task=null;}
+
+        synchronized void scheduleXmitTask(Runnable task, long delay) {
+            if(!xmitTaskScheduled())
+                xmit_task=timer.schedule(task, delay, TimeUnit.MILLISECONDS, sends_can_block);
+        }
+
+        synchronized void cancelXmitTask() {
+            if(xmit_task != null) {
+                xmit_task.cancel(false);
+                xmit_task=null;
+            }
+        }
     }
 
     protected final class SenderEntry extends Entry {
         final AtomicLong       sent_msgs_seqno=new AtomicLong(DEFAULT_FIRST_SEQNO);   // seqno for msgs sent by us
         protected final long[] watermark={0,0}; // the highest acked and highest sent seqno
         protected int          last_timestamp;  // to prevent out-of-order ACKs from a receiver
+        protected final RttEstimator rtt=new RttEstimator(xmit_interval, min_rto, max_rto, TimeUnit.MILLISECONDS);
+        protected long         rtt_seqno;       // the seqno whose ACK is timed, 0 if none
+        protected long         rtt_start;       // the time (ns) rtt_seqno was sent
 
         public SenderEntry(short send_conn_id) {
-            super(send_conn_id, new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row, 0,
-                                            xmit_table_resize_factor, xmit_table_max_compaction_time));
+            super(send_conn_id, createTable(DEFAULT_FIRST_SEQNO));
+        }
+
+        /** Times the ACK for seqno, unless another seqno is currently being timed */
+        protected synchronized void startRttSample(long seqno) {
+            if(rtt_seqno == 0) {
+                rtt_seqno=seqno;
+                rtt_start=System.nanoTime();
+            }
+        }
+
+        /** Adds an RTT sample if the timed seqno has been acked */
+        protected synchronized void ackReceived(long seqno) {
+            if(rtt_seqno != 0 && seqno >= rtt_seqno) {
+                rtt.add(System.nanoTime() - rtt_start, TimeUnit.NANOSECONDS);
+                rtt_seqno=0;
+            }
+        }
+
+        /** A message was resent: its ACK can't be used as sample (Karn's algorithm) and the RTO is backed off */
+        protected synchronized void retransmitted() {
+            rtt_seqno=0;
+            rtt.backoff();
+        }
+
+        /**
+         * Seqno was resent on request of the receiver (XMIT_REQ). ACKs are cumulative, so the ACK for rtt_seqno would
+         * include the loss recovery if seqno <= rtt_seqno: the sample is dropped (Karn's algorithm). The RTO is not
+         * backed off, as no retransmission timer expired
+         */
+        protected synchronized void resent(long seqno) {
+            if(rtt_seqno != 0 && seqno <= rtt_seqno)
+                rtt_seqno=0;
         }
 
         long[]      watermark()                 {return watermark;}
@@ -1400,14 +1643,17 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             sb.append("send_conn_id=" + conn_id).append(" (" + age()/1000 + " secs old) - " + state);
             if(last_timestamp != 0)
                 sb.append(", last-ts: ").append(last_timestamp);
+            if(adaptive_xmit)
+                sb.append(", ").append(rtt);
             return sb.toString();
         }
     }
 
     protected final class ReceiverEntry extends Entry {
         protected volatile boolean  send_ack;
+        protected long              xmit_highest; // highest missing seqno at the last retransmission deadline
 
-        public ReceiverEntry(Table<Message> received_msgs, short recv_conn_id) {
+        public ReceiverEntry(Buffer<Message> received_msgs, short recv_conn_id) {
             super(recv_conn_id, received_msgs);
         }
 
@@ -1491,4 +1737,35 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    /**
+     * Writes the seqno of a DATA header as delta to the seqno of the previous DATA header (with the same conn-id) in
+     * the same message list (used with compact headers, see {@link HeaderDictionary})
+     */
+    protected static class SeqnoCodec implements HeaderDictionary.Codec<UnicastHeader3> {
+        protected static final byte FULL=0, DELTA=1, DELTA_FIRST=2;
+
+        public void write(UnicastHeader3 prev, UnicastHeader3 hdr, DataOutput out) throws IOException {
+            if(prev != null && prev.type == UnicastHeader3.DATA && hdr.type == UnicastHeader3.DATA
+              && prev.conn_id == hdr.conn_id) {
+                out.writeByte(hdr.first? DELTA_FIRST : DELTA);
+                Bits.writeLong(hdr.seqno - prev.seqno, out);
+            }
+            else {
+                out.writeByte(FULL);
+                hdr.writeTo(out);
+            }
+        }
+
+        public UnicastHeader3 read(UnicastHeader3 prev, DataInput in) throws IOException, ClassNotFoundException {
+            byte mode=in.readByte();
+            if(mode == FULL) {
+                UnicastHeader3 hdr=new UnicastHeader3();
+                hdr.readFrom(in);
+                return hdr;
+            }
+            if(prev == null)
+                throw new IOException("seqno delta without previous header");
+            return UnicastHeader3.createDataHeader(prev.seqno + Bits.readLong(in), prev.conn_id, mode == DELTA_FIRST);
+        }
+    }
 }
@@ -5,11 +5,15 @@ import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
 import org.jgroups.util.MessageBatch;
+import org.jgroups.util.RttEstimator;
+import org.jgroups.util.SeqnoRanges;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Bela Ban
  * @since  4.0
@@ -98,6 +102,88 @@ public class UNICAST3_Test {
     }
 
 
+    /**
+     * B replies to every message from A: with piggyback_acks, the delayed ACKs are sent together with the replies
+     * (and the next messages of A), so fewer ACKs have to be sent on their own
+     */
+    public void testPiggybackedAcks() throws Exception {
+        b.getProtocolStack().removeProtocol(DropUnicastAck.class);
+        long acks_sent=exchangeMessages(false);
+        assert uni_a.num_acks_piggybacked.sum() == 0 && uni_b.num_acks_piggybacked.sum() == 0;
+
+        long acks_sent_with_piggybacking=exchangeMessages(true);
+        assert uni_b.num_acks_piggybacked.sum() > 0;
+        assert acks_sent_with_piggybacking < acks_sent
+          : String.format("ACKs sent with piggybacking: %d, without: %d", acks_sent_with_piggybacking, acks_sent);
+    }
+
+
+    /**
+     * With adaptive_xmit, the RTT is measured only for messages which are acked immediately, so it must be way below
+     * xmit_interval (the delay of regular, delayed ACKs)
+     */
+    public void testRttWithAdaptiveXmit() throws Exception {
+        b.getProtocolStack().removeProtocol(DropUnicastAck.class);
+        for(UNICAST3 u: new UNICAST3[]{uni_a, uni_b})
+            u.adaptiveXmit(true).setXmitInterval(1000);
+        b.setReceiver(receiver);
+        for(int i=1; i <= 100; i++) {
+            a.send(b_addr, i);
+            Util.sleep(2);
+        }
+        Util.waitUntil(5000, 100, () -> receiver.count == 100);
+        RttEstimator rtt=uni_a.send_table.get(b_addr).rtt;
+        Util.waitUntil(5000, 100, () -> rtt.numSamples() >= 5, () -> "RTT: " + rtt);
+        long srtt=rtt.srtt(TimeUnit.MILLISECONDS);
+        assert srtt < 100 : String.format("smoothed RTT (%d ms) should be much lower than xmit_interval", srtt);
+    }
+
+
+    /** A message resent on an XMIT_REQ from the receiver drops the RTT sample if its ACK would cover it (Karn) */
+    public void testXmitRequestDropsRttSample() throws Exception {
+        drop_ack.discarding=true; // B drops all messages from A, so they remain unacked in A's send window
+        for(int i=1; i <= 5; i++)
+            a.send(b_addr, i);
+        UNICAST3.SenderEntry entry=uni_a.send_table.get(b_addr);
+        long first=entry.msgs.getHighestDelivered() + 1; // the first unacked seqno
+        synchronized(entry) {
+            entry.rtt_seqno=0;
+            entry.startRttSample(first + 2);
+        }
+
+        uni_a.handleXmitRequest(b_addr, new SeqnoRanges(1).add(first + 3)); // not covered by the ACK for rtt_seqno
+        assert entry.rtt_seqno == first + 2;
+
+        uni_a.handleXmitRequest(b_addr, new SeqnoRanges(1).add(first + 1));
+        assert entry.rtt_seqno == 0 : "the RTT sample should have been dropped";
+    }
+
+
+    /** A sends messages to B, which replies to each. Returns the number of ACKs sent on their own by A and B */
+    protected long exchangeMessages(boolean piggyback_acks) throws Exception {
+        for(UNICAST3 u: new UNICAST3[]{uni_a, uni_b})
+            u.piggybackAcks(piggyback_acks).resetStats();
+        MyReceiver receiver_a=new MyReceiver();
+        a.setReceiver(receiver_a);
+        b.setReceiver(new Receiver() {
+            public void receive(Message msg) {
+                try {
+                    b.send(msg.getSrc(), "rsp");
+                }
+                catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        for(int i=1; i <= 20; i++) {
+            a.send(b_addr, i);
+            Util.sleep(50); // spread the messages over multiple runs of the retransmit task (sending delayed ACKs)
+        }
+        Util.waitUntil(5000, 100, () -> receiver_a.count == 20);
+        Util.sleep(uni_a.getXmitInterval() * 2); // the retransmit task sends the remaining delayed ACKs
+        return uni_a.getNumAcksSent() + uni_b.getNumAcksSent();
+    }
+
     protected static JChannel create(String name) throws Exception {
         return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(), new UNICAST3()).name(name);
     }
@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests sync unicast RPCs with flag {@link Message.Flag#NO_RELIABILITY}, which bypass UNICAST3 and are resent by
+ * {@link org.jgroups.blocks.RequestCorrelator} until a response has been received
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class UnreliableRequestTest {
+    protected JChannel              a, b;
+    protected MessageDispatcher     da, db;
+    protected DropUnreliable        drop=new DropUnreliable();
+    protected final AtomicInteger   num_invocations=new AtomicInteger();
+    protected static final RequestOptions OPTS=RequestOptions.SYNC().timeout(5000)
+      .flags(Message.Flag.OOB, Message.Flag.NO_RELIABILITY);
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A").connect(getClass().getSimpleName());
+        b=create("B").connect(getClass().getSimpleName());
+        b.getProtocolStack().insertProtocol(drop, ProtocolStack.Position.ABOVE, SHARED_LOOPBACK.class);
+        da=new MessageDispatcher(a).xmitInterval(100);
+        db=new MessageDispatcher(b, msg -> {
+            num_invocations.incrementAndGet();
+            return msg.getObject();
+        });
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(db, da, b, a);
+    }
+
+    public void testRequestWithoutLoss() throws Exception {
+        String rsp=da.sendMessage(new ObjectMessage(b.getAddress(), "hello"), OPTS);
+        assert "hello".equals(rsp);
+        assert da.getCorrelator().numXmits() == 0;
+        assert num_invocations.get() == 1;
+    }
+
+    public void testLostRequestIsResent() throws Exception {
+        drop.drop(2);
+        String rsp=da.sendMessage(new ObjectMessage(b.getAddress(), "hello"), OPTS);
+        assert "hello".equals(rsp);
+        assert da.getCorrelator().numXmits() >= 2 : String.format("%d xmits", da.getCorrelator().numXmits());
+    }
+
+    @Test(expectedExceptions=TimeoutException.class)
+    public void testNoResendWhenDisabled() throws Exception {
+        da.xmitInterval(0);
+        drop.drop(1);
+        da.sendMessage(new ObjectMessage(b.getAddress(), "hello"), RequestOptions.SYNC().timeout(500)
+          .flags(Message.Flag.OOB, Message.Flag.NO_RELIABILITY));
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(), new SHARED_LOOPBACK_PING(), new UNICAST3()).name(name);
+    }
+
+    /** Drops a given number of messages with flag NO_RELIABILITY */
+    protected static class DropUnreliable extends Protocol {
+        protected final AtomicInteger num_to_drop=new AtomicInteger();
+
+        public DropUnreliable drop(int num) {num_to_drop.set(num); return this;}
+
+        public Object up(Message msg) {
+            if(msg.isFlagSet(Message.Flag.NO_RELIABILITY) && num_to_drop.getAndDecrement() > 0)
+                return null;
+            return up_prot.up(msg);
+        }
+
+        public void up(MessageBatch batch) {
+            batch.replaceIf(msg -> msg.isFlagSet(Message.Flag.NO_RELIABILITY) && num_to_drop.getAndDecrement() > 0, null, true);
+            if(!batch.isEmpty())
+                up_prot.up(batch);
+        }
+    }
+}
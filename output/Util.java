@@ -48,6 +48,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.lang.System.nanoTime;
+import static org.jgroups.protocols.TP.COMPACT_HEADERS;
 import static org.jgroups.protocols.TP.LIST;
 import static org.jgroups.protocols.TP.MULTICAST;
 
@@ -1215,6 +1216,19 @@ public class Util {
         return retval;
     }
 
+    /** Copies the remaining bytes of all buffers into a single array of length bytes. The buffers are not modified */
+    public static byte[] bufferToArray(final ByteBuffer[] bufs, int length) {
+        byte[] retval=new byte[length];
+        int index=0;
+        for(ByteBuffer buf: bufs) {
+            ByteBuffer tmp=buf.duplicate();
+            int len=tmp.remaining();
+            tmp.get(retval, index, len);
+            index+=len;
+        }
+        return retval;
+    }
+
     public static void bufferToArray(final Address sender, final ByteBuffer buf, org.jgroups.blocks.cs.Receiver target) {
         if(buf == null)
             return;
@@ -1435,21 +1449,50 @@ public class Util {
      */
     public static void writeMessageList(Address dest, Address src, byte[] cluster_name,
                                         List<Message> msgs, DataOutput dos, boolean multicast, short transport_id) throws IOException {
-        writeMessageListHeader(dest, src, cluster_name, msgs != null ? msgs.size() : 0, dos, multicast);
+        writeMessageList(dest, src, cluster_name, msgs, dos, multicast, transport_id, false);
+    }
 
+    /**
+     * Writes a message list. If compact_headers is true, the headers are written using a {@link HeaderDictionary}.
+     * Compact headers require all messages to extend {@link BaseMessage}; if one doesn't, the list is written with
+     * regular headers
+     */
+    public static void writeMessageList(Address dest, Address src, byte[] cluster_name, List<Message> msgs,
+                                        DataOutput dos, boolean multicast, short transport_id,
+                                        boolean compact_headers) throws IOException {
+        if(compact_headers && msgs != null)
+            for(Message msg: msgs) {
+                if(!(msg instanceof BaseMessage)) {
+                    compact_headers=false;
+                    break;
+                }
+            }
+        writeMessageListHeader(dest, src, cluster_name, msgs != null ? msgs.size() : 0, dos, multicast, compact_headers);
+
+        HeaderDictionary dict=compact_headers? new HeaderDictionary() : null;
         if(msgs != null)
             for(Message msg: msgs) {
                 dos.writeShort(msg.getType());
-                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+                if(dict != null)
+                    ((BaseMessage)msg).writeToNoAddrs(src, dos, dict, transport_id);
+                else
+                    msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
             }
     }
 
     public static void writeMessageListHeader(Address dest, Address src, byte[] cluster_name, int numMsgs, DataOutput dos, boolean multicast) throws IOException {
+        writeMessageListHeader(dest, src, cluster_name, numMsgs, dos, multicast, false);
+    }
+
+    public static void writeMessageListHeader(Address dest, Address src, byte[] cluster_name, int numMsgs,
+                                              DataOutput dos, boolean multicast, boolean compact_headers) throws IOException {
         dos.writeShort(Version.version);
 
         byte flags=LIST;
         if(multicast)
             flags+=MULTICAST;
+        if(compact_headers)
+            flags+=COMPACT_HEADERS;
 
         dos.writeByte(flags);
 
@@ -1465,6 +1508,11 @@ public class Util {
     }
 
 
+    /** Returns a new dictionary if the flags of a message list have {@link TP#COMPACT_HEADERS} set, else null */
+    public static HeaderDictionary headerDictionary(byte flags) {
+        return (flags & COMPACT_HEADERS) == COMPACT_HEADERS? new HeaderDictionary() : null;
+    }
+
     public static List<Message> readMessageList(DataInput in, short transport_id, MessageFactory mf)
       throws IOException, ClassNotFoundException {
         List<Message> list=new LinkedList<>();
@@ -1508,19 +1556,37 @@ public class Util {
      */
     public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast, MessageFactory factory)
       throws IOException, ClassNotFoundException {
-        MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
+        // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
+        return readMessageBatch(in, multicast, factory, new MessageBatch[4], null, null);
+    }
+
+    /**
+     * Same as {@link #readMessageBatch(DataInput,boolean,MessageFactory)}, but reads the batches into the given array
+     * (of length 4), which is cleared first. If pool is non-null, the batches are acquired from it. If the list
+     * was written with compact headers ({@link #headerDictionary(byte)}), dict needs to be a new or cleared dictionary
+     */
+    public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast, MessageFactory factory,
+                                                  MessageBatch[] batches, MessageBatchPool pool, HeaderDictionary dict)
+      throws IOException, ClassNotFoundException {
+        Arrays.fill(batches, null);
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
         short length=in.readShort();
-        byte[] cluster_name=length >= 0? new byte[length] : null;
-        if(cluster_name != null)
-            in.readFully(cluster_name, 0, cluster_name.length);
+        AsciiString cluster_name=null;
+        if(length >= 0) {
+            byte[] tmp=new byte[length];
+            in.readFully(tmp, 0, tmp.length);
+            cluster_name=new AsciiString(tmp);
+        }
 
         int len=in.readInt();
         for(int i=0; i < len; i++) {
             short type=in.readShort();
             Message msg=factory.create(type);
-            msg.readFrom(in);
+            if(dict != null)
+                ((BaseMessage)msg).readFrom(in, dict);
+            else
+                msg.readFrom(in);
             msg.setDest(dest);
             if(msg.getSrc() == null)
                 msg.setSrc(src);
@@ -1539,7 +1605,8 @@ public class Util {
                 }
             }
             if(batches[index] == null)
-                batches[index]=new MessageBatch(dest, src, cluster_name != null? new AsciiString(cluster_name) : null, multicast, mode, len);
+                batches[index]=pool != null? pool.acquire(dest, src, cluster_name, multicast, mode, len)
+                  : new MessageBatch(dest, src, cluster_name, multicast, mode, len);
             batches[index].add(msg);
         }
         return batches;
@@ -1579,7 +1646,8 @@ public class Util {
                 boolean is_message_list=(flags & LIST) == LIST;
                 boolean multicast=(flags & MULTICAST) == MULTICAST;
                 if(is_message_list) { // used if message bundling is enabled
-                    final MessageBatch[] batches=Util.readMessageBatch(dis,multicast, mf);
+                    final MessageBatch[] batches=Util.readMessageBatch(dis, multicast, mf, new MessageBatch[4], null,
+                                                                       headerDictionary(flags));
                     for(MessageBatch batch: batches) {
                         if(batch == null)
                             continue;
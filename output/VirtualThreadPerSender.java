@@ -0,0 +1,218 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.TpHeader;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message processing policy for virtual threads (fibers). Instead of submitting tasks to a bounded thread pool (which
+ * needs to be sized and can reject tasks), every task runs in its own virtual thread:
+ * <ul>
+ *     <li>OOB and internal messages and batches are each delivered by a new virtual thread</li>
+ *     <li>Regular messages are delivered in order by at most one virtual thread per sender and ordering class
+ *         (multicast, unicast). Messages received while that thread is delivering are queued and delivered as a
+ *         single batch by the same thread, which terminates when the queue is empty</li>
+ * </ul>
+ * Since a blocked virtual thread doesn't hold on to an OS thread, there is no need to configure the size of the thread
+ * pool. {@link java.util.concurrent.locks.Lock}s are used instead of synchronized blocks, which would pin the carrier
+ * thread.<br/>
+ * If virtual threads are not available in the current JDK, the (bounded) thread pool of the transport is used
+ * instead (a warning is logged), as creating a platform thread per task would create an unbounded number of threads.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class VirtualThreadPerSender extends SubmitToThreadPool {
+    protected final Map<Address,Entry> mcasts=new ConcurrentHashMap<>(), ucasts=new ConcurrentHashMap<>();
+    protected Entry                    loopback_mcasts, loopback_ucasts;
+    protected final AtomicInteger      threads_created=new AtomicInteger();
+
+    public void init(TP transport) {
+        super.init(transport);
+        loopback_mcasts=new Entry(null, true, true);
+        loopback_ucasts=new Entry(null, false, true);
+        if(!Util.fibersAvailable())
+            log.warn("%s: virtual threads are not available, the thread pool will be used instead", tp.localAddress());
+    }
+
+    public int numThreadsCreated() {return threads_created.get();}
+
+    public void reset() {
+        threads_created.set(0);
+    }
+
+    public void destroy() {
+        mcasts.clear();
+        ucasts.clear();
+    }
+
+    public void loopback(Message msg, boolean oob, boolean internal) {
+        if(oob || internal) {
+            super.loopback(msg, oob, internal);
+            return;
+        }
+        (msg.getDest() == null? loopback_mcasts : loopback_ucasts).add(msg);
+    }
+
+    public void process(Message msg, boolean oob, boolean internal) {
+        if(oob || internal) {
+            super.process(msg, oob, internal);
+            return;
+        }
+        entry(msg.getSrc(), msg.getDest() == null).add(msg);
+    }
+
+    public void process(MessageBatch batch, boolean oob, boolean internal) {
+        if(oob || internal) {
+            super.process(batch, oob, internal);
+            return;
+        }
+        entry(batch.sender(), batch.multicast()).add(batch);
+    }
+
+    public void viewChange(Collection<Address> members) {
+        mcasts.keySet().retainAll(members);
+        ucasts.keySet().retainAll(members);
+    }
+
+    public String toString() {
+        return String.format("%d multicast and %d unicast senders, %d threads created",
+                             mcasts.size(), ucasts.size(), threads_created.get());
+    }
+
+    /** Runs the task in a new virtual thread, or submits it to the thread pool if virtual threads are not available */
+    @Override protected boolean submit(Runnable task, boolean internal) {
+        if(!Util.fibersAvailable())
+            return super.submit(task, internal);
+        start(task, internal? "jgroups-int" : "jgroups");
+        return true;
+    }
+
+    protected void start(Runnable task, String name) {
+        threads_created.incrementAndGet();
+        Util.createFiber(task, name).start();
+    }
+
+    /**
+     * Runs the delivery task of an entry in a new virtual thread or, if virtual threads are not available, in the
+     * thread pool. Returns false if the thread pool rejected the task: the caller then needs to run it
+     */
+    protected boolean start(Entry entry, String name) {
+        if(Util.fibersAvailable()) {
+            start((Runnable)entry, name);
+            return true;
+        }
+        try {
+            tp.getThreadPool().execute(entry);
+            return true;
+        }
+        catch(RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    protected Entry entry(Address sender, boolean multicast) {
+        Map<Address,Entry> map=multicast? mcasts : ucasts;
+        return map.computeIfAbsent(sender, s -> new Entry(s, multicast, false));
+    }
+
+
+    /** Queues the regular messages from a sender and delivers them in order, using at most one thread at a time */
+    protected class Entry implements Runnable {
+        protected final Address sender;
+        protected final boolean multicast;
+        protected final boolean loopback; // messages sent by ourself, passed up without stats or cluster name check
+        protected final Lock    lock=new ReentrantLock();
+        protected MessageBatch  queue;   // messages received while the delivery thread is running
+        protected boolean       running; // true if a thread is currently delivering messages
+
+        protected Entry(Address sender, boolean multicast, boolean loopback) {
+            this.sender=sender;
+            this.multicast=multicast;
+            this.loopback=loopback;
+        }
+
+        protected void add(Message msg) {
+            boolean run_inline;
+            lock.lock();
+            try {
+                if(queue == null) {
+                    TpHeader hdr=msg.getHeader(tp_id);
+                    byte[] cname=hdr != null? hdr.getClusterName() : null;
+                    queue=new MessageBatch(msg.getDest(), msg.getSrc(), cname != null? new AsciiString(cname) : null,
+                                           multicast, MessageBatch.Mode.REG, 16);
+                }
+                queue.add(msg);
+                run_inline=startIfNotRunning();
+            }
+            finally {
+                lock.unlock();
+            }
+            if(run_inline)
+                run();
+        }
+
+        protected void add(MessageBatch batch) {
+            boolean run_inline;
+            lock.lock();
+            try {
+                if(queue == null)
+                    queue=batch;
+                else {
+                    queue.add(batch);
+                    tp.releaseBatch(batch); // the messages have been copied to queue
+                }
+                run_inline=startIfNotRunning();
+            }
+            finally {
+                lock.unlock();
+            }
+            if(run_inline)
+                run();
+        }
+
+        // lock must be held. Returns true if the delivery task couldn't be started and needs to be run by the caller
+        protected boolean startIfNotRunning() {
+            if(running)
+                return false;
+            running=true;
+            return !start(this, loopback? "jgroups-loopback" : "jgroups-" + sender);
+        }
+
+        /** Delivers queued messages until the queue is empty, then terminates */
+        public void run() {
+            for(;;) {
+                MessageBatch batch;
+                lock.lock();
+                try {
+                    if(queue == null || queue.isEmpty()) {
+                        running=false;
+                        return;
+                    }
+                    batch=queue;
+                    queue=null;
+                }
+                finally {
+                    lock.unlock();
+                }
+                try {
+                    if(loopback)
+                        tp.passBatchUp(batch, false, false);
+                    else
+                        new ReleasingBatchHandler(batch).run(); // batch was removed from queue: we're the last owner
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed delivering batch from %s: %s", tp.localAddress(), batch.sender(), t);
+                }
+            }
+        }
+    }
+}
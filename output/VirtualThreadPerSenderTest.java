@@ -0,0 +1,198 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.jgroups.util.VirtualThreadPerSender;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link VirtualThreadPerSender}, and {@link org.jgroups.blocks.RequestCorrelator} with virtual threads
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class VirtualThreadPerSenderTest {
+    protected JChannel           a, b, c;
+    protected MyReceiver         ra, rb, rc;
+    protected static final int   NUM=500;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        c.setReceiver(rc=new MyReceiver());
+        for(JChannel ch: List.of(a, b, c))
+            ch.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b, c);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+    /** Regular messages from the same sender are delivered in order, including our own (loopback) messages */
+    public void testRegularMessagesAreDeliveredInOrder() throws Exception {
+        Thread[] senders=Stream.of(a, b, c).map(ch -> new Thread(() -> send(ch, null, NUM))).toArray(Thread[]::new);
+        for(Thread t: senders)
+            t.start();
+        for(Thread t: senders)
+            t.join();
+        for(MyReceiver r: List.of(ra, rb, rc))
+            r.waitFor(List.of(a, b, c), NUM);
+    }
+
+    public void testUnicastsAreDeliveredInOrder() throws Exception {
+        Thread t1=new Thread(() -> send(a, c.getAddress(), NUM)), t2=new Thread(() -> send(b, c.getAddress(), NUM));
+        t1.start();
+        t2.start();
+        send(c, c.getAddress(), NUM);
+        t1.join();
+        t2.join();
+        rc.waitFor(List.of(a, b, c), NUM);
+    }
+
+    /** A receiver blocking on the messages of one sender must not block the delivery of messages from other senders */
+    public void testBlockedSenderDoesNotBlockOtherSenders() throws Exception {
+        CountDownLatch latch=new CountDownLatch(1);
+        rc.block(a.getAddress(), latch);
+        try {
+            send(a, null, 10);
+            send(b, null, 10);
+            rc.waitFor(List.of(b), 10);
+            assert rc.received(a.getAddress()).size() <= 1; // the first message from A is blocked in receive()
+        }
+        finally {
+            latch.countDown();
+        }
+        rc.waitFor(List.of(a, b), 10);
+    }
+
+    /** An OOB request blocking in its handler doesn't block other OOB requests with virtual_threads=true */
+    public void testBlockingOOBRequests() throws Exception {
+        ServerObject obj=new ServerObject();
+        RpcDispatcher da=new RpcDispatcher(a, null), db=new RpcDispatcher(b, obj).virtualThreads(true);
+        try {
+            TP tp=b.getProtocolStack().getTransport();
+            assert db.getCorrelator().virtualThreads() && db.getCorrelator().threadPool() == tp.getThreadPool();
+            RequestOptions opts=RequestOptions.SYNC().timeout(10000).flags(Message.Flag.OOB);
+            // block() waits until unblock() has been invoked, so it only returns if both are handled concurrently
+            Thread blocker=new Thread(() -> {
+                try {
+                    da.callRemoteMethod(b.getAddress(), new MethodCall(ServerObject.class.getMethod("block")), opts);
+                }
+                catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            blocker.start();
+            Util.waitUntil(5000, 100, () -> obj.blocked.getCount() == 0);
+            da.callRemoteMethod(b.getAddress(), new MethodCall(ServerObject.class.getMethod("unblock")), opts);
+            blocker.join(10000);
+            assert !blocker.isAlive();
+        }
+        finally {
+            Util.close(db, da);
+        }
+    }
+
+    protected static void send(JChannel ch, Address dest, int num) {
+        try {
+            for(int i=1; i <= num; i++)
+                ch.send(dest, i);
+        }
+        catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        SHARED_LOOPBACK tp=new SHARED_LOOPBACK();
+        tp.setMessageProcessingPolicy("virtual");
+        return new JChannel(tp,
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+
+    public static class ServerObject {
+        protected final CountDownLatch blocked=new CountDownLatch(1), unblocked=new CountDownLatch(1);
+
+        public void block() throws InterruptedException {
+            blocked.countDown();
+            unblocked.await(10, TimeUnit.SECONDS);
+        }
+
+        public void unblock() {
+            unblocked.countDown();
+        }
+    }
+
+    protected static class MyReceiver implements Receiver {
+        protected final Map<Address,List<Integer>> msgs=new ConcurrentHashMap<>();
+        protected volatile Address                 blocked_sender;
+        protected volatile CountDownLatch          latch;
+
+        protected void block(Address sender, CountDownLatch l) {
+            latch=l;
+            blocked_sender=sender;
+        }
+
+        protected List<Integer> received(Address sender) {
+            List<Integer> list=msgs.get(sender);
+            if(list == null)
+                return List.of();
+            synchronized(list) {
+                return new ArrayList<>(list);
+            }
+        }
+
+        public void receive(Message msg) {
+            if(msg.getSrc().equals(blocked_sender)) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            List<Integer> list=msgs.computeIfAbsent(msg.getSrc(), s -> new ArrayList<>());
+            synchronized(list) {
+                list.add(msg.getObject());
+            }
+        }
+
+        /** Waits until num messages have been received from each sender, and checks that they're in order */
+        protected void waitFor(List<JChannel> senders, int num) throws Exception {
+            Util.waitUntil(10000, 100, () -> senders.stream().allMatch(ch -> received(ch.getAddress()).size() >= num));
+            for(JChannel ch: senders) {
+                List<Integer> list=received(ch.getAddress());
+                assert list.size() == num : String.format("expected %d msgs from %s, but got %d", num, ch.getName(), list.size());
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i+1 : String.format("msgs from %s are out of order: %s", ch.getName(), list);
+            }
+        }
+    }
+}
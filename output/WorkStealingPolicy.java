@@ -0,0 +1,256 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.TpHeader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message processing policy which delivers messages in a {@link ForkJoinPool} (work stealing):
+ * <ul>
+ *     <li>Regular messages are added to a queue per sender and ordering class (multicast, unicast). A queue is
+ *         processed by at most one task at a time, which preserves per-sender ordering. A task delivers at most
+ *         chunk_size messages and then re-submits itself if the queue is not empty, so that a hot sender doesn't
+ *         monopolize a thread while other senders wait. A queue holds at most max_buffer_size messages; messages
+ *         exceeding it are dropped (and retransmitted by the reliability protocols), like rejected messages of the
+ *         thread pool</li>
+ *     <li>OOB messages and batches are submitted to the regular thread pool, as in {@link SubmitToThreadPool}; OOB
+ *         batches larger than chunk_size are split into chunks, which are delivered in parallel</li>
+ *     <li>Internal messages and batches are submitted to the internal thread pool, as in {@link SubmitToThreadPool}</li>
+ * </ul>
+ * Idle threads steal tasks from busy ones, so the delivery of different senders is spread over all cores.<br/>
+ * OOB messages (which include the responses to OOB requests) are never delivered by the fork-join pool, so a
+ * blocking (e.g. nested synchronous) RPC cannot prevent its own response from being delivered. Regular messages are
+ * delivered via {@link ForkJoinPool#managedBlock(ForkJoinPool.ManagedBlocker)}, so the pool adds threads when all of
+ * its threads are blocked in the application.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class WorkStealingPolicy extends SubmitToThreadPool {
+    protected final Map<Address,Entry> mcasts=new ConcurrentHashMap<>(), ucasts=new ConcurrentHashMap<>();
+    protected ForkJoinPool             pool;
+    protected int                      chunk_size;
+    protected int                      max_queue_size; // max number of messages queued per sender; 0: unbounded
+
+    public void init(TP transport) {
+        super.init(transport);
+        chunk_size=transport.getMsgProcessingChunkSize();
+        max_queue_size=transport.getMsgProcessingMaxBufferSize();
+        if(pool == null || pool.isShutdown())
+            pool=new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                                  ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true); // FIFO (async) mode
+    }
+
+    public int                chunkSize()            {return chunk_size;}
+    public WorkStealingPolicy chunkSize(int size)    {this.chunk_size=size; return this;}
+    public int                maxQueueSize()         {return max_queue_size;}
+    public WorkStealingPolicy maxQueueSize(int size) {this.max_queue_size=size; return this;}
+
+    public void destroy() {
+        if(pool != null)
+            pool.shutdownNow();
+        mcasts.clear();
+        ucasts.clear();
+    }
+
+    public void process(Message msg, boolean oob, boolean internal) {
+        if(oob || internal) {
+            super.process(msg, oob, internal);
+            return;
+        }
+        entry(msg.getSrc(), msg.getDest() == null).add(msg);
+    }
+
+    public void process(MessageBatch batch, boolean oob, boolean internal) {
+        if(internal) {
+            super.process(batch, oob, internal);
+            return;
+        }
+        if(oob) {
+            removeAndDispatchNonBundledMessages(batch);
+            if(batch.size() <= chunk_size) {
+                submit(new ReleasingBatchHandler(batch), false);
+                return;
+            }
+            List<Message> list=new ArrayList<>(chunk_size);
+            for(Message msg: batch) {
+                list.add(msg);
+                if(list.size() >= chunk_size) {
+                    submit(new BatchHandler(chunk(batch, list)), false);
+                    list=new ArrayList<>(chunk_size);
+                }
+            }
+            if(!list.isEmpty())
+                submit(new BatchHandler(chunk(batch, list)), false);
+            tp.releaseBatch(batch);
+            return;
+        }
+        entry(batch.sender(), batch.multicast()).add(batch);
+    }
+
+    public void viewChange(Collection<Address> members) {
+        mcasts.keySet().retainAll(members);
+        ucasts.keySet().retainAll(members);
+    }
+
+    public String toString() {
+        return String.format("%d multicast and %d unicast senders, pool: %s", mcasts.size(), ucasts.size(), pool);
+    }
+
+    protected Entry entry(Address sender, boolean multicast) {
+        Map<Address,Entry> map=multicast? mcasts : ucasts;
+        return map.computeIfAbsent(sender, s -> new Entry(s, multicast));
+    }
+
+    protected void dropped(int num) {
+        if(num > 0)
+            tp.getMessageStats().incrNumRejectedMsgs(num);
+    }
+
+    protected static MessageBatch chunk(MessageBatch batch, List<Message> msgs) {
+        return new MessageBatch(batch.dest(), batch.sender(), batch.clusterName(), batch.multicast(), msgs)
+          .setMode(batch.getMode());
+    }
+
+
+    /** Queue of the regular messages from a sender; processed by at most one task at a time */
+    protected class Entry implements Runnable {
+        protected final Address sender;
+        protected final boolean multicast;
+        protected final Lock    lock=new ReentrantLock();
+        protected List<Message> queue=new ArrayList<>();
+        protected Address       dest;
+        protected AsciiString   cluster_name;
+        protected boolean       running; // true if a task has been submitted or is delivering messages
+
+        protected Entry(Address sender, boolean multicast) {
+            this.sender=sender;
+            this.multicast=multicast;
+        }
+
+        protected void add(Message msg) {
+            lock.lock();
+            try {
+                if(cluster_name == null) {
+                    TpHeader hdr=msg.getHeader(tp_id);
+                    byte[] cname=hdr != null? hdr.getClusterName() : null;
+                    cluster_name=cname != null? new AsciiString(cname) : null;
+                }
+                dest=msg.getDest();
+                if(max_queue_size > 0 && queue.size() >= max_queue_size) {
+                    dropped(1);
+                    return;
+                }
+                queue.add(msg);
+                submitIfNotRunning();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected void add(MessageBatch batch) {
+            lock.lock();
+            try {
+                if(cluster_name == null)
+                    cluster_name=batch.clusterName();
+                dest=batch.dest();
+                int num_dropped=0;
+                for(Message msg: batch) {
+                    if(max_queue_size > 0 && queue.size() >= max_queue_size)
+                        num_dropped++;
+                    else
+                        queue.add(msg);
+                }
+                dropped(num_dropped);
+                submitIfNotRunning();
+                tp.releaseBatch(batch);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // lock must be held
+        protected void submitIfNotRunning() {
+            if(!running && !queue.isEmpty()) {
+                running=true;
+                pool.execute(this);
+            }
+        }
+
+        /** Delivers up to chunk_size messages, then re-submits itself if more messages are queued */
+        public void run() {
+            List<Message> msgs;
+            Address       batch_dest;
+            lock.lock();
+            try {
+                if(queue.isEmpty()) {
+                    running=false;
+                    return;
+                }
+                batch_dest=dest;
+                if(queue.size() <= chunk_size) {
+                    msgs=queue;
+                    queue=new ArrayList<>();
+                }
+                else {
+                    List<Message> head=queue.subList(0, chunk_size);
+                    msgs=new ArrayList<>(head);
+                    head.clear();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            try {
+                // the application may block (e.g. in a nested RPC): the pool compensates with an additional thread
+                ForkJoinPool.managedBlock(new Delivery(new MessageBatch(batch_dest, sender, cluster_name, multicast, msgs)));
+            }
+            catch(Throwable t) {
+                log.error("%s: failed delivering batch from %s: %s", tp.localAddress(), sender, t);
+            }
+            lock.lock();
+            try {
+                if(queue.isEmpty())
+                    running=false;
+                else
+                    pool.execute(this); // at the tail of the queue: gives other senders a chance to run
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Delivers a batch, marking the calling thread as (potentially) blocked */
+    protected class Delivery implements ForkJoinPool.ManagedBlocker {
+        protected final MessageBatch batch;
+        protected boolean            done;
+
+        protected Delivery(MessageBatch batch) {
+            this.batch=batch;
+        }
+
+        public boolean block() {
+            try {
+                new BatchHandler(batch).run();
+            }
+            finally {
+                done=true;
+            }
+            return true;
+        }
+
+        public boolean isReleasable() {return done;}
+    }
+}
@@ -0,0 +1,126 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.jgroups.util.WorkStealingPolicy;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Tests {@link WorkStealingPolicy} with nested synchronous RPCs: A invokes foo() on B, which invokes bar() on A.
+ * The number of concurrent invocations is higher than the number of threads of the fork-join pool, so this would
+ * deadlock if the (OOB) responses were delivered by the fork-join pool
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="createFlags")
+public class WorkStealingPolicyTest {
+    protected JChannel                  a, b;
+    protected RpcDispatcher             da, db;
+    protected static final int          NUM_CALLERS=Runtime.getRuntime().availableProcessors() * 4;
+    protected static final Method       FOO, BAR;
+
+    static {
+        try {
+            FOO=ServerObject.class.getMethod("foo");
+            BAR=ServerObject.class.getMethod("bar");
+        }
+        catch(NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @DataProvider
+    static Object[][] createFlags() {
+        return new Object[][]{
+          {true},  // OOB request to B, OOB nested request to A
+          {false}  // regular request to B (delivered by the fork-join pool), OOB nested request to A
+        };
+    }
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A");
+        da=new RpcDispatcher(a, new ServerObject(null));
+        a.connect(getClass().getSimpleName());
+        b=create("B");
+        db=new RpcDispatcher(b, new ServerObject(this));
+        b.connect(getClass().getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(db, da, b, a);}
+
+    public void testNestedSyncRpcs(boolean oob) throws Exception {
+        RequestOptions opts=RequestOptions.SYNC().timeout(10000);
+        if(oob)
+            opts.flags(Message.Flag.OOB);
+        ExecutorService callers=Executors.newFixedThreadPool(NUM_CALLERS);
+        try {
+            List<Future<Integer>> futures=new ArrayList<>(NUM_CALLERS);
+            for(int i=0; i < NUM_CALLERS; i++)
+                futures.add(callers.submit(() -> da.callRemoteMethod(b.getAddress(), new MethodCall(FOO), opts)));
+            for(Future<Integer> f: futures) {
+                Integer result=f.get(20, TimeUnit.SECONDS);
+                assert result != null && result == 22 : String.format("result: %s", result);
+            }
+        }
+        finally {
+            callers.shutdownNow();
+        }
+    }
+
+    /** Invoked on B by the foo() RPC from A */
+    protected int invokeBar() throws Exception {
+        RequestOptions opts=RequestOptions.SYNC().timeout(10000).flags(Message.Flag.OOB);
+        Integer rc=db.callRemoteMethod(a.getAddress(), new MethodCall(BAR), opts);
+        return rc + 1;
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        SHARED_LOOPBACK tp=new SHARED_LOOPBACK();
+        tp.setMessageProcessingPolicy("work");
+        return new JChannel(tp,
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setJoinTimeout(500).printLocalAddress(false))
+          .name(name);
+    }
+
+    public static class ServerObject {
+        protected final WorkStealingPolicyTest test;
+
+        public ServerObject(WorkStealingPolicyTest test) {
+            this.test=test;
+        }
+
+        /** Blocks in a nested synchronous RPC to A */
+        public int foo() throws Exception {
+            Util.sleep(10); // make sure the callers block concurrently
+            return test.invokeBar();
+        }
+
+        public int bar() {
+            return 21;
+        }
+    }
+}
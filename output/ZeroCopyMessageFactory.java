@@ -0,0 +1,60 @@
+package org.jgroups.util;
+
+import org.jgroups.BytesMessage;
+import org.jgroups.DefaultMessageFactory;
+import org.jgroups.Message;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Message factory which creates {@link BytesMessage}s whose payload is a <em>slice</em> of the buffer they were read
+ * from, rather than a copy. This saves one byte[] allocation (and copy) per received message.<br/>
+ * The buffer passed to the {@link ByteArrayDataInputStream} must therefore not be reused by the caller after parsing,
+ * e.g. a transport has to hand each received packet (or frame) to the stack in its own array. Since a message
+ * references the entire packet buffer, applications must honor {@link Message#getOffset()} and
+ * {@link Message#getLength()} when accessing {@link Message#getArray()}.<br/>
+ * Enabled in the transport with {@code zero_copy_receive="true"}.
+ * @author Bela Ban
+ * @since  5.0
+ */
+public class ZeroCopyMessageFactory extends DefaultMessageFactory {
+
+    @Override
+    public <T extends Message> T create(short type) {
+        if(type == Message.BYTES_MSG)
+            return (T)new SlicedBytesMessage();
+        return super.create(type);
+    }
+
+
+    /**
+     * A {@link BytesMessage} which references its payload in the input buffer (if read from a
+     * {@link ByteArrayDataInputStream}), instead of copying it into a new array
+     */
+    public static class SlicedBytesMessage extends BytesMessage {
+
+        public SlicedBytesMessage() {
+        }
+
+        @Override
+        public void readPayload(DataInput in) throws IOException {
+            if(!(in instanceof ByteArrayDataInputStream)) {
+                super.readPayload(in);
+                return;
+            }
+            ByteArrayDataInputStream input=(ByteArrayDataInputStream)in;
+            int len=input.readInt();
+            if(len < 0)
+                return;
+            int pos=input.position();
+            if(pos + len > input.limit())
+                throw new IOException(String.format("payload length (%d) at position %d exceeds limit %d",
+                                                    len, pos, input.limit()));
+            this.array=input.buffer();
+            this.offset=pos;
+            this.length=len;
+            input.position(pos + len);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link ZeroCopyMessageFactory}
+ * @author Bela Ban
+ * @since  5.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ZeroCopyMessageFactoryTest {
+    protected static final short TP_ID=1;
+    protected final Address      a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+
+    public void testPayloadIsSliceOfInputBuffer() throws Exception {
+        List<Message> list=new ArrayList<>();
+        for(int i=1; i <= 5; i++)
+            list.add(new BytesMessage(b, ("hello-" + i).getBytes()).setSrc(a));
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(512);
+        Util.writeMessageList(b, a, "cluster".getBytes(), list, out, false, TP_ID);
+        byte[] buf=out.buffer();
+
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, 0, out.position());
+        in.readShort(); // version
+        in.readByte();  // flags
+        MessageBatch[] batches=Util.readMessageBatch(in, false, new ZeroCopyMessageFactory());
+        MessageBatch batch=batches[0];
+        assert batch.size() == 5;
+        int i=1;
+        for(Message msg: batch) {
+            assert msg.getArray() == buf : "payload should reference the input buffer";
+            String s=new String(msg.getArray(), msg.getOffset(), msg.getLength());
+            assert s.equals("hello-" + i) : s;
+            i++;
+        }
+    }
+
+    public void testCopyOfSlicedMessage() throws Exception {
+        Message msg=new BytesMessage(b, "payload".getBytes()).setSrc(a);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+        msg.writeTo(out);
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        Message tmp=new ZeroCopyMessageFactory().create(Message.BYTES_MSG);
+        tmp.readFrom(in);
+        Message copy=tmp.copy(true, true);
+        assert new String(copy.getArray(), copy.getOffset(), copy.getLength()).equals("payload");
+        assert tmp.getLength() == copy.getLength();
+    }
+
+    public void testNonBytesMessagesAreNotAffected() {
+        Message msg=new ZeroCopyMessageFactory().create(Message.OBJ_MSG);
+        assert msg instanceof ObjectMessage;
+    }
+}